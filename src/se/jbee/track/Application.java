@@ -1,5 +1,12 @@
 package se.jbee.track;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static se.jbee.track.model.Name.as;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
 import java.util.IdentityHashMap;
 import java.util.Map;
 
@@ -7,17 +14,29 @@ import org.lmdbjava.Env;
 
 import se.jbee.track.api.CachedViewService;
 import se.jbee.track.api.ListView;
+import se.jbee.track.api.MonitorView;
 import se.jbee.track.api.SampleView;
+import se.jbee.track.api.TimelineView;
 import se.jbee.track.api.UserInterface;
 import se.jbee.track.api.ViewService;
 import se.jbee.track.cache.Cache;
 import se.jbee.track.cache.CacheCluster;
 import se.jbee.track.db.DB;
 import se.jbee.track.db.LMDB;
+import se.jbee.track.db.ShardedDB;
+import se.jbee.track.engine.Import;
+import se.jbee.track.engine.Journal;
+import se.jbee.track.engine.KeyMigration;
+import se.jbee.track.engine.Limits;
+import se.jbee.track.engine.LinearLimits;
 import se.jbee.track.engine.Server;
+import se.jbee.track.engine.SharedLimits;
+import se.jbee.track.engine.StoredLimits;
 import se.jbee.track.html.HtmlRenderer;
 import se.jbee.track.html.ListViewHtmlRenderer;
+import se.jbee.track.html.MonitorViewHtmlRenderer;
 import se.jbee.track.html.SampleViewHtmlRenderer;
+import se.jbee.track.html.TimelineViewHtmlRenderer;
 import se.jbee.track.http.HttpUserInterface;
 import se.jbee.track.http.JettyHttpServer;
 
@@ -38,15 +57,23 @@ public final class Application {
 	 * @see Server#parse(String...) for args
 	 * @param args
 	 *            see {@link Server#parse(String...)}, can be used without any
-	 *            arguments for development
+	 *            arguments for development, or the name of a tool and its
+	 *            arguments, see {@link #runTool(String...)}
 	 * @throws Exception
 	 *             on problems to open DB or start the web server
 	 */
 	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && !args[0].startsWith("-")) {
+			System.out.println(runTool(args));
+			return;
+		}
 		Server config = Server.parse(args);
 		config = config.with(config.pathDB); // force check and creation of dir
-		try (DB db = createDB(config)) {
-			try (Cache cache = new CacheCluster(db, config.clock)) {
+		try (DB db = createDB(config);
+			SharedLimits limits = createLimits(config, db)) {
+			if (limits != null)
+				config = config.with(limits);
+			try (Cache cache = new CacheCluster(db, config, createSnapshotDir(config))) {
 				ViewService views = new CachedViewService(config, db, cache);
 				UserInterface ui = createHttpUserInterface(views);
 				org.eclipse.jetty.server.Server server = JettyHttpServer.create(config, ui);
@@ -56,14 +83,90 @@ public final class Application {
 		}
 	}
 
+	/**
+	 * Runs the tool named by the first argument instead of the application:
+	 * <pre>
+	 *  import db-dir actor input-file
+	 *  replay source-dir target-dir [until]
+	 *  migrate source-dir target-dir
+	 * </pre>
+	 * The actor of an import is the alias of an existing user. A replay stops
+	 * after the records up to the until timestamp in milliseconds.
+	 *
+	 * @see Import
+	 * @see Journal
+	 * @see KeyMigration
+	 * @return what the tool did
+	 */
+	private static String runTool(String... args) throws IOException {
+		long nsStart = System.nanoTime();
+		String res;
+		switch (args[0]) {
+		case "import":
+			Server server = new Server().with(Limits.NONE);
+			try (DB db = createLMDB(server.sizeDB, new File(args[1]));
+				Reader in = Files.newBufferedReader(new File(args[3]).toPath(), UTF_8)) {
+				res = "Imported "+Import.run(in, as(args[2]), db, server)+" records";
+			}
+			break;
+		case "replay":
+			long until = args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+			try (DB source = createLMDB(TOOL_DB_SIZE, new File(args[1]));
+				DB target = createLMDB(TOOL_DB_SIZE, new File(args[2]))) {
+				res = "Replayed until "+Journal.replay(source, target, until, null);
+			}
+			break;
+		case "migrate":
+			try (DB source = createLMDB(TOOL_DB_SIZE, new File(args[1]));
+				DB target = createLMDB(TOOL_DB_SIZE, new File(args[2]))) {
+				res = "Migrated "+KeyMigration.run(source, target)+" entries";
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown tool: "+args[0]);
+		}
+		return res+" in "+((System.nanoTime() - nsStart) / 1000000L)+"ms";
+	}
+
+	private static final long TOOL_DB_SIZE = 1L << 30;
+
+	/**
+	 * @return limits that survive a restart or null if limits are not counted
+	 */
+	private static SharedLimits createLimits(Server config, DB db) {
+		if (!(config.limits instanceof LinearLimits))
+			return null;
+		return new SharedLimits((LinearLimits) config.limits, new StoredLimits(db, config.clock), config.clock, 10000L);
+	}
+
+	/**
+	 * @return the directory to keep cache snapshots in or null if they should not be kept
+	 */
+	private static File createSnapshotDir(Server config) {
+		File dir = new File(config.pathDB, "cache");
+		return config.isTemporary || !dir.exists() && !dir.mkdirs() ? null : dir;
+	}
+
 	public static UserInterface createHttpUserInterface(ViewService views) {
 		Map<Class<?>, HtmlRenderer<?>> renderers = new IdentityHashMap<>();
 		renderers.put(ListView.class, new ListViewHtmlRenderer());
 		renderers.put(SampleView.class, new SampleViewHtmlRenderer());
+		renderers.put(MonitorView.class, new MonitorViewHtmlRenderer());
+		renderers.put(TimelineView.class, new TimelineViewHtmlRenderer());
 		return new HttpUserInterface(views, renderers);
 	}
 
 	private static DB createDB(Server config) {
-		return new LMDB(Env.create().setMapSize(config.sizeDB).setMaxReaders(8), config.pathDB);
+		if (config.shards == 1)
+			return createLMDB(config.sizeDB, config.pathDB);
+		DB[] shards = new DB[config.shards];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = createLMDB(config.sizeDB, new File(config.pathDB, "shard-"+i));
+		return new ShardedDB(shards);
+	}
+
+	private static DB createLMDB(long size, File path) {
+		path.mkdirs();
+		return new LMDB(() -> Env.create().setMapSize(size).setMaxReaders(8), path);
 	}
 }
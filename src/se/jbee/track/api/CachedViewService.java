@@ -4,6 +4,10 @@ import static java.lang.Integer.parseInt;
 import static java.util.Collections.singletonMap;
 import static se.jbee.track.cache.Matches.matches;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -12,15 +16,22 @@ import se.jbee.track.cache.Cache;
 import se.jbee.track.cache.Matches;
 import se.jbee.track.db.DB;
 import se.jbee.track.engine.Changes;
+import se.jbee.track.engine.DAO;
+import se.jbee.track.engine.Event;
 import se.jbee.track.engine.Limits;
+import se.jbee.track.engine.Repository;
 import se.jbee.track.engine.Sample;
 import se.jbee.track.engine.Server;
+import se.jbee.track.engine.Timeline;
 import se.jbee.track.engine.Transaction;
 import se.jbee.track.engine.TransitionDenied;
 import se.jbee.track.engine.TransitionDenied.Error;
 import se.jbee.track.model.Criteria;
 import se.jbee.track.model.Criteria.Property;
+import se.jbee.track.model.Date;
 import se.jbee.track.model.Email;
+import se.jbee.track.model.ID;
+import se.jbee.track.model.IDN;
 import se.jbee.track.model.Name;
 import se.jbee.track.model.Names;
 import se.jbee.track.model.Page;
@@ -33,12 +44,14 @@ public class CachedViewService implements ViewService {
 	private final Server server;
 	private final DB db;
 	private final Cache cache;
+	private final Timeline timeline;
 	private final Map<String, User> sessions = new ConcurrentHashMap<>();
 
 	public CachedViewService(Server server, DB db, Cache cache) {
 		this.server = server.with(Email.email("peter@example.com")); // for now
 		this.db = db;
 		this.cache = cache;
+		this.timeline = new Timeline(db, 1000);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -47,11 +60,15 @@ public class CachedViewService implements ViewService {
 			throws ViewNotAvailable {
 		Command cmd = request.value(Param.command, Command.query);
 		switch (cmd) {
-		case query:  if (response == ListView.class) return (T)list(request);
-		case sample: if (response == SampleView.class) return (T)sample(request);
+		case query:  if (response == ListView.class) return (T)list(request); break;
+		case sample: if (response == SampleView.class) return (T)sample(request); break;
+		case monitor: if (response == MonitorView.class) return (T)monitor(request); break;
+		case backup: if (response == MonitorView.class) return (T)backup(request); break;
+		case trace: if (response == TimelineView.class) return (T)trace(request); break;
+		case export: if (response == ExportView.class) return (T)export(request); break;
 		default:
-			throw new ViewNotAvailable(request, response);
 		}
+		throw new ViewNotAvailable(request, response);
 	}
 
 	private User user(String id) {
@@ -74,10 +91,98 @@ public class CachedViewService implements ViewService {
 		Names versions = request.names(Param.version);
 		Names categories = request.names(Param.category);
 		int tasks = parseInt(request.get(Param.task));
-		Changes changes = Transaction.run(Sample.sample(users, outputs, versions, areas, categories, tasks, actor.alias), db, server.with(Limits.NONE), cache::invalidate);
+		Changes changes = Transaction.run(Sample.sample(users, outputs, versions, areas, categories, tasks, actor.alias), db, server.with(Limits.NONE), this::invalidate);
 		return new SampleView(actor, changes);
 	}
 
+	private MonitorView monitor(Params request) {
+		User actor = user(request.get(Param.actor));
+		expectAdmin(actor);
+		return new MonitorView(actor, server.clock.time());
+	}
+
+	private MonitorView backup(Params request) {
+		User actor = user(request.get(Param.actor));
+		expectAdmin(actor);
+		long now = server.clock.time();
+		File target = new File(new File(server.pathDB, "backup"), String.valueOf(now));
+		db.backup(target);
+		return new MonitorView(actor, now, target);
+	}
+
+	private TimelineView trace(Params request) {
+		User actor = user(request.get(Param.actor));
+		int offset = parseInt(request.getOrDefault(Param.offset, "0"));
+		return new TimelineView(actor, server.clock.time(), visible(timeline.events(offset, 50, entities(request)), actor), offset);
+	}
+
+	/**
+	 * Like a list a trace does not show the tasks the actor may not see. Their
+	 * transitions are removed, events without any left are skipped.
+	 */
+	private Event[] visible(Event[] events, User actor) {
+		Map<ID, Boolean> visible = new HashMap<>();
+		List<Event> res = new ArrayList<>(events.length);
+		try (Repository rep = new DAO(db)) {
+			for (Event e : events) {
+				List<Event.Transition> transitions = new ArrayList<>(e.cardinality());
+				for (Event.Transition t : e)
+					if (t.entity.type != ID.Type.Task || visible.computeIfAbsent(t.entity, id -> isVisible(id, actor, rep)))
+						transitions.add(t);
+				if (transitions.size() == e.cardinality()) {
+					res.add(e);
+				} else if (!transitions.isEmpty()) {
+					res.add(new Event(e.timestamp, e.actor, transitions.toArray(new Event.Transition[0])));
+				}
+			}
+		}
+		return res.toArray(new Event[0]);
+	}
+
+	private static boolean isVisible(ID task, User actor, Repository rep) {
+		Name output = task.taskOutput();
+		return rep.task(output, task.taskIDN(output)).isVisibleTo(actor.alias);
+	}
+
+	private ExportView export(Params request) {
+		User actor = user(request.get(Param.actor));
+		long now = server.clock.time();
+		Name output = request.name(Param.output);
+		ExportView.Format format = ExportView.Format.parse(request.getOrDefault(Param.format, ExportView.Format.ndjson.name()));
+		if (format == null)
+			throw new ViewNotAvailable(request, ExportView.class);
+		Criteria filter = request.containsKey(Param.filter)
+				? Criteria.parse(request.get(Param.filter)).without(Property.output, Property.order, Property.length, Property.offset)
+				: new Criteria();
+		Date today = Date.date(now);
+		return new ExportView(actor, now, output, format, (consumer) -> {
+			try (Repository rep = new DAO(db)) {
+				rep.tasks(output, (t) -> !t.isVisibleTo(actor.alias) || !filter.matches(t, today) || consumer.test(t));
+			}
+		});
+	}
+
+	private static ID[] entities(Params request) {
+		if (request.containsKey(Param.viewed))
+			return new ID[] { ID.userId(request.name(Param.viewed)) };
+		Name output = request.name(Param.output);
+		if (request.containsKey(Param.task))
+			return new ID[] { ID.taskId(output, IDN.idn(parseInt(request.get(Param.task)))) };
+		Names areas = request.names(Param.area);
+		if (areas.isEmpty())
+			return new ID[] { ID.outputId(output) };
+		ID[] res = new ID[areas.count()];
+		int i = 0;
+		for (Name area : areas)
+			res[i++] = ID.areaId(output, area);
+		return res;
+	}
+
+	private void invalidate(Changes changes) {
+		cache.invalidate(changes);
+		timeline.invalidate(changes);
+	}
+
 	private void expectAdmin(User actor) {
 		if (!server.isAdmin(actor))
 			throw new TransitionDenied(Error.E25_ADMIN_REQUIRED, server.admin());
@@ -86,10 +191,9 @@ public class CachedViewService implements ViewService {
 	private ListView list(Params request) {
 		User actor = user(request.get(Param.actor));
 		Name output = request.name(Param.output);
-		Matches indexing = matches(cache.matchesFor(actor, Criteria.index(output)));
-		System.out.println(indexing);
-		Matches matches = matches(cache.matchesFor(actor, Criteria.parse("[output=@][length=5][offset=0]").bindTo(singletonMap(Property.output, output))));
-		System.out.println(matches);
+		Names outputs = Names.empty().add(output);
+		matches(cache.matchesFor(actor, Criteria.index(output)), outputs);
+		Matches matches = matches(cache.matchesFor(actor, Criteria.parse("[output=@][length=5][offset=0]").bindTo(singletonMap(Property.output, output))), outputs);
 		return new ListView(new User(1), System.currentTimeMillis(), new Page[0], new Page(1, Name.as("prod"), Name.as("area"), Name.as("xyz"), Template.template("Hello\n[output=@]\n")), matches);
 	}
 
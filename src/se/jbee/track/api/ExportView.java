@@ -0,0 +1,52 @@
+package se.jbee.track.api;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import se.jbee.track.model.Name;
+import se.jbee.track.model.Task;
+import se.jbee.track.model.User;
+
+/**
+ * The {@link Task}s of an output to export in one of the {@link Format}s.
+ *
+ * Other than most {@link View}s the tasks are not contained in the view. They
+ * are read one by one as the export is written so that an export of any size
+ * is done in constant memory.
+ */
+public final class ExportView extends View {
+
+	public static enum Format {
+		ndjson, csv;
+
+		/**
+		 * @return the format of the given name or null if there is none
+		 */
+		public static Format parse(String name) {
+			for (Format f : values())
+				if (f.name().equals(name))
+					return f;
+			return null;
+		}
+	}
+
+	public final Name output;
+	public final Format format;
+	private final Consumer<Predicate<Task>> tasks;
+
+	public ExportView(User actor, long now, Name output, Format format, Consumer<Predicate<Task>> tasks) {
+		super(actor, now);
+		this.output = output;
+		this.format = format;
+		this.tasks = tasks;
+	}
+
+	/**
+	 * Reads the exported {@link Task}s within a single read transaction.
+	 *
+	 * @param consumer called for each task until it returns false
+	 */
+	public void forEach(Predicate<Task> consumer) {
+		tasks.accept(consumer);
+	}
+}
@@ -0,0 +1,44 @@
+package se.jbee.track.api;
+
+import java.io.File;
+import java.util.EnumMap;
+
+import se.jbee.track.model.User;
+import se.jbee.track.util.Histogram;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
+import se.jbee.track.util.Metrics.Timer;
+
+/**
+ * The {@link Metrics} of the running application as seen by an admin.
+ */
+public final class MonitorView extends View {
+
+	/**
+	 * Snapshots taken when the view was created
+	 */
+	public final EnumMap<Timer, Histogram> timers = new EnumMap<>(Timer.class);
+	public final EnumMap<Counter, Long> counters = new EnumMap<>(Counter.class);
+	/**
+	 * The most recent slow queries with their profile, latest first
+	 */
+	public final String[] slowQueries = Metrics.slowQueries();
+	/**
+	 * The directory a backup was just made to or null
+	 */
+	public final File backup;
+
+	public MonitorView(User actor, long now) {
+		this(actor, now, null);
+	}
+
+	public MonitorView(User actor, long now, File backup) {
+		super(actor, now);
+		this.backup = backup;
+		for (Timer t : Timer.values())
+			timers.put(t, Metrics.histogram(t).snapshot());
+		for (Counter c : Counter.values())
+			counters.put(c, Metrics.value(c));
+	}
+
+}
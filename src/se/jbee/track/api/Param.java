@@ -18,6 +18,9 @@ public enum Param {
 	serial, // IDN of a board task
 	menu, // enum: none, user, area
 	category,
+	offset, // of the first entry of a list
+	format, // of an export: ndjson or csv
+	filter, // criteria the tasks of an export have to match
 	;
 
 	public static enum Command {
@@ -26,6 +29,10 @@ public enum Param {
 		query,   // a page
 		examine, // a particular task
 		oversee, // a particular version
+		monitor, // the application metrics (admin)
+		backup,  // a copy of the DB is made and the metrics shown (admin)
+		trace,   // the timeline of events of user, output, area(s) or task
+		export,  // all tasks of an output as data
 
 
 		// PUTS/POSTS
@@ -67,6 +67,14 @@ public final class Params extends EnumMap<Param, String> {
 	 *  /{output}/{area}/{serial}
 	 * </pre>
 	 * All POST/PUT URLs use <code>/do/</code> as first segment.
+	 * The admin's application metrics are shown at <code>/monitor/</code>.
+	 * A backup of the DB is made at <code>/backup/</code>.
+	 * The tasks of an output are exported at
+	 * <code>/export/{output}/[{format}/[{criteria}]]</code>.
+	 * Timelines are shown at <code>/trace/</code> followed by either
+	 * <code>user/{alias}/</code>, <code>{output}/</code>,
+	 * <code>{output}/{area}[,{area}...]/</code> or <code>{output}/{idn}</code>
+	 * optionally followed by <code>offset/{n}</code> to skip the n most recent.
 	 */
 	public static Params fromPath(String path) {
 		if (path.startsWith("/"))
@@ -79,6 +87,30 @@ public final class Params extends EnumMap<Param, String> {
 				params.set(command, Command.query);
 				params.set(viewed, segments.length >= 2 ? segments[1] : "@");
 				if (segments.length >= 3) { params.set(Param.page, segments[2]); }
+			} else if ("monitor".equals(s0)) {
+				params.set(command, Command.monitor);
+			} else if ("backup".equals(s0)) {
+				params.set(command, Command.backup);
+			} else if ("export".equals(s0)) {
+				params.set(command, Command.export);
+				if (segments.length >= 2) { params.set(Param.output, segments[1]); }
+				if (segments.length >= 3) { params.set(Param.format, segments[2]); }
+				if (segments.length >= 4) { params.set(Param.filter, segments[3]); }
+			} else if ("trace".equals(s0)) {
+				params.set(command, Command.trace);
+				int end = segments.length;
+				if (end >= 2 && "offset".equals(segments[end-2]) && segments[end-1].matches("\\d+")) {
+					params.set(Param.offset, segments[end-1]);
+					end -= 2;
+				}
+				if (end >= 3 && "user".equals(segments[1])) {
+					params.set(viewed, segments[2]);
+				} else if (end >= 2) {
+					params.set(Param.output, segments[1]);
+					if (end >= 3) {
+						params.set(segments[2].matches("\\d+") ? task : Param.area, segments[2]);
+					}
+				}
 			} else if ("do".equals(s0)) {
 				//TODO just for now
 				params.set(command, Command.sample)
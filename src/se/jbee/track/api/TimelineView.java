@@ -0,0 +1,21 @@
+package se.jbee.track.api;
+
+import se.jbee.track.engine.Event;
+import se.jbee.track.model.User;
+
+/**
+ * A page of the {@link Event}s that changed one or more entities, most recent
+ * first.
+ */
+public final class TimelineView extends View {
+
+	public final Event[] events;
+	public final int offset;
+
+	public TimelineView(User actor, long now, Event[] events, int offset) {
+		super(actor, now);
+		this.events = events;
+		this.offset = offset;
+	}
+
+}
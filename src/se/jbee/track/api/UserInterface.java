@@ -26,4 +26,12 @@ public interface UserInterface {
 	 */
 	int respond(Params params, PrintWriter out);
 
+	/**
+	 * @param params user input (what to do)
+	 * @return the media type of the output written when responding
+	 */
+	default String contentType(Params params) {
+		return "text/html; charset=utf-8";
+	}
+
 }
\ No newline at end of file
@@ -8,22 +8,29 @@ import static se.jbee.track.model.Criteria.Property.output;
 import static se.jbee.track.util.Array.fold;
 import static se.jbee.track.util.Array.map;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 import se.jbee.track.db.DB;
 import se.jbee.track.engine.Changes;
 import se.jbee.track.engine.Changes.Entry;
 import se.jbee.track.engine.Clock;
+import se.jbee.track.engine.Server;
 import se.jbee.track.model.Criteria;
 import se.jbee.track.model.Criteria.Property;
 import se.jbee.track.model.Date;
@@ -32,6 +39,8 @@ import se.jbee.track.model.Names;
 import se.jbee.track.model.Output;
 import se.jbee.track.model.Task;
 import se.jbee.track.model.User;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
 
 /**
  * A {@link CacheCluster} is a fully functional multi-{@link Output}
@@ -46,6 +55,15 @@ import se.jbee.track.model.User;
  * instance is created for the new day. This way the cache updates itself when
  * needed.
  *
+ * If a snapshot directory is given each {@link CacheWorker} saves its indexes
+ * there when closed so that the next one for the same {@link Output} starts
+ * from that {@link Snapshot}.
+ *
+ * Lookups are rejected instead of queued without bound when too many wait. A
+ * cross-output lookup waits for each {@link Output} until its deadline. Outputs
+ * that did not answer in time, failed or were overloaded are listed as
+ * {@link Matches#excludedOutputs} of the partial matches.
+ *
  * @author jan
  */
 public class CacheCluster implements Cache {
@@ -53,6 +71,9 @@ public class CacheCluster implements Cache {
 	private final ExecutorService es;
 	private final DB db;
 	private final Clock clock;
+	private final File snapshots;
+	private final int parallelScan;
+	private final long nsSlowQuery;
 	private final Map<Name, Cache> outputCaches = new ConcurrentHashMap<>();
 
 	/**
@@ -61,9 +82,35 @@ public class CacheCluster implements Cache {
 	private AtomicReference<Date> cacheValidity;
 
 	public CacheCluster(DB db, Clock clock) {
-		this.es = Executors.newSingleThreadExecutor(this::factory);
+		this(db, clock, null);
+	}
+
+	/**
+	 * @param snapshots the directory to keep {@link Snapshot}s in, null for
+	 *        none
+	 */
+	public CacheCluster(DB db, Clock clock, File snapshots) {
+		this(db, clock, snapshots, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param snapshots the directory to keep {@link Snapshot}s in, null for
+	 *        none
+	 * @param config the {@link Server#parallelScan} and
+	 *        {@link Server#slowQuery} thresholds used by the {@link CacheWorker}s
+	 */
+	public CacheCluster(DB db, Server config, File snapshots) {
+		this(db, config.clock, snapshots, config.parallelScan, config.slowQuery * 1000000L);
+	}
+
+	private CacheCluster(DB db, Clock clock, File snapshots, int parallelScan, long nsSlowQuery) {
+		this.es = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(CacheWorker.MAX_PENDING), this::factory);
 		this.db = db;
 		this.clock = clock;
+		this.snapshots = snapshots;
+		this.parallelScan = parallelScan;
+		this.nsSlowQuery = nsSlowQuery;
 		this.cacheValidity = new AtomicReference<>(Date.date(clock.time()));
 	}
 
@@ -97,7 +144,7 @@ public class CacheCluster implements Cache {
 		// might be a indexing request
 		if (criteria.isIndexRequest()) {
 			Name output = (Name) criteria.get(0).rvalues[0];
-			Cache cache = outputCaches.computeIfAbsent(output, (k) -> new CacheWorker(k, db, before));
+			Cache cache = outputCaches.computeIfAbsent(output, (k) -> new CacheWorker(k, db, before, clock.time(), snapshotOf(k), parallelScan, nsSlowQuery));
 			return cache.matchesFor(actor, criteria.without(Property.output));
 		}
 		// lookup request
@@ -115,13 +162,21 @@ public class CacheCluster implements Cache {
 		criteria = criteria.without(output);
 		if (outputs.count() == 1) {
 			Cache cache = cacheFor(outputs.first());
-			if (cache == null)
+			if (cache == null) {
+				Metrics.count(Counter.cacheMisses);
 				return readyFuture(Matches.none().exlcuded(outputs)); // there was just 1 output but it was not cached yet
+			}
+			Metrics.count(Counter.cacheHits);
 			return cache.matchesFor(actor, criteria);
 		}
 		final Criteria lookupCriteria = criteria;
 		final Names lookupOutputs = outputs;
-		return es.submit(() -> lookup(actor, lookupOutputs, lookupCriteria));
+		try {
+			return es.submit(() -> lookup(actor, lookupOutputs, lookupCriteria));
+		} catch (RejectedExecutionException e) {
+			Metrics.count(Counter.shedQueries);
+			return readyFuture(Matches.none().exlcuded(outputs));
+		}
 	}
 
 	/**
@@ -134,6 +189,7 @@ public class CacheCluster implements Cache {
 	 * s.
 	 */
 	private Matches lookup(User actor, Names outputs, Criteria criteria) {
+		long ns0 = System.nanoTime();
 		Criteria filterCriteria = criteria.without(Property.order, Property.length, Property.offset);
 		Names uncached = Names.empty();
 		Names erroneous = Names.empty();
@@ -141,22 +197,44 @@ public class CacheCluster implements Cache {
 		for (Name o : outputs) {
 			Cache cache = cacheFor(o);
 			if (cache == null) {
+				Metrics.count(Counter.cacheMisses);
 				uncached = uncached.add(o);
 			} else {
+				Metrics.count(Counter.cacheHits);
 				futures.put(o, cache.matchesFor(actor, filterCriteria));
 			}
 		}
+		long deadline = ns0 + CacheWorker.DEADLINE_NS;
 		List<Matches> outputMatches = new ArrayList<>();
 		for (java.util.Map.Entry<Name, Future<Matches>> o : futures.entrySet()) {
+			Future<Matches> f = o.getValue();
 			try {
-				outputMatches.add(o.getValue().get());
-			} catch (Exception e) {
-				erroneous.add(o.getKey());
+				Matches m = f.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				outputMatches.add(m);
+				erroneous = erroneous.union(m.excludedOutputs);
+			} catch (TimeoutException e) {
+				f.cancel(false);
+				Metrics.count(Counter.timedOutQueries);
+				erroneous = erroneous.add(o.getKey());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				erroneous = erroneous.add(o.getKey());
+			} catch (ExecutionException e) {
+				Metrics.count(Counter.failedQueries);
+				erroneous = erroneous.add(o.getKey());
 			}
 		}
 		Task[] mergedMatches = outputMatches.isEmpty() ? new Task[0] : fold(map(outputMatches, m -> m.tasks));
-		//TODO add erroneous
-		return CacheWorker.orderAndSlice(mergedMatches, criteria, cacheValidity.get()).exlcuded(uncached);
+		long ns1 = System.nanoTime();
+		Matches res = CacheWorker.orderAndSlice(mergedMatches, criteria, cacheValidity.get()).exlcuded(uncached.union(erroneous));
+		if (!Profile.isRequested(criteria))
+			return res;
+		List<Profile> parts = new ArrayList<>();
+		for (Matches m : outputMatches)
+			if (m.profile != null)
+				parts.add(m.profile);
+		return res.explained(new Profile("*", "merge "+futures.keySet(), mergedMatches.length, mergedMatches.length,
+				0L, 0L, ns1 - ns0, System.nanoTime() - ns1, parts.toArray(new Profile[0])));
 	}
 
 	@Override
@@ -173,6 +251,10 @@ public class CacheCluster implements Cache {
 		return readyFuture(null);
 	}
 
+	private File snapshotOf(Name output) {
+		return snapshots == null ? null : new File(snapshots, output.toString()+".cache");
+	}
+
 	private Cache cacheFor(Name output) {
 		return outputCaches.get(output);
 	}
@@ -9,19 +9,35 @@ import static se.jbee.track.model.Criteria.Operator.eq;
 import static se.jbee.track.model.Criteria.Property.length;
 import static se.jbee.track.util.Array.nextPowerOf2;
 
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 import se.jbee.track.db.DB;
-import se.jbee.track.db.DB.Read;
 import se.jbee.track.engine.Change;
 import se.jbee.track.engine.Changes;
 import se.jbee.track.engine.Changes.Entry;
@@ -35,6 +51,7 @@ import se.jbee.track.model.Criteria.Criterium;
 import se.jbee.track.model.Criteria.Operator;
 import se.jbee.track.model.Criteria.Property;
 import se.jbee.track.model.Date;
+import se.jbee.track.model.Gist;
 import se.jbee.track.model.ID.Type;
 import se.jbee.track.model.IDN;
 import se.jbee.track.model.Motive;
@@ -48,6 +65,9 @@ import se.jbee.track.model.Status;
 import se.jbee.track.model.Task;
 import se.jbee.track.model.User;
 import se.jbee.track.model.Version;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
+import se.jbee.track.util.Metrics.Timer;
 
 /**
  * Each worker is responsible for a single {@link Output}.
@@ -55,12 +75,81 @@ import se.jbee.track.model.Version;
  * This way there is only 1 thread working with the data what makes it trivial
  * to not have inconsistent states leaving the cache while updating the cached
  * entities in place.
+ *
+ * When given a snapshot file the index state is written to it on
+ * {@link #close()} and after every {@link #SAVE_AFTER} invalidations. A new worker for the same {@link Output} restores the
+ * indexes from the {@link Snapshot} and catches up by replaying the
+ * {@link Event}s written since. {@link Task}s are then loaded from the
+ * {@link DB} as lookups need them.
  */
 final class CacheWorker implements Cache {
 
+	/**
+	 * Invalidations might arrive out of order. Replaying the events of a
+	 * slightly longer period makes sure none is missed. Replaying one twice
+	 * does no harm.
+	 */
+	private static final long CATCH_UP_MARGIN = 60_000L;
+
+	/**
+	 * The maximum number of lookups and invalidations waiting to be done by a
+	 * worker.
+	 */
+	static final int MAX_PENDING = 64;
+
+	/**
+	 * The number of invalidations after which the snapshot is saved so that a
+	 * worker that is not closed does not leave an outdated one behind.
+	 */
+	static final int SAVE_AFTER = 1000;
+
+	/**
+	 * The time a caller waits for {@link Matches}. A lookup that is not done by
+	 * then is given up, whether it still waits for the worker or is filtering.
+	 */
+	static final long DEADLINE_NS = 2_000_000_000L;
+
+	/**
+	 * Filtering checks the deadline each time it went through this many tasks.
+	 */
+	private static final int DEADLINE_CHECK = 1024;
+
+	/**
+	 * Outputs with at least twice as many tasks are decoded in chunks of this
+	 * many tasks in parallel when building the indexes from the {@link DB}.
+	 */
+	static final int INIT_CHUNK = 512;
+
+	/**
+	 * The chunks are decoded by a pool of its own that uses at most half of the
+	 * 8 readers the {@link se.jbee.track.db.LMDB} environments allow so that
+	 * requests can still read while caches are build. It is shared by all
+	 * workers.
+	 */
+	private static final ForkJoinPool DECODER = new ForkJoinPool(min(4, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * The minimum number of tasks a segment of a parallel scan filters.
+	 */
+	private static final int SCAN_SEGMENT = 1024;
+
+	/**
+	 * Going through a candidate of an index costs about as much as this many
+	 * tasks of a scan as the tasks might need to be loaded and are not in
+	 * sequence.
+	 */
+	private static final int INDEX_COST = 4;
+
+	private static final Criterium NOT_ARCHIVED = new Criterium(Property.archived, eq, Boolean.FALSE);
+
 	private final Name output;
 	private final Date today;
-	private final ExecutorService work;
+	private final ThreadPoolExecutor work;
+	private final Queue<FutureTask<Void>> invalidations = new ConcurrentLinkedQueue<>();
+	private final DB db;
+	private final File snapshot;
+	private final int parallelScan;
+	private final long nsSlowQuery;
 
 	/**
 	 * The {@link IDN} order is also the order by reported {@link Date}.
@@ -68,6 +157,9 @@ final class CacheWorker implements Cache {
 	 */
 	private Task[] byIDN; // fix (growing at the end)
 	private int usage; // last index in use
+	private int unloaded; // number of tasks in use not yet loaded from DB
+	private int unsaved; // number of invalidations since the snapshot was saved
+	private long latest; // timestamp of the latest change included
 
 	// caches: best to worst filtering
 	private Map<Name, TaskSet> byUser = new HashMap<>(); // almost fix
@@ -88,19 +180,60 @@ final class CacheWorker implements Cache {
 	private EnumMap<Status, TaskSet> byStatus = new EnumMap<>(Status.class); // almost fix
 
 	// special caches:
-	private TaskSet[] byTemperature = new TaskSet[100]; // not fix, has to be recomputed every day
+	private TaskSet[] byTemperature = new TaskSet[101]; // not fix, has to be recomputed every day
+	private final TextIndex byGist = new TextIndex(); // almost fix
+	private final TextIndex byConclusion = new TextIndex(); // almost fix
+	private final Statistics stats;
+
+	/**
+	 * @param now the time the index state is build for
+	 * @param snapshot the file to restore the index state from and save it to,
+	 *        null to always build the state from the {@link DB}
+	 */
+	public CacheWorker(Name output, DB db, Date today, long now, File snapshot) {
+		this(output, db, today, now, snapshot, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
 
-	public CacheWorker(Name output, DB db, Date today) {
+	/**
+	 * @param parallelScan the number of tasks from which on a lookup that has
+	 *        to filter all tasks does so in parallel
+	 * @param nsSlowQuery lookups taking this long or longer are recorded as
+	 *        {@link Metrics#slowQuery(long, String)}
+	 */
+	public CacheWorker(Name output, DB db, Date today, long now, File snapshot, int parallelScan, long nsSlowQuery) {
 		this.output = output;
 		this.today = today;
+		this.db = db;
+		this.snapshot = snapshot;
+		this.parallelScan = parallelScan;
+		this.nsSlowQuery = nsSlowQuery;
 		this.byIDN = new Task[128]; // initial capacity
-		this.work = Executors.newSingleThreadExecutor(this::factory);
-		init(db);
+		this.stats = new Statistics(today);
+		this.work = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(MAX_PENDING), this::factory);
+		this.work.prestartCoreThread();
+		init(now);
+		Metrics.count(Counter.indexedOutputs);
 	}
 
+	/**
+	 * Waits a moment for the snapshot to be written.
+	 */
 	@Override
 	public void close() {
+		enqueue(() -> {
+			applyInvalidations();
+			save();
+			Metrics.add(Counter.indexedOutputs, -1);
+			Metrics.add(Counter.indexedTasks, -usage);
+			return null;
+		});
 		work.shutdown();
+		try {
+			work.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	private Thread factory(Runnable target) {
@@ -115,24 +248,244 @@ final class CacheWorker implements Cache {
 		return "cache:"+output.toString()+"["+usage+"]";
 	}
 
-	private void init(DB db) {
-		try (Read tx = db.read()) {
-			try (Repository rep = new DAO(tx)) {
+	private void init(long now) {
+		if (snapshot != null && snapshot.exists()) {
+			try {
+				restore();
+				catchUp(latest - CATCH_UP_MARGIN);
+				return;
+			} catch (IOException | RuntimeException e) {
+				clear(); // build it from scratch
+			}
+		}
+		latest = now;
+		int total;
+		try (Repository rep = new DAO(db)) {
+			Output o = rep.outputOrNull(output);
+			total = o == null ? 0 : o.tasks;
+			if (total < 2 * INIT_CHUNK) {
 				rep.tasks(output, (t) -> { index(t, TaskSet::init); return true; });
+				return;
 			}
 		}
+		Task[] tasks = new Task[total+1];
+		DECODER.invoke(new Decode(output, db, tasks, 1, total+1));
+		for (Task t : tasks) // in IDN order as TaskSet::init expects
+			if (t != null)
+				index(t, TaskSet::init);
+	}
+
+	/**
+	 * Decodes the {@link Task}s with {@link IDN}s from first (inclusive) to end
+	 * (exclusive) into the array at their {@link IDN} splitting the range
+	 * until it is a single chunk. Each chunk is read in its own transaction.
+	 *
+	 * Tasks added after the output was read are not included, they are
+	 * indexed when the changes arrive.
+	 */
+	private static final class Decode extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Name output;
+		private final DB db;
+		private final Task[] tasks;
+		private final int first;
+		private final int end;
+
+		Decode(Name output, DB db, Task[] tasks, int first, int end) {
+			this.output = output;
+			this.db = db;
+			this.tasks = tasks;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - first > INIT_CHUNK) {
+				int mid = (first + end) >>> 1;
+				invokeAll(new Decode(output, db, tasks, first, mid), new Decode(output, db, tasks, mid, end));
+				return;
+			}
+			try (Repository rep = new DAO(db)) {
+				rep.tasks(output, IDN.idn(first), IDN.idn(end), (t) -> {
+					if (t.id.num < tasks.length)
+						tasks[t.id.num] = t;
+					return true;
+				});
+			}
+		}
+	}
+
+	private void restore() throws IOException {
+		Snapshot.Reader in = new Snapshot.Reader(snapshot, output);
+		for (Map<Name, TaskSet> index : byName())
+			in.names(index);
+		for (Map<IDN, TaskSet> index : byIDNs())
+			in.idns(index);
+		in.enums(byPurpose, Purpose.values());
+		in.enums(byMotive, Motive.values());
+		in.enums(byStatus, Status.values());
+		in.text(byGist);
+		in.text(byConclusion);
+		latest = in.timestamp;
+		usage = in.usage;
+		unloaded = usage;
+		byIDN = new Task[max(byIDN.length, nextPowerOf2(usage+1))];
+		Metrics.add(Counter.indexedTasks, usage);
+	}
+
+	/**
+	 * Writes the index state to the snapshot file. The temperature is not
+	 * included as it changes every day.
+	 */
+	private void save() {
+		unsaved = 0;
+		if (snapshot == null)
+			return;
+		try (Snapshot.Writer out = new Snapshot.Writer(snapshot, output, latest, usage)) {
+			for (Map<Name, TaskSet> index : byName())
+				out.names(index);
+			for (Map<IDN, TaskSet> index : byIDNs())
+				out.idns(index);
+			out.enums(byPurpose);
+			out.enums(byMotive);
+			out.enums(byStatus);
+			out.text(byGist);
+			out.text(byConclusion);
+			out.commit();
+		} catch (IOException e) {
+			// next worker builds from the DB
+		}
+	}
+
+	private void clear() {
+		for (Map<Name, TaskSet> index : byName())
+			index.clear();
+		for (Map<IDN, TaskSet> index : byIDNs())
+			index.clear();
+		byPurpose.clear();
+		byMotive.clear();
+		byStatus.clear();
+		byGist.clear();
+		byConclusion.clear();
+		Arrays.fill(byIDN, null);
+		stats.clear();
+		Metrics.add(Counter.indexedTasks, -usage);
+		usage = 0;
+		unloaded = 0;
+	}
+
+	private List<Map<Name, TaskSet>> byName() {
+		return asList(byUser, byMaintainer, bySolver, byReporter, byWatcher, byArea, byVersion, byCategory);
+	}
+
+	private List<Map<IDN, TaskSet>> byIDNs() {
+		return asList(byBasis, byOrigin, bySerial);
+	}
+
+	/**
+	 * Indexes the {@link Task}s changed by {@link Event}s since the given time
+	 * once more.
+	 */
+	private void catchUp(long since) {
+		SortedSet<IDN> changed = new TreeSet<>();
+		try (Repository rep = new DAO(db)) {
+			rep.events(since, (e) -> {
+				for (Event.Transition t : e) {
+					IDN idn = t.entity.taskIDN(output);
+					if (idn != null)
+						changed.add(idn);
+				}
+				latest = max(latest, e.timestamp);
+				return true;
+			});
+			for (IDN idn : changed) // in order so that new tasks are added at the end
+				reindex(rep.task(output, idn));
+		}
+	}
+
+	private void reindex(Task t) {
+		final IDN id = t.id;
+		if (id.num <= usage) {
+			if (byIDN[id.num] == null)
+				unloaded--;
+			unindex(id);
+		}
+		index(t, TaskSet::add);
+	}
+
+	private void unindex(IDN id) {
+		for (Map<Name, TaskSet> index : byName())
+			for (TaskSet set : index.values())
+				set.remove(id);
+		for (Map<IDN, TaskSet> index : byIDNs())
+			for (TaskSet set : index.values())
+				set.remove(id);
+		for (TaskSet set : byPurpose.values())
+			set.remove(id);
+		for (TaskSet set : byMotive.values())
+			set.remove(id);
+		for (TaskSet set : byStatus.values())
+			set.remove(id);
+		for (TaskSet set : byTemperature)
+			if (set != null)
+				set.remove(id);
+		byGist.removeAll(id);
+		byConclusion.removeAll(id);
+	}
+
+	/**
+	 * Makes sure all {@link Task}s in the given set are loaded.
+	 */
+	private void load(TaskSet set) {
+		if (unloaded == 0)
+			return;
+		try (Repository rep = new DAO(db)) {
+			for (int i = 0; i <= set.usage && unloaded > 0; i++) {
+				int num = set.members[i];
+				if (num != 0 && byIDN[num] == null)
+					loaded(rep.task(output, IDN.idn(num)));
+			}
+		}
+	}
+
+	/**
+	 * Makes sure all {@link Task}s are loaded.
+	 */
+	private void loadAll() {
+		if (unloaded == 0)
+			return;
+		try (Repository rep = new DAO(db)) {
+			rep.tasks(output, (t) -> {
+				if (byIDN[t.id.num] == null)
+					loaded(t);
+				return unloaded > 0;
+			});
+		}
+	}
+
+	private void loaded(Task t) {
+		put(t);
+		unloaded--;
+		if (!t.archived)
+			tasks(byTemperature, t.temperature(today)).add(t.id);
 	}
 
 	private void index(Task t, BiConsumer<TaskSet, IDN> f) {
 		final IDN id = t.id;
 		int idn = id.num;
 		if (idn >= byIDN.length) {
-			Task[] tmp = new Task[nextPowerOf2(idn)];
-			arraycopy(tmp, 0, tmp, 0, usage+1);
+			Task[] tmp = new Task[nextPowerOf2(idn+1)];
+			arraycopy(byIDN, 0, tmp, 0, usage+1);
 			byIDN = tmp;
 		}
-		usage = Math.max(idn, usage);
-		byIDN[idn] = t;
+		if (idn > usage) {
+			Metrics.add(Counter.indexedTasks, idn - usage);
+			usage = idn;
+		}
+		put(t);
 		if (!t.archived) {
 			for (Name n : t.participants)
 				f.accept(tasks(byUser, n), id);
@@ -155,6 +508,8 @@ final class CacheWorker implements Cache {
 			f.accept(tasks(bySerial, t.serial), id);
 			f.accept(tasks(byBasis, t.basis), id);
 			f.accept(tasks(byOrigin, t.origin), id);
+			byGist.add(t.gist, id);
+			byConclusion.add(t.conclusion, id);
 		}
 	}
 
@@ -173,55 +528,265 @@ final class CacheWorker implements Cache {
 		return map[idx];
 	}
 
+	/**
+	 * Lookups are rejected right away when the queue of the worker is full.
+	 * A lookup not done by its deadline has no matches.
+	 */
 	@Override
 	public Future<Matches> matchesFor(User actor, Criteria criteria) {
-		return work.submit(() -> lookup(criteria));
+		final long nsQueued = System.nanoTime();
+		final long deadline = nsQueued + DEADLINE_NS;
+		try {
+			return work.submit(() -> {
+				applyInvalidations();
+				long nsStart = System.nanoTime();
+				Metrics.record(Timer.cacheQueue, nsStart - nsQueued);
+				if (nsStart > deadline) { // the caller has given up already
+					Metrics.count(Counter.shedQueries);
+					return unavailable();
+				}
+				try {
+					return lookup(criteria, deadline);
+				} catch (CancellationException e) {
+					Metrics.count(Counter.timedOutQueries);
+					return unavailable();
+				} finally {
+					Metrics.since(Timer.cacheLookup, nsStart);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Metrics.count(Counter.shedQueries);
+			return CompletableFuture.completedFuture(unavailable());
+		}
+	}
+
+	private Matches unavailable() {
+		return Matches.none().exlcuded(Names.empty().add(output));
 	}
 
+	/**
+	 * Invalidations are never rejected as the indexes would miss changes and
+	 * never wait as they are published by a writing transaction. They are kept
+	 * in their own unbounded lane that the worker applies before each lookup.
+	 * When the worker's queue has room a task to apply them is added too.
+	 */
 	@Override
 	public Future<Void> invalidate(Changes changes) {
 		//TODO reordering is a hard problem. better: connect the cache directly to transactions so that they push changes as soon as they are happen in order
-		return work.submit(() -> { update(changes); return null; } );
+		FutureTask<Void> f = new FutureTask<>(() -> { update(changes); return null; });
+		invalidations.add(f);
+		try {
+			work.execute(this::applyInvalidations);
+		} catch (RejectedExecutionException e) {
+			// applied before the next lookup
+		}
+		return f;
+	}
+
+	private void applyInvalidations() {
+		FutureTask<Void> f = invalidations.poll();
+		while (f != null) {
+			f.run();
+			unsaved++;
+			f = invalidations.poll();
+		}
+		if (unsaved >= SAVE_AFTER)
+			save();
+	}
+
+	/**
+	 * Adds work that must not be rejected because the queue is full. The
+	 * worker's thread is started when it is constructed so that work put into
+	 * the queue directly is done. This may wait for room in the queue so it
+	 * must not be used by a writing transaction.
+	 */
+	private <T> Future<T> enqueue(Callable<T> task) {
+		FutureTask<T> f = new FutureTask<>(task);
+		try {
+			work.execute(f);
+		} catch (RejectedExecutionException e) {
+			if (work.isShutdown())
+				throw e;
+			try {
+				work.getQueue().put(f);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				f.cancel(false);
+			}
+		}
+		return f;
 	}
 
 	/**
-	 * As soon the set of potential hits has been narrowed down to less then
-	 * about 100 we use the remaining criteria to filter that list of potential
-	 * matches. Merging different sets of potential matches is most likely more
-	 * expensive. In any case it creates more short lived objects => garbage.
+	 * A {@link Plan} decides if the candidates are taken from an index or all
+	 * tasks are scanned. Either way the candidates are filtered by all
+	 * criteria, most selective first.
+	 *
+	 * Each lookup is profiled. The {@link Profile} is added to the
+	 * {@link Matches} when requested and recorded should the lookup be slow.
+	 *
+	 * @throws CancellationException when filtering is not done by the deadline
 	 */
-	private Matches lookup(Criteria criteria) {
+	Matches lookup(Criteria criteria, long deadline) {
+		long ns0 = System.nanoTime();
 		// 0. if there is not a single criteria return all
 		if (criteria.count() == 0) {
+			loadAll();
 			return new Matches(copyOfRange(byIDN, 1, usage+1), usage);
 		}
-		// 1. find the "eq" selector that yields the smallest set
+		Plan plan = plan(criteria);
+		long ns1 = System.nanoTime();
+		int candidates;
+		Task[] matches;
+		long ns2;
+		if (!plan.isScan()) {
+			load(plan.candidates);
+			ns2 = System.nanoTime();
+			candidates = plan.candidates.size();
+			matches = filter(plan.candidates, plan.filter, deadline);
+		} else {
+			loadAll();
+			ns2 = System.nanoTime();
+			candidates = usage;
+			matches = filter(byIDN, usage+1, plan.filter, deadline);
+		}
+		long ns3 = System.nanoTime();
+		Matches res = orderAndSlice(matches, criteria, today);
+		long ns4 = System.nanoTime();
+		Profile profile = new Profile(output.toString(), plan.toString(), candidates, matches.length, ns1-ns0, ns2-ns1, ns3-ns2, ns4-ns3);
+		if (ns4 - ns0 >= nsSlowQuery)
+			Metrics.slowQuery(ns4 - ns0, criteria+" "+profile);
+		return Profile.isRequested(criteria) ? res.explained(profile) : res;
+	}
+
+	/**
+	 * Picks the criterium with the smallest index as driver unless going
+	 * through its candidates is more expensive than a scan. Indexes only
+	 * contain tasks not archived. So a scan of a lookup that could have used
+	 * an index also skips archived tasks to give the same matches.
+	 *
+	 * The fraction of tasks a criterium matches is known from the index sizes
+	 * (for eq, in, neq and nin of indexed properties) or estimated from the
+	 * {@link Statistics} once all tasks are loaded. Otherwise the static
+	 * {@link Property#selectivity} is used.
+	 */
+	Plan plan(Criteria criteria) {
+		final int n = criteria.count();
+		final int tasks = usage;
+		Criterium driver = null;
 		TaskSet candidates = null;
-		Criterium selector = null;
-		int i = 1;
-		while (i < criteria.count() && criteria.get(i).op == eq) {
+		int driverSize = Integer.MAX_VALUE;
+		double[] costs = new double[n];
+		double estimate = tasks;
+		for (int i = 0; i < n; i++) {
 			Criterium c = criteria.get(i);
-			Map<?, TaskSet> table = select(c.left);
-			if (table != null) {
-				TaskSet index = table.get(c.rvalues[0]);
-				if (index == null)
-					return Matches.none(); // there are no matches for this selector - we are done
-				if (candidates == null || index.size() < candidates.size()) {
-					selector = c;
-					candidates = index;
-				}
+			if (c.left.isResultProperty())
+				continue;
+			int size = indexed(c);
+			if (size >= 0 && size < driverSize) {
+				driver = c;
+				driverSize = size;
 			}
-			i++;
+			double fraction = size >= 0 ? fraction(size, tasks) : estimate(c, tasks);
+			estimate *= fraction;
+			costs[i] = fraction * cost(c);
+		}
+		boolean index = driver != null && (long) driverSize * INDEX_COST < tasks;
+		if (index)
+			candidates = candidates(driver);
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> {
+			boolean ra = criteria.get(a).left.isResultProperty();
+			boolean rb = criteria.get(b).left.isResultProperty();
+			return ra != rb ? (ra ? 1 : -1) : Double.compare(costs[a], costs[b]);
+		});
+		boolean skipArchived = driver != null && !index;
+		Criterium[] filter = new Criterium[skipArchived ? n+1 : n];
+		int j = 0;
+		if (skipArchived)
+			filter[j++] = NOT_ARCHIVED;
+		for (int i : order)
+			filter[j++] = criteria.get(i);
+		return new Plan(index ? driver : null, candidates, new Criteria(filter), tasks, (int) Math.round(estimate));
+	}
+
+	/**
+	 * @return the number of candidates of the index answering the criterium or
+	 *         -1 if it is not answered by an index
+	 */
+	private int indexed(Criterium c) {
+		if (c.isPropertyComparison() || c.op != eq && c.op != Operator.in)
+			return -1;
+		TextIndex text = text(c.left);
+		if (text != null) {
+			if (c.rvalues.length != 1)
+				return -1;
+			TaskSet set = text.candidates((Gist) c.rvalues[0]);
+			return set == null ? -1 : set.size();
+		}
+		Map<?, TaskSet> table = select(c.left);
+		if (table == null)
+			return -1;
+		int res = 0;
+		for (Object v : c.rvalues) {
+			TaskSet set = table.get(key(v));
+			if (set != null)
+				res += set.size();
+		}
+		return res;
+	}
+
+	private TaskSet candidates(Criterium c) {
+		TextIndex text = text(c.left);
+		if (text != null)
+			return text.candidates((Gist) c.rvalues[0]);
+		Map<?, TaskSet> table = select(c.left);
+		if (c.rvalues.length == 1) {
+			TaskSet set = table.get(key(c.rvalues[0]));
+			return set == null ? new TaskSet() : set;
 		}
-		if (selector != null) {
-			return orderAndSlice(filter(candidates, criteria), criteria, today);
+		boolean[] member = new boolean[usage+1];
+		for (Object v : c.rvalues) {
+			TaskSet set = table.get(key(v));
+			if (set != null)
+				for (int i = 0; i <= set.usage; i++)
+					member[set.members[i]] = true;
 		}
-		// 2. or (if no eq available) use the first "in" clause
+		TaskSet res = new TaskSet();
+		for (int i = 1; i <= usage; i++)
+			if (member[i])
+				res.init(i);
+		return res;
+	}
+
+	/**
+	 * Numbers are given as {@link Integer}s but the indexes use {@link IDN}s.
+	 */
+	private static Object key(Object value) {
+		return value instanceof Integer ? IDN.idn((Integer) value) : value;
+	}
 
-		// 3. or use a range (serial, heat, temperature)
+	private static double fraction(int matches, int tasks) {
+		return tasks == 0 ? 1d : min(1d, (double) matches / tasks);
+	}
+
+	private double estimate(Criterium c, int tasks) {
+		if (!c.isPropertyComparison() && (c.op == Operator.neq || c.op == Operator.nin) && select(c.left) != null) {
+			Criterium positive = new Criterium(c.left, c.op == Operator.neq ? eq : Operator.in, c.rvalues);
+			return 1d - fraction(indexed(positive), tasks);
+		}
+		double fraction = unloaded == 0 ? stats.fraction(c) : -1d; // restored tasks are not counted until loaded
+		return fraction >= 0d ? fraction : 1d - c.left.selectivity / 100d;
+	}
 
-		// 4. or just plain filter every known task ;(
-		return orderAndSlice(filter(byIDN, usage+1, criteria), criteria, today);
+	/**
+	 * Texts are more expensive to match than names and names sets more
+	 * expensive than single values.
+	 */
+	private static int cost(Criterium c) {
+		return c.left.type == Criteria.ValueType.text ? 4 : c.left.isSetValue() ? 2 : 1;
 	}
 
 	static Matches orderAndSlice(Task[] matches, Criteria criteria, Date today) {
@@ -283,26 +848,131 @@ final class CacheWorker implements Cache {
 		return ((T)a).compareTo((T)b);
 	}
 
-	private Task[] filter(TaskSet set, Criteria criteria) {
+	private Task[] filter(TaskSet set, Criteria criteria, long deadline) {
 		final int size = set.size();
 		return criteria.filter(new Iterator<Task>() {
 
 			int i = 0;
+			int n = 0;
 			@Override
 			public Task next() {
 				while (set.members[i] == 0) i++; // skip gaps
+				if (++n % DEADLINE_CHECK == 0)
+					checkDeadline(deadline);
 				return byIDN[set.members[i++]];
 			}
 
 			@Override
 			public boolean hasNext() {
-				return i < size-1;
+				return n < size;
 			}
 		}, today);
 	}
 
-	private Task[] filter(Task[] set, int size, Criteria criteria) {
-		return criteria.filter(asList(set).subList(1, size).iterator(), today);
+	private Task[] filter(Task[] set, int size, Criteria criteria, long deadline) {
+		if (size - 1 >= parallelScan)
+			return filterParallel(set, size, criteria, deadline);
+		return criteria.filter(new Iterator<Task>() {
+
+			int i = 1;
+			@Override
+			public Task next() {
+				if (i % DEADLINE_CHECK == 0)
+					checkDeadline(deadline);
+				return set[i++];
+			}
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+		}, today);
+	}
+
+	private static void checkDeadline(long deadline) {
+		if (System.nanoTime() > deadline)
+			throw new CancellationException("Lookup not done by its deadline");
+	}
+
+	/**
+	 * Splits the tasks into segments that are filtered by the common
+	 * {@link ForkJoinPool}. The matches of each segment are joined in segment
+	 * order so the result is in {@link IDN} order as when filtered
+	 * sequentially. Each segment checks the deadline before it is filtered.
+	 */
+	private Task[] filterParallel(Task[] set, int size, Criteria criteria, long deadline) {
+		int segment = max(SCAN_SEGMENT, (size - 1) / (ForkJoinPool.commonPool().getParallelism() * 4));
+		Task[][] matches = new Task[(size - 1 + segment - 1) / segment][];
+		ForkJoinPool.commonPool().invoke(new Scan(set, size, segment, criteria, today, deadline, matches, 0, matches.length));
+		int total = 0;
+		for (Task[] m : matches)
+			total += m.length;
+		Task[] res = new Task[total];
+		int i = 0;
+		for (Task[] m : matches) {
+			arraycopy(m, 0, res, i, m.length);
+			i += m.length;
+		}
+		Metrics.count(Counter.parallelScans);
+		return res;
+	}
+
+	/**
+	 * Filters the segments from first (inclusive) to end (exclusive) splitting
+	 * them until it is a single segment.
+	 */
+	private static final class Scan extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Task[] set;
+		private final int size;
+		private final int segment;
+		private final Criteria criteria;
+		private final Date today;
+		private final long deadline;
+		private final Task[][] matches;
+		private final int first;
+		private final int end;
+
+		Scan(Task[] set, int size, int segment, Criteria criteria, Date today, long deadline, Task[][] matches, int first, int end) {
+			this.set = set;
+			this.size = size;
+			this.segment = segment;
+			this.criteria = criteria;
+			this.today = today;
+			this.deadline = deadline;
+			this.matches = matches;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - first > 1) {
+				int mid = (first + end) >>> 1;
+				invokeAll(new Scan(set, size, segment, criteria, today, deadline, matches, first, mid),
+						new Scan(set, size, segment, criteria, today, deadline, matches, mid, end));
+				return;
+			}
+			checkDeadline(deadline);
+			int from = 1 + first * segment;
+			int to = min(size, from + segment);
+			Task[] res = new Task[to - from];
+			int n = 0;
+			for (int i = from; i < to; i++)
+				if (criteria.matches(set[i], today))
+					res[n++] = set[i];
+			matches[first] = n == res.length ? res : Arrays.copyOf(res, n);
+		}
+	}
+
+	private TextIndex text(Property prop) {
+		switch (prop) {
+		case gist: return byGist;
+		case conclusion: return byConclusion;
+		default: return null;
+		}
 	}
 
 	private Map<?, TaskSet> select(Property prop) {
@@ -340,6 +1010,7 @@ final class CacheWorker implements Cache {
 	 */
 	@SuppressWarnings("unchecked")
 	private void update(Changes changes) {
+		latest = max(latest, changes.timestamp);
 		for (Changes.Entry<?> e : changes)
 			if (e.type() == Type.Task)
 				updateTask((Entry<Task>) e);
@@ -362,13 +1033,20 @@ final class CacheWorker implements Cache {
 			switch (op) {
 			case emphasise: // emphasis up/down
 				if (before.temperature(today) != after.temperature(today)) {
-					byTemperature[before.temperature(today)].remove(idn);
+					tasks(byTemperature, before.temperature(today)).remove(idn);
 					tasks(byTemperature, after.temperature(today)).add(idn);
 				}
 				break;
+			case rephrase: // change of gist
+				byGist.remove(before.gist, idn);
+				if (!after.archived) // indexes do not contain archived tasks
+					byGist.add(after.gist, idn);
+				break;
 			case resolve: // solving
 			case absolve:
 			case dissolve:
+				byConclusion.remove(before.conclusion, idn);
+				byConclusion.add(after.conclusion, idn);
 				tasks(byStatus, before.status).remove(idn);
 				tasks(byStatus, after.status).add(idn);
 				tasks(bySolver, after.solver).add(idn);
@@ -411,8 +1089,23 @@ final class CacheWorker implements Cache {
 				break;
 			}
 		}
-		if (after.version() > byIDN[idn.num].version())
-			byIDN[idn.num] = after;
+		Task current = byIDN[idn.num];
+		if (current == null) {
+			loaded(after);
+		} else if (after.version() > current.version()) {
+			put(after);
+		}
+	}
+
+	/**
+	 * Sets the task at its {@link IDN} keeping the {@link Statistics} in line.
+	 */
+	private void put(Task t) {
+		Task replaced = byIDN[t.id.num];
+		if (replaced != null)
+			stats.remove(replaced);
+		byIDN[t.id.num] = t;
+		stats.add(t);
 	}
 
 	private static void removeMissing(Names a, Names b, Map<Name, TaskSet> map, IDN idn) {
@@ -453,12 +1146,15 @@ final class CacheWorker implements Cache {
 		 * being in the set.
 		 */
 		void init(IDN task) {
+			init(task.num);
+		}
+
+		private void init(int idn) {
 			if (usage >= members.length-1) {
 				short[] tmp = new short[members.length * 2];
 				System.arraycopy(members, 0, tmp, 0, members.length);
 				members = tmp;
 			}
-			int idn = task.num;
 			members[++usage] = (short) idn;
 			size++;
 			maxIDN = max(maxIDN, idn);
@@ -543,6 +1239,23 @@ final class CacheWorker implements Cache {
 			}
 		}
 
+		/**
+		 * Writes the members without gaps.
+		 */
+		void writeTo(DataOutput out) throws IOException {
+			out.writeShort(size);
+			for (int i = 0; i <= usage; i++)
+				if (members[i] != 0)
+					out.writeShort(members[i]);
+		}
+
+		static TaskSet readFrom(ByteBuffer in) {
+			TaskSet res = new TaskSet();
+			for (int n = in.getShort(); n > 0; n--)
+				res.init(in.getShort());
+			return res;
+		}
+
 	}
 
 	private static void sort(Task[] tasks, final Property[] orders, final Date today) {
@@ -2,22 +2,40 @@ package se.jbee.track.cache;
 
 import static se.jbee.track.util.Array.indexOf;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import se.jbee.track.model.Name;
 import se.jbee.track.model.Names;
 import se.jbee.track.model.Output;
 import se.jbee.track.model.Task;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
 
 public final class Matches {
 
-	public static Matches matches(Future<Matches> matches) {
+	/**
+	 * Waits at most until the deadline of a lookup. A lookup not done by then
+	 * is cancelled. Then, or should the lookup fail, there are no matches and
+	 * the outputs looked up are excluded.
+	 *
+	 * @param outputs the outputs looked up
+	 */
+	public static Matches matches(Future<Matches> matches, Names outputs) {
 		try {
-			return matches.get();
-		} catch (Exception e) {
-			e.printStackTrace();
-			return Matches.none();
+			return matches.get(CacheWorker.DEADLINE_NS, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			matches.cancel(false);
+			Metrics.count(Counter.timedOutQueries);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | CancellationException e) {
+			Metrics.count(Counter.failedQueries);
 		}
+		return Matches.none().exlcuded(outputs);
 	}
 
 	public static Matches none() {
@@ -30,23 +48,34 @@ public final class Matches {
 	 * The set of outputs that were not included in the matches even though
 	 * the user has an affiliation with them. Usually the reason is that a
 	 * {@link Output} is not indexed yet. This has to be requested by the user
-	 * explicitly.
+	 * explicitly. Outputs whose cache was overloaded, did not answer in time
+	 * or failed are excluded as well so that the matches are partial instead
+	 * of late.
 	 */
 	public final Names excludedOutputs;
+	/**
+	 * How the matches were looked up, null unless it was requested.
+	 */
+	public final Profile profile;
 
 	//TODO includedOutputs
 
 	public Matches(Task[] matches, int totalMatches) {
-		this(matches, totalMatches, Names.empty());
+		this(matches, totalMatches, Names.empty(), null);
 	}
-	private Matches(Task[] matches, int totalMatches, Names excludedOutputs) {
+	private Matches(Task[] matches, int totalMatches, Names excludedOutputs, Profile profile) {
 		this.tasks = matches;
 		this.total = totalMatches;
 		this.excludedOutputs = excludedOutputs;
+		this.profile = profile;
 	}
 
 	public Matches exlcuded(Names outputs) {
-		return new Matches(tasks, total, outputs);
+		return new Matches(tasks, total, outputs, profile);
+	}
+
+	public Matches explained(Profile profile) {
+		return new Matches(tasks, total, excludedOutputs, profile);
 	}
 
 	public Output latestOutput() {
@@ -0,0 +1,52 @@
+package se.jbee.track.cache;
+
+import se.jbee.track.cache.CacheWorker.TaskSet;
+import se.jbee.track.model.Criteria;
+import se.jbee.track.model.Criteria.Criterium;
+
+/**
+ * How a {@link CacheWorker} answers a lookup.
+ *
+ * The candidates are either the tasks in the index of the {@link #driver} or
+ * all tasks of the output. The candidates are then checked against the
+ * {@link #filter} criteria in the order given, most selective first.
+ *
+ * Plans are made by the {@link CacheWorker} using the sizes of its indexes and
+ * a sample of its tasks for criteria not answered by an index.
+ */
+final class Plan {
+
+	/**
+	 * The criterium whose index gives the candidates or null for a scan of all
+	 * tasks
+	 */
+	final Criterium driver;
+	final TaskSet candidates;
+	final Criteria filter;
+	/**
+	 * The number of tasks in the output when planned
+	 */
+	final int tasks;
+	/**
+	 * The expected number of matches
+	 */
+	final int estimate;
+
+	Plan(Criterium driver, TaskSet candidates, Criteria filter, int tasks, int estimate) {
+		this.driver = driver;
+		this.candidates = candidates;
+		this.filter = filter;
+		this.tasks = tasks;
+		this.estimate = estimate;
+	}
+
+	boolean isScan() {
+		return candidates == null;
+	}
+
+	@Override
+	public String toString() {
+		return (isScan() ? "scan "+tasks : "index "+driver+" "+candidates.size()+"/"+tasks)
+				+ " filter "+filter+" ~"+estimate;
+	}
+}
@@ -0,0 +1,74 @@
+package se.jbee.track.cache;
+
+import se.jbee.track.model.Criteria;
+import se.jbee.track.model.Criteria.Property;
+
+/**
+ * How a lookup was done and how long each step took. A {@link Matches} carries
+ * its profile when the {@link Criteria} contain <code>[explain=yes]</code>.
+ *
+ * A lookup over multiple outputs has the profile of each output as its
+ * {@link #parts}.
+ */
+public final class Profile {
+
+	public static boolean isRequested(Criteria criteria) {
+		int i = criteria.indexOf(Property.explain);
+		return i >= 0 && Boolean.TRUE.equals(criteria.get(i).rvalues[0]);
+	}
+
+	/**
+	 * The output looked up or * for multiple
+	 */
+	public final String output;
+	/**
+	 * The index used and the order the criteria were filtered in
+	 */
+	public final String plan;
+	/**
+	 * The number of tasks filtered
+	 */
+	public final int candidates;
+	/**
+	 * The number of tasks matching before the result was sliced
+	 */
+	public final int matches;
+	public final long nsPlan;
+	public final long nsLoad;
+	public final long nsFilter;
+	public final long nsOrder;
+	public final Profile[] parts;
+
+	public Profile(String output, String plan, int candidates, int matches, long nsPlan, long nsLoad, long nsFilter, long nsOrder, Profile... parts) {
+		this.output = output;
+		this.plan = plan;
+		this.candidates = candidates;
+		this.matches = matches;
+		this.nsPlan = nsPlan;
+		this.nsLoad = nsLoad;
+		this.nsFilter = nsFilter;
+		this.nsOrder = nsOrder;
+		this.parts = parts;
+	}
+
+	public long nsTotal() {
+		return nsPlan + nsLoad + nsFilter + nsOrder;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder();
+		res.append(output).append(": ").append(plan)
+			.append("\n  ").append(candidates).append(" candidates, ").append(matches).append(" matches")
+			.append("\n  plan ").append(ms(nsPlan)).append(", load ").append(ms(nsLoad))
+			.append(", filter ").append(ms(nsFilter)).append(", order ").append(ms(nsOrder))
+			.append(", total ").append(ms(nsTotal()));
+		for (Profile part : parts)
+			res.append("\n  ").append(part.toString().replace("\n", "\n  "));
+		return res.toString();
+	}
+
+	private static String ms(long ns) {
+		return String.format("%.3f ms", ns / 1000000d);
+	}
+}
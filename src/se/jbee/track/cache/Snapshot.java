@@ -0,0 +1,152 @@
+package se.jbee.track.cache;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import se.jbee.track.cache.CacheWorker.TaskSet;
+import se.jbee.track.engine.Event;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Name;
+
+/**
+ * The binary file format of the index state of a {@link CacheWorker}.
+ *
+ * A snapshot starts with a header of magic number, format version, the
+ * {@link Name} of the output, the timestamp of the latest {@link Event} known
+ * to be included and the highest {@link IDN} in use. It follows a sequence of
+ * indexes, each a count of entries with key and {@link TaskSet}. The order of
+ * indexes is given by the {@link CacheWorker}.
+ *
+ * A snapshot is read from a memory mapped file. Should the file be from
+ * another output or of another format version it is not read at all.
+ */
+final class Snapshot {
+
+	private static final int MAGIC = 0x76697a63; // "vizc"
+	private static final byte VERSION = 1;
+
+	/**
+	 * Writes to a temporary file that replaces the snapshot file on
+	 * {@link #commit()}. Otherwise the existing snapshot is not touched.
+	 */
+	static final class Writer implements AutoCloseable {
+
+		private final File file;
+		private final File tmp;
+		private final DataOutputStream out;
+
+		Writer(File file, Name output, long timestamp, int usage) throws IOException {
+			this.file = file;
+			this.tmp = new File(file.getPath()+".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			name(output);
+			out.writeLong(timestamp);
+			out.writeInt(usage);
+		}
+
+		void names(Map<Name, TaskSet> index) throws IOException {
+			out.writeInt(index.size());
+			for (Entry<Name, TaskSet> e : index.entrySet()) {
+				name(e.getKey());
+				e.getValue().writeTo(out);
+			}
+		}
+
+		void idns(Map<IDN, TaskSet> index) throws IOException {
+			out.writeInt(index.size());
+			for (Entry<IDN, TaskSet> e : index.entrySet()) {
+				out.writeInt(e.getKey().num);
+				e.getValue().writeTo(out);
+			}
+		}
+
+		<E extends Enum<E>> void enums(EnumMap<E, TaskSet> index) throws IOException {
+			out.writeInt(index.size());
+			for (Entry<E, TaskSet> e : index.entrySet()) {
+				out.writeByte(e.getKey().ordinal());
+				e.getValue().writeTo(out);
+			}
+		}
+
+		void text(TextIndex index) throws IOException {
+			index.writeTo(out);
+		}
+
+		private void name(Name name) throws IOException {
+			byte[] bytes = name.readonlyBytes();
+			out.writeShort(bytes.length);
+			out.write(bytes);
+		}
+
+		void commit() throws IOException {
+			out.close();
+			Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+			tmp.delete();
+		}
+	}
+
+	static final class Reader {
+
+		final long timestamp;
+		final int usage;
+		private final ByteBuffer in;
+
+		Reader(File file, Name output) throws IOException {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				this.in = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (in.getInt() != MAGIC || in.get() != VERSION)
+				throw new IOException("Not a snapshot of the current format: "+file);
+			if (!name().equalTo(output))
+				throw new IOException("Not a snapshot of output "+output+": "+file);
+			this.timestamp = in.getLong();
+			this.usage = in.getInt();
+		}
+
+		void names(Map<Name, TaskSet> index) {
+			for (int n = in.getInt(); n > 0; n--)
+				index.put(name(), TaskSet.readFrom(in));
+		}
+
+		void idns(Map<IDN, TaskSet> index) {
+			for (int n = in.getInt(); n > 0; n--)
+				index.put(IDN.idn(in.getInt()), TaskSet.readFrom(in));
+		}
+
+		<E extends Enum<E>> void enums(EnumMap<E, TaskSet> index, E[] values) {
+			for (int n = in.getInt(); n > 0; n--)
+				index.put(values[in.get()], TaskSet.readFrom(in));
+		}
+
+		void text(TextIndex index) {
+			index.readFrom(in);
+		}
+
+		private Name name() {
+			byte[] bytes = new byte[in.getShort()];
+			in.get(bytes);
+			return Name.fromBytes(bytes);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package se.jbee.track.cache;
+
+import static se.jbee.track.model.Criteria.Property.archived;
+import static se.jbee.track.model.Criteria.Property.emphasis;
+import static se.jbee.track.model.Criteria.Property.exploitable;
+import static se.jbee.track.model.Criteria.Property.heat;
+import static se.jbee.track.model.Criteria.Property.reported;
+import static se.jbee.track.model.Criteria.Property.resolved;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import se.jbee.track.model.Criteria.Criterium;
+import se.jbee.track.model.Criteria.Property;
+import se.jbee.track.model.Date;
+import se.jbee.track.model.Task;
+
+/**
+ * Histograms of the values of the properties a {@link CacheWorker} has no
+ * index for. Dates are counted per day, numbers and constants per value.
+ *
+ * The histograms count the tasks the worker has loaded and are updated
+ * whenever a task is loaded, indexed or replaced by a changed version. A
+ * {@link Plan} uses them to estimate the fraction of tasks a criterium matches
+ * without looking at the tasks.
+ *
+ * Like the {@link CacheWorker} owning them the statistics are not thread-safe.
+ */
+final class Statistics {
+
+	private static final Property[] PROPERTIES = { emphasis, heat, reported, resolved, exploitable, archived };
+
+	private final Date today;
+	private final EnumMap<Property, TreeMap<Comparable<?>, int[]>> histograms = new EnumMap<>(Property.class);
+	private int tasks;
+
+	Statistics(Date today) {
+		this.today = today;
+		for (Property p : PROPERTIES)
+			histograms.put(p, new TreeMap<>());
+	}
+
+	int tasks() {
+		return tasks;
+	}
+
+	void add(Task t) {
+		count(t, 1);
+	}
+
+	void remove(Task t) {
+		count(t, -1);
+	}
+
+	void clear() {
+		for (TreeMap<Comparable<?>, int[]> histogram : histograms.values())
+			histogram.clear();
+		tasks = 0;
+	}
+
+	private void count(Task t, int delta) {
+		tasks += delta;
+		for (Property p : PROPERTIES) {
+			Comparable<?> value = p.access(t, today);
+			if (value != null) {
+				TreeMap<Comparable<?>, int[]> histogram = histograms.get(p);
+				int[] n = histogram.computeIfAbsent(value, k -> new int[1]);
+				n[0] += delta;
+				if (n[0] <= 0)
+					histogram.remove(value);
+			}
+		}
+	}
+
+	/**
+	 * @return the fraction of the counted tasks matching the criterium or -1 if
+	 *         it cannot be told from the histograms
+	 */
+	double fraction(Criterium c) {
+		TreeMap<Comparable<?>, int[]> histogram = histograms.get(c.left);
+		if (histogram == null || tasks == 0 || c.isPropertyComparison() || !isKey(histogram, c.rvalues))
+			return -1d;
+		Comparable<?> value = (Comparable<?>) c.rvalues[0];
+		int matches;
+		switch (c.op) {
+		case eq:
+		case in:  matches = count(histogram, c.rvalues); break;
+		case neq:
+		case nin: matches = tasks - count(histogram, c.rvalues); break;
+		case lt:  matches = sum(histogram.headMap(value, false)); break;
+		case le:  matches = sum(histogram.headMap(value, true)); break;
+		case gt:  matches = sum(histogram.tailMap(value, false)); break;
+		case ge:  matches = sum(histogram.tailMap(value, true)); break;
+		default:  return -1d;
+		}
+		return (double) matches / tasks;
+	}
+
+	private static boolean isKey(TreeMap<Comparable<?>, int[]> histogram, Object[] values) {
+		if (histogram.isEmpty())
+			return true;
+		Class<?> type = histogram.firstKey().getClass();
+		for (Object v : values)
+			if (v.getClass() != type)
+				return false;
+		return true;
+	}
+
+	private static int count(Map<Comparable<?>, int[]> histogram, Object[] values) {
+		int res = 0;
+		for (Object v : values) {
+			int[] n = histogram.get(v);
+			if (n != null)
+				res += n[0];
+		}
+		return res;
+	}
+
+	private static int sum(Map<Comparable<?>, int[]> histogram) {
+		int res = 0;
+		for (int[] n : histogram.values())
+			res += n[0];
+		return res;
+	}
+}
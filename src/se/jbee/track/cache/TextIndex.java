@@ -0,0 +1,97 @@
+package se.jbee.track.cache;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import se.jbee.track.cache.CacheWorker.TaskSet;
+import se.jbee.track.model.Gist;
+import se.jbee.track.model.IDN;
+
+/**
+ * An inverted index of the trigrams (3 character sequences) of the
+ * {@link Gist}s of the tasks of a single output.
+ *
+ * A task whose text contains a search text must contain all the trigrams of
+ * the search text. Therefore the set of tasks containing the least common of
+ * those trigrams is a (usually small) superset of the matches that still has to
+ * be filtered by the actual text.
+ *
+ * Like the {@link CacheWorker} owning it the index is not thread-safe.
+ */
+final class TextIndex {
+
+	private final Map<Long, TaskSet> byTrigram = new HashMap<>();
+
+	void add(Gist text, IDN task) {
+		if (text == null)
+			return;
+		for (int i = 0; i+3 <= text.length(); i++)
+			byTrigram.computeIfAbsent(trigram(text, i), k -> new TaskSet()).add(task);
+	}
+
+	void remove(Gist text, IDN task) {
+		if (text == null)
+			return;
+		for (int i = 0; i+3 <= text.length(); i++) {
+			TaskSet set = byTrigram.get(trigram(text, i));
+			if (set != null)
+				set.remove(task);
+		}
+	}
+
+	void clear() {
+		byTrigram.clear();
+	}
+
+	void removeAll(IDN task) {
+		for (TaskSet set : byTrigram.values())
+			set.remove(task);
+	}
+
+	/**
+	 * @return the set of tasks that might contain the given text, an empty set
+	 *         if no task can contain it, or null if the text is too short to
+	 *         narrow down the tasks using this index
+	 */
+	TaskSet candidates(Gist text) {
+		if (text.length() < 3)
+			return null;
+		TaskSet res = null;
+		for (int i = 0; i+3 <= text.length(); i++) {
+			TaskSet set = byTrigram.get(trigram(text, i));
+			if (set == null || set.size() == 0)
+				return new TaskSet();
+			if (res == null || set.size() < res.size())
+				res = set;
+		}
+		return res;
+	}
+
+	int trigrams() {
+		return byTrigram.size();
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(byTrigram.size());
+		for (Entry<Long, TaskSet> e : byTrigram.entrySet()) {
+			out.writeLong(e.getKey());
+			e.getValue().writeTo(out);
+		}
+	}
+
+	void readFrom(ByteBuffer in) {
+		for (int n = in.getInt(); n > 0; n--)
+			byTrigram.put(in.getLong(), TaskSet.readFrom(in));
+	}
+
+	/**
+	 * @return the 3 UTF-16 characters starting at index i in one number
+	 */
+	private static long trigram(Gist text, int i) {
+		return (long) text.charAt(i) << 32 | (long) text.charAt(i+1) << 16 | text.charAt(i+2);
+	}
+}
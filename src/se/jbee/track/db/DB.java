@@ -1,7 +1,11 @@
 package se.jbee.track.db;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 
 import se.jbee.track.model.ID;
 
@@ -23,9 +27,28 @@ public interface DB extends AutoCloseable {
 	 */
 	Write write();
 
+	/**
+	 * A DB made of parts with a writer each only needs to lock the parts the
+	 * given keys are in. All other DBs lock as usual.
+	 *
+	 * @param keys the keys the transaction is going to put or delete
+	 * @return a new write transaction opened
+	 */
+	default Write write(Collection<ID> keys) {
+		return write();
+	}
+
 	@Override
 	public void close();
 
+	/**
+	 * Makes a consistent copy of the database into the given directory while
+	 * it continues to be used.
+	 */
+	default void backup(File target) {
+		throw new UnsupportedOperationException("Backup not supported by "+getClass().getSimpleName());
+	}
+
 	/**
 	 * A read-only transaction
 	 */
@@ -40,7 +63,50 @@ public interface DB extends AutoCloseable {
 		@Override
 		public void close();
 
-		void range(ID first, BiPredicate<ID, ByteBuffer> consumer);
+		/**
+		 * Visits the entries of the given type with keys from first
+		 * (inclusive) to end (exclusive) in key order. The iteration stops at
+		 * the end key before the entry is given to the consumer.
+		 *
+		 * @param first the smallest key to visit or null to start with the
+		 *        first key of the type
+		 * @param end the key to stop at or null to continue to the last key of
+		 *        the type
+		 * @param reverse true to visit the entries from end to first
+		 * @param consumer returns false to stop the iteration
+		 */
+		void range(ID.Type type, ID first, ID end, boolean reverse, BiPredicate<ID, ByteBuffer> consumer);
+
+		default void range(ID first, BiPredicate<ID, ByteBuffer> consumer) {
+			range(first.type, first, null, false, consumer);
+		}
+
+		default void range(ID first, ID end, BiPredicate<ID, ByteBuffer> consumer) {
+			range(first.type, first, end, false, consumer);
+		}
+
+		/**
+		 * Like {@link #range(ID.Type, ID, ID, boolean, BiPredicate)} just that
+		 * no values are read.
+		 */
+		default void keys(ID.Type type, ID first, ID end, boolean reverse, Predicate<ID> consumer) {
+			range(type, first, end, reverse, (k, v) -> consumer.test(k));
+		}
+
+		/**
+		 * Looks up many keys at once. Keys of the same type given in
+		 * ascending order are the cheapest to look up.
+		 *
+		 * @param consumer called for each key that has a value in the order
+		 *        of the given keys
+		 */
+		default void get(ID[] keys, BiConsumer<ID, ByteBuffer> consumer) {
+			for (ID key : keys) {
+				ByteBuffer val = get(key);
+				if (val != null)
+					consumer.accept(key, val);
+			}
+		}
 
 	}
 
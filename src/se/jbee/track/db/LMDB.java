@@ -2,33 +2,81 @@ package se.jbee.track.db;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
-import org.lmdbjava.CursorIterator;
-import org.lmdbjava.CursorIterator.IteratorType;
-import org.lmdbjava.CursorIterator.KeyVal;
+import org.lmdbjava.CopyFlags;
+import org.lmdbjava.Cursor;
 import org.lmdbjava.Dbi;
 import org.lmdbjava.DbiFlags;
 import org.lmdbjava.Env;
 import org.lmdbjava.Env.Builder;
+import org.lmdbjava.Env.MapFullException;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.EnvInfo;
+import org.lmdbjava.GetOp;
 import org.lmdbjava.Txn;
 
 import se.jbee.track.model.ID;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
 
 /**
  * A wrapper around the java LMDB library to decouple all code from the library.
  *
  * A {@link LMDB} instance usually is constructed on application startup and
  * used by multiple threads to create {@link Read} or {@link Write} transactions.
+ *
+ * When the used pages get close to the map size (or a write failed because the
+ * map was full) the environment is reopened with twice the map size before the
+ * next {@link Write} begins. It is reopened from a new {@link Builder} of the
+ * given supplier with the same {@link EnvFlags} so that all other settings stay
+ * the same. Each transaction holds a shared lock so that the reopening waits
+ * for all open transactions to finish. The lock is not bound to a thread so
+ * that transactions can be closed by any thread. Should the transactions not
+ * finish in time growing is tried again on the next {@link Write}. New
+ * transactions do not wait for a reopening that is still waiting itself.
  */
 public final class LMDB implements DB {
 
+	private static final double GROW_THRESHOLD = 0.8;
+	private static final long GROW_WAIT_NS = 1_000_000_000L;
+	private static final long GROW_RETRY_NS = 1_000_000L;
+
+	private final Supplier<Builder<ByteBuffer>> envBuilder;
+	private final EnvFlags[] flags;
+	private final File path;
+	private final StampedLock reopen = new StampedLock();
+	/**
+	 * The number of transactions opened by the current thread still open
+	 */
+	private final ThreadLocal<AtomicInteger> opened = ThreadLocal.withInitial(AtomicInteger::new);
 	private volatile Env<ByteBuffer> env;
+	private volatile int pageSize;
+	private volatile boolean full = false;
 	private final AtomicReferenceArray<Dbi<ByteBuffer>> collections = new AtomicReferenceArray<>(ID.Type.values().length);
 
-	public LMDB(Builder<ByteBuffer> envBuilder, File path) {
-		this.env = envBuilder.setMaxDbs(10).open(path);
+	/**
+	 * @param envBuilder a new {@link Builder} for each time the environment is
+	 *        opened, the map size is replaced when it is reopened to grow
+	 */
+	public LMDB(Supplier<Builder<ByteBuffer>> envBuilder, File path, EnvFlags... flags) {
+		this.envBuilder = envBuilder;
+		this.flags = flags;
+		this.path = path;
+		open(envBuilder.get());
+	}
+
+	private void open(Builder<ByteBuffer> builder) {
+		this.env = builder.setMaxDbs(16).open(path, flags);
+		this.pageSize = env.stat().pageSize;
 		for (ID.Type t : ID.Type.values()) {
 			collections.set(t.ordinal(), env.openDbi(t.name(), DbiFlags.MDB_CREATE));
 		}
@@ -43,22 +91,124 @@ public final class LMDB implements DB {
 
 	@Override
 	public Read read() {
-		return new LMDBRead(env);
+		return begin(LMDBRead::new);
 	}
 
 	@Override
 	public Write write() {
-		return new LMDBWrite(env);
+		if (full || isNearlyFull())
+			grow();
+		return begin(LMDBWrite::new);
+	}
+
+	/**
+	 * Copies the environment as of a consistent read snapshot into the given
+	 * directory leaving out free pages. Reading and writing continues while
+	 * the copy is made. The calling thread must not have a transaction open.
+	 */
+	@Override
+	public void backup(File target) {
+		if (opened.get().get() > 0)
+			throw new IllegalStateException("Cannot backup within a transaction");
+		if (!target.exists() && !target.mkdirs())
+			throw new IllegalStateException("Failed to create backup directory: "+target);
+		long stamp = reopen.readLock();
+		try {
+			env.copy(target, CopyFlags.MDB_CP_COMPACT);
+		} finally {
+			reopen.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the current map size in bytes
+	 */
+	public long size() {
+		long stamp = reopen.readLock();
+		try {
+			return env.info().mapSize;
+		} finally {
+			reopen.unlockRead(stamp);
+		}
+	}
+
+	private <T extends LMDBRead> T begin(Function<Env<ByteBuffer>, T> txn) {
+		long stamp = reopen.readLock();
+		try {
+			T tx = txn.apply(env);
+			tx.stamp = stamp;
+			tx.owner = opened.get();
+			tx.owner.incrementAndGet();
+			return tx;
+		} catch (RuntimeException e) {
+			reopen.unlockRead(stamp);
+			throw e;
+		}
+	}
+
+	private boolean isNearlyFull() {
+		long stamp = reopen.readLock();
+		try {
+			EnvInfo info = env.info();
+			return info.lastPageNumber * pageSize > info.mapSize * GROW_THRESHOLD;
+		} finally {
+			reopen.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * The exclusive lock is polled instead of waited for as a waiting writer
+	 * of a {@link StampedLock} makes new readers wait as well.
+	 */
+	private void grow() {
+		if (opened.get().get() > 0)
+			return; // would wait for the thread's own transaction
+		long deadline = System.nanoTime() + GROW_WAIT_NS;
+		long stamp = reopen.tryWriteLock();
+		while (stamp == 0L) {
+			if (System.nanoTime() > deadline || Thread.currentThread().isInterrupted())
+				return;
+			LockSupport.parkNanos(GROW_RETRY_NS);
+			stamp = reopen.tryWriteLock();
+		}
+		try {
+			EnvInfo info = env.info();
+			if (!full && info.lastPageNumber * pageSize <= info.mapSize * GROW_THRESHOLD)
+				return; // another thread did grow it already
+			close();
+			open(envBuilder.get().setMapSize(info.mapSize * 2));
+			full = false;
+			Metrics.count(Counter.dbGrowths);
+		} finally {
+			reopen.unlockWrite(stamp);
+		}
 	}
 
 	Dbi<ByteBuffer> collection(ID.Type type) {
 		return collections.get(type.ordinal());
 	}
 
+	/**
+	 * Same as {@link ID#KEY_ORDER} (the default LMDB key order) within a type.
+	 */
+	static int compare(ByteBuffer key, byte[] other) {
+		int pos = key.position();
+		int n = Math.min(key.remaining(), other.length);
+		for (int i = 0; i < n; i++) {
+			int res = (key.get(pos + i) & 0xFF) - (other[i] & 0xFF);
+			if (res != 0)
+				return res;
+		}
+		return key.remaining() - other.length;
+	}
+
 	private class LMDBRead implements Read {
 
 		final Txn<ByteBuffer> txn;
 		final ByteBuffer key;
+		long stamp;
+		AtomicInteger owner;
+		private boolean closed = false;
 
 		public LMDBRead(Env<ByteBuffer> env) {
 			this(env.txnRead());
@@ -69,37 +219,105 @@ public final class LMDB implements DB {
 			this.key = ByteBuffer.allocateDirect(env.getMaxKeySize());
 		}
 
+		/**
+		 * The library reuses the same value buffer for every get within a
+		 * transaction. A duplicate stays valid when decoding the value involves
+		 * further gets.
+		 */
 		@Override
 		public final ByteBuffer get(ID id) {
 			setKey(id);
-			return collection(id.type).get(txn, key);
+			ByteBuffer val = collection(id.type).get(txn, key);
+			return val == null ? null : val.duplicate();
 		}
 
+		/**
+		 * Uses one cursor per run of keys of the same type so that keys in
+		 * ascending order are found by moving the cursor forward.
+		 */
 		@Override
-		public void range(ID first, BiPredicate<ID, ByteBuffer> consumer) {
-			try (CursorIterator<ByteBuffer> it = iterator(first)) {
-				while (it.hasNext()) {
-					KeyVal<ByteBuffer> e = it.next();
-					byte[] k = new byte[e.key().remaining()];
-					e.key().get(k);
-					if (!consumer.test(ID.fromBytes(k), e.val()))
-						return;
+		public void get(ID[] keys, BiConsumer<ID, ByteBuffer> consumer) {
+			Cursor<ByteBuffer> cursor = null;
+			ID.Type type = null;
+			try {
+				for (ID id : keys) {
+					if (id.type != type) {
+						if (cursor != null)
+							cursor.close();
+						type = id.type;
+						cursor = collection(type).openCursor(txn);
+					}
+					setKey(id);
+					if (cursor.get(key, GetOp.MDB_SET_KEY))
+						consumer.accept(id, cursor.val().duplicate());
 				}
+			} finally {
+				if (cursor != null)
+					cursor.close();
 			}
 		}
 
-		private CursorIterator<ByteBuffer> iterator(ID first) {
-			Dbi<ByteBuffer> collection = collection(first.type);
-			key.clear();
-			key.put(first.readonlyBytes());
-			key.position(key.position()-2);
-			key.flip();
-			return collection.iterate(txn, key, IteratorType.FORWARD);
+		@Override
+		public void range(ID.Type type, ID first, ID end, boolean reverse, BiPredicate<ID, ByteBuffer> consumer) {
+			scan(type, first, end, reverse, (k, cursor) -> consumer.test(k, cursor.val().duplicate()));
+		}
+
+		@Override
+		public void keys(ID.Type type, ID first, ID end, boolean reverse, Predicate<ID> consumer) {
+			scan(type, first, end, reverse, (k, cursor) -> consumer.test(k));
+		}
+
+		/**
+		 * Positions a cursor on the first (or last) key in range and moves it
+		 * until it passes the other bound. Keys are compared in their raw
+		 * form so that entries out of range are never decoded.
+		 */
+		private void scan(ID.Type type, ID first, ID end, boolean reverse, BiPredicate<ID, Cursor<ByteBuffer>> consumer) {
+			byte[] stop = reverse
+					? (first == null ? null : first.readonlyBytes())
+					: (end == null ? null : end.readonlyBytes());
+			try (Cursor<ByteBuffer> cursor = collection(type).openCursor(txn)) {
+				boolean found;
+				if (!reverse) {
+					if (first == null) {
+						found = cursor.first();
+					} else {
+						setKey(first);
+						found = cursor.get(key, GetOp.MDB_SET_RANGE);
+					}
+				} else if (end == null) {
+					found = cursor.last();
+				} else {
+					setKey(end);
+					found = cursor.get(key, GetOp.MDB_SET_RANGE) ? cursor.prev() : cursor.last();
+				}
+				while (found) {
+					ByteBuffer k = cursor.key();
+					if (stop != null) {
+						int cmp = compare(k, stop);
+						if (reverse ? cmp < 0 : cmp >= 0)
+							return;
+					}
+					byte[] bytes = new byte[k.remaining()];
+					k.duplicate().get(bytes);
+					if (!consumer.test(ID.fromBytes(bytes), cursor))
+						return;
+					found = reverse ? cursor.prev() : cursor.next();
+				}
+			}
 		}
 
 		@Override
 		public final void close() {
-			txn.close();
+			if (closed)
+				return;
+			closed = true;
+			try {
+				txn.close();
+			} finally {
+				owner.decrementAndGet();
+				reopen.unlockRead(stamp);
+			}
 		}
 
 		final void setKey(ID id) {
@@ -117,7 +335,12 @@ public final class LMDB implements DB {
 		@Override
 		public void put(ID id, ByteBuffer value) {
 			setKey(id);
-			collection(id.type).put(txn, key, value);
+			try {
+				collection(id.type).put(txn, key, value);
+			} catch (MapFullException e) {
+				full = true;
+				throw e;
+			}
 		}
 
 		@Override
@@ -128,7 +351,12 @@ public final class LMDB implements DB {
 
 		@Override
 		public void commit() {
-			txn.commit();
+			try {
+				txn.commit();
+			} catch (MapFullException e) {
+				full = true;
+				throw e;
+			}
 		}
 
 	}
@@ -0,0 +1,354 @@
+package se.jbee.track.db;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+
+import se.jbee.track.model.ID;
+
+/**
+ * A {@link DB} that keeps all entries in memory using multi-version
+ * concurrency control.
+ *
+ * Each type has its own {@link ConcurrentSkipListMap} from key to a chain of
+ * {@link Version}s, most recent first. A {@link Read} sees the versions
+ * committed when it began. A {@link Write} adds its versions right away under
+ * the version number the next commit will have, so it sees its own writes
+ * while {@link Read}s do not. A commit just makes that version number the
+ * current one. Like in LMDB there is a single writer at a time.
+ *
+ * Versions no longer visible to any {@link Read} are dropped when the key is
+ * written again.
+ *
+ * Optionally all entries are dumped to a file periodically and on
+ * {@link #close()}. The dump is read when the {@link MemoryDB} is created.
+ */
+public final class MemoryDB implements DB {
+
+	private static final int MAGIC = 0x76697a6d; // "vizm"
+
+	/**
+	 * An immutable link in the chain of values of a key.
+	 */
+	private static final class Version {
+
+		final long version;
+		final ByteBuffer value; // null for deleted
+		final Version older;
+
+		Version(long version, ByteBuffer value, Version older) {
+			this.version = version;
+			this.value = value;
+			this.older = older;
+		}
+
+		Version visibleAt(long snapshot) {
+			Version v = this;
+			while (v != null && v.version > snapshot)
+				v = v.older;
+			return v;
+		}
+	}
+
+	private final EnumMap<ID.Type, ConcurrentSkipListMap<ID, Version>> collections = new EnumMap<>(ID.Type.class);
+	private final ReentrantLock writer = new ReentrantLock();
+	/**
+	 * The number of {@link Read}s open per snapshot
+	 */
+	private final NavigableMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+	private volatile long committed = 0L;
+
+	private final File dump;
+	private final ScheduledExecutorService dumper;
+
+	/**
+	 * Creates an empty {@link MemoryDB} that is not persisted.
+	 */
+	public MemoryDB() {
+		this(null, 0L);
+	}
+
+	/**
+	 * @param dump the file to load from (if it exists) and dump to, null for
+	 *        none
+	 * @param dumpInterval the milliseconds between dumps, 0 to only dump on
+	 *        {@link #close()}
+	 */
+	public MemoryDB(File dump, long dumpInterval) {
+		for (ID.Type t : ID.Type.values())
+			collections.put(t, new ConcurrentSkipListMap<>(ID.KEY_ORDER));
+		this.dump = dump;
+		if (dump != null && dump.exists())
+			load(dump);
+		if (dump != null && dumpInterval > 0L) {
+			this.dumper = Executors.newSingleThreadScheduledExecutor(target -> {
+				Thread t = new Thread(target, "memory-db-dump");
+				t.setDaemon(true);
+				return t;
+			});
+			dumper.scheduleWithFixedDelay(() -> backup(dump), dumpInterval, dumpInterval, TimeUnit.MILLISECONDS);
+		} else {
+			this.dumper = null;
+		}
+	}
+
+	@Override
+	public Read read() {
+		return new MemoryRead(open());
+	}
+
+	@Override
+	public Write write() {
+		writer.lock();
+		return new MemoryWrite(committed + 1);
+	}
+
+	@Override
+	public void close() {
+		if (dumper != null)
+			dumper.shutdown();
+		if (dump != null)
+			backup(dump);
+	}
+
+	/**
+	 * Writes all entries as of a consistent snapshot to the given file.
+	 * Reading and writing continues while the dump is written.
+	 */
+	@Override
+	public void backup(File target) {
+		File tmp = new File(target.getPath()+".tmp");
+		try (MemoryRead tx = new MemoryRead(open())) {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				out.writeInt(MAGIC);
+				for (ID.Type type : ID.Type.values()) {
+					for (Entry<ID, Version> e : collections.get(type).entrySet()) {
+						Version v = e.getValue().visibleAt(tx.snapshot);
+						if (v != null && v.value != null) {
+							byte[] key = e.getKey().readonlyBytes();
+							ByteBuffer val = v.value.duplicate();
+							out.writeByte(type.ordinal());
+							out.writeShort(key.length);
+							out.write(key);
+							out.writeInt(val.remaining());
+							while (val.hasRemaining())
+								out.write(val.get());
+						}
+					}
+				}
+			}
+			Files.move(tmp.toPath(), target.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (IOException e) {
+			tmp.delete();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void load(File file) {
+		ID.Type[] types = ID.Type.values();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			Write tx = write()) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a memory DB dump: "+file);
+			while (true) {
+				int type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] key = new byte[in.readShort()];
+				in.readFully(key);
+				byte[] val = new byte[in.readInt()];
+				in.readFully(val);
+				put(types[type], ID.fromBytes(types[type], key), ByteBuffer.wrap(val), ((MemoryWrite) tx).version);
+			}
+			tx.commit();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the snapshot of a new {@link Read}
+	 */
+	private long open() {
+		synchronized (snapshots) { // no pruning between reading and registering the snapshot
+			long snapshot = committed;
+			snapshots.merge(snapshot, 1, Integer::sum);
+			return snapshot;
+		}
+	}
+
+	private void close(long snapshot) {
+		snapshots.computeIfPresent(snapshot, (k, n) -> n == 1 ? null : n - 1);
+	}
+
+	private long oldestSnapshot() {
+		synchronized (snapshots) {
+			return snapshots.isEmpty() ? committed : snapshots.firstKey();
+		}
+	}
+
+	private void put(ID.Type type, ID key, ByteBuffer value, long version) {
+		ConcurrentSkipListMap<ID, Version> collection = collections.get(type);
+		Version head = collection.get(key);
+		if (head != null && head.version == version)
+			head = head.older; // replaced within the same write
+		collection.put(key, new Version(version, value, head));
+	}
+
+	/**
+	 * Drops the versions of the key no {@link Read} can see any more.
+	 */
+	private void prune(ID key, long oldest) {
+		ConcurrentSkipListMap<ID, Version> collection = collections.get(key.type);
+		Version head = collection.get(key);
+		if (head == null)
+			return;
+		if (head.version <= oldest && head.value == null) {
+			collection.remove(key, head);
+			return;
+		}
+		Version visible = head.visibleAt(oldest);
+		if (visible == null || visible.older == null)
+			return;
+		if (visible == head) {
+			collection.put(key, new Version(head.version, head.value, null));
+			return;
+		}
+		List<Version> newer = new ArrayList<>();
+		for (Version v = head; v != visible; v = v.older)
+			newer.add(v);
+		Version chain = new Version(visible.version, visible.value, null);
+		for (int i = newer.size()-1; i >= 0; i--)
+			chain = new Version(newer.get(i).version, newer.get(i).value, chain);
+		collection.put(key, chain);
+	}
+
+	private class MemoryRead implements Read {
+
+		final long snapshot;
+		private boolean closed = false;
+
+		MemoryRead(long snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		@Override
+		public ByteBuffer get(ID key) {
+			Version head = collections.get(key.type).get(key);
+			Version v = head == null ? null : head.visibleAt(snapshot);
+			return v == null || v.value == null ? null : v.value.duplicate();
+		}
+
+		@Override
+		public void range(ID.Type type, ID first, ID end, boolean reverse, BiPredicate<ID, ByteBuffer> consumer) {
+			NavigableMap<ID, Version> view = collections.get(type);
+			if (first != null)
+				view = view.tailMap(first, true);
+			if (end != null)
+				view = view.headMap(end, false);
+			if (reverse)
+				view = view.descendingMap();
+			for (Entry<ID, Version> e : view.entrySet()) {
+				Version v = e.getValue().visibleAt(snapshot);
+				if (v != null && v.value != null && !consumer.test(e.getKey(), v.value.duplicate()))
+					return;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				MemoryDB.this.close(snapshot);
+			}
+		}
+	}
+
+	private final class MemoryWrite extends MemoryRead implements Write {
+
+		final long version;
+		private final List<ID> written = new ArrayList<>();
+		private boolean done = false;
+
+		MemoryWrite(long version) {
+			super(version); // sees its own writes
+			this.version = version;
+		}
+
+		@Override
+		public void put(ID key, ByteBuffer value) {
+			ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+			copy.put(value.duplicate()).flip();
+			MemoryDB.this.put(key.type, key, copy, version);
+			written.add(key);
+		}
+
+		@Override
+		public void delete(ID key) {
+			if (get(key) != null) {
+				MemoryDB.this.put(key.type, key, null, version);
+				written.add(key);
+			}
+		}
+
+		@Override
+		public void commit() {
+			committed = version;
+			long oldest = oldestSnapshot();
+			for (ID key : written)
+				prune(key, oldest);
+			written.clear();
+		}
+
+		/**
+		 * Removes the versions of this transaction unless it was committed.
+		 */
+		@Override
+		public void close() {
+			if (done)
+				return;
+			done = true;
+			try {
+				for (ID key : written) {
+					ConcurrentSkipListMap<ID, Version> collection = collections.get(key.type);
+					Version head = collection.get(key);
+					if (head != null && head.version == version) {
+						if (head.older == null) {
+							collection.remove(key);
+						} else {
+							collection.put(key, head.older);
+						}
+					}
+				}
+			} finally {
+				writer.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package se.jbee.track.db;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.function.BiPredicate;
+
+import se.jbee.track.model.ID;
+
+/**
+ * A {@link DB} made of multiple {@link DB}s (shards) each having its own
+ * writer so that transactions in different shards can write in parallel.
+ *
+ * All entries of an output (the output, its areas, versions, tasks, polls,
+ * pages and the histories of those) are in the same shard. Users are
+ * distributed by their name; as each transaction changes the acting user a
+ * dedicated shard for users would serialise all writers again. Limits are
+ * kept in the first shard. Events and journal records are written to the
+ * shard with the lowest index the transaction writes to anyway, they are
+ * looked up in all shards.
+ *
+ * A {@link Write} locks the shards of the keys given to
+ * {@link #write(Collection)} in ascending order. Further shards can only be
+ * locked should their index be higher than any locked, otherwise two writers
+ * could wait for each other. {@link #write()} locks all shards. Shards are
+ * committed in ascending order. Should the process die in the middle of a
+ * commit the shards committed before keep their changes.
+ *
+ * A {@link Read} opens the shards it needs when it first needs them. Each
+ * shard is consistent in itself. Ranges across shards are merged in key
+ * order reading each shard in batches so that a range ended early does not
+ * read all entries of all shards.
+ */
+public final class ShardedDB implements DB {
+
+	/**
+	 * The number of entries read from each shard at a time when merging a
+	 * range across shards.
+	 */
+	static final int MERGE_BATCH = 64;
+
+	private final DB[] shards;
+
+	public ShardedDB(DB... shards) {
+		if (shards.length == 0)
+			throw new IllegalArgumentException("At least one shard is needed");
+		this.shards = shards;
+	}
+
+	/**
+	 * @return the index of the shard the key is stored in or -1 if the key is
+	 *         stored in the first shard the write locked
+	 */
+	int shard(ID key) {
+		switch (key.type) {
+		case event:
+		case journal: return -1;
+		case limit:   return 0;
+		case history: return shard(key.entity());
+		default:
+			byte[] bytes = key.readonlyBytes();
+			int start = start(key.type);
+			return shard(bytes, start, end(bytes, start));
+		}
+	}
+
+	private int shard(byte[] bytes, int start, int end) {
+		int hash = 1;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + bytes[i];
+		return (hash & Integer.MAX_VALUE) % shards.length;
+	}
+
+	/**
+	 * A task key starts with the output, all others with the type symbol and
+	 * a divider.
+	 */
+	private static int start(ID.Type type) {
+		return type == ID.Type.Task ? 0 : 2;
+	}
+
+	private static int end(byte[] key, int start) {
+		int i = start;
+		while (i < key.length && key[i] != ':')
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the shard all keys from first (inclusive) to end (exclusive) are
+	 *         stored in or -1 if they might be in any shard
+	 */
+	int shard(ID.Type type, ID first, ID end) {
+		if (first == null || end == null || !isRoutedByName(type))
+			return -1;
+		byte[] from = first.readonlyBytes();
+		int start = start(type);
+		int divider = end(from, start);
+		if (divider == from.length)
+			return -1;
+		// all keys are below the first key's name followed by the byte after the divider
+		byte[] bound = new byte[divider + 1];
+		System.arraycopy(from, 0, bound, 0, divider);
+		bound[divider] = ':' + 1;
+		return compare(end.readonlyBytes(), bound) <= 0 ? shard(from, start, divider) : -1;
+	}
+
+	private static boolean isRoutedByName(ID.Type type) {
+		return type != ID.Type.event && type != ID.Type.journal && type != ID.Type.limit && type != ID.Type.history;
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int res = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (res != 0)
+				return res;
+		}
+		return a.length - b.length;
+	}
+
+	@Override
+	public Read read() {
+		return new ShardedRead();
+	}
+
+	@Override
+	public Write write() {
+		TreeSet<Integer> all = new TreeSet<>();
+		for (int i = 0; i < shards.length; i++)
+			all.add(i);
+		return new ShardedWrite(all);
+	}
+
+	@Override
+	public Write write(Collection<ID> keys) {
+		TreeSet<Integer> locked = new TreeSet<>();
+		for (ID key : keys) {
+			int shard = shard(key);
+			if (shard >= 0)
+				locked.add(shard);
+		}
+		if (locked.isEmpty())
+			locked.add(0);
+		return new ShardedWrite(locked);
+	}
+
+	@Override
+	public void close() {
+		RuntimeException ex = null;
+		for (DB shard : shards) {
+			try {
+				shard.close();
+			} catch (RuntimeException e) {
+				ex = e;
+			}
+		}
+		if (ex != null)
+			throw ex;
+	}
+
+	/**
+	 * Makes a backup of each shard in a directory named by its index like the
+	 * shards created by the application.
+	 */
+	@Override
+	public void backup(File target) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].backup(new File(target, "shard-"+i));
+	}
+
+	private class ShardedRead implements Read {
+
+		final Read[] reads = new Read[shards.length];
+
+		Read read(int shard) {
+			Read res = reads[shard];
+			if (res == null) {
+				res = shards[shard].read();
+				reads[shard] = res;
+			}
+			return res;
+		}
+
+		@Override
+		public ByteBuffer get(ID key) {
+			int shard = shard(key);
+			if (shard >= 0)
+				return read(shard).get(key);
+			for (int i = 0; i < shards.length; i++) {
+				ByteBuffer res = read(i).get(key);
+				if (res != null)
+					return res;
+			}
+			return null;
+		}
+
+		@Override
+		public void range(ID.Type type, ID first, ID end, boolean reverse, BiPredicate<ID, ByteBuffer> consumer) {
+			int shard = shard(type, first, end);
+			if (shard >= 0) {
+				read(shard).range(type, first, end, reverse, consumer);
+				return;
+			}
+			Comparator<Run> byHead = (a, b) -> ID.KEY_ORDER.compare(a.key(), b.key());
+			PriorityQueue<Run> heads = new PriorityQueue<>(shards.length, reverse ? byHead.reversed() : byHead);
+			for (int i = 0; i < shards.length; i++) {
+				Run run = new Run(read(i), type, first, end, reverse);
+				if (run.fill())
+					heads.add(run);
+			}
+			while (!heads.isEmpty()) {
+				Run run = heads.poll();
+				if (!consumer.test(run.key(), run.value()))
+					return;
+				run.pos++;
+				if (run.fill())
+					heads.add(run);
+			}
+		}
+
+		@Override
+		public void close() {
+			RuntimeException ex = null;
+			for (int i = reads.length - 1; i >= 0; i--) {
+				if (reads[i] != null) {
+					try {
+						reads[i].close();
+					} catch (RuntimeException e) {
+						ex = e;
+					}
+					reads[i] = null;
+				}
+			}
+			if (ex != null)
+				throw ex;
+		}
+	}
+
+	/**
+	 * The entries of a range in one shard read in batches of
+	 * {@link #MERGE_BATCH} as the merge of all shards gets to them.
+	 */
+	private static final class Run {
+
+		private final Read read;
+		private final ID.Type type;
+		private final ID first;
+		private final ID end;
+		private final boolean reverse;
+		private final List<ID> keys = new ArrayList<>(MERGE_BATCH);
+		private final List<ByteBuffer> values = new ArrayList<>(MERGE_BATCH);
+		int pos;
+		private boolean exhausted;
+
+		Run(Read read, ID.Type type, ID first, ID end, boolean reverse) {
+			this.read = read;
+			this.type = type;
+			this.first = first;
+			this.end = end;
+			this.reverse = reverse;
+		}
+
+		ID key() {
+			return keys.get(pos);
+		}
+
+		ByteBuffer value() {
+			return values.get(pos);
+		}
+
+		/**
+		 * Reads the next batch once all of the current one are merged.
+		 *
+		 * @return true if there is an entry at {@link #pos}
+		 */
+		boolean fill() {
+			if (pos < keys.size())
+				return true;
+			if (exhausted)
+				return false;
+			ID last = keys.isEmpty() ? null : keys.get(keys.size() - 1);
+			keys.clear();
+			values.clear();
+			pos = 0;
+			ID from = reverse || last == null ? first : last;
+			ID to = reverse && last != null ? last : end;
+			read.range(type, from, to, reverse, (k, v) -> {
+				if (!reverse && last != null && ID.KEY_ORDER.compare(k, last) == 0)
+					return true; // the first is inclusive
+				keys.add(k);
+				values.add(v);
+				return keys.size() < MERGE_BATCH;
+			});
+			exhausted = keys.size() < MERGE_BATCH;
+			return !keys.isEmpty();
+		}
+	}
+
+	private final class ShardedWrite extends ShardedRead implements Write {
+
+		private final Write[] writes = new Write[shards.length];
+		private int first = -1;
+		private int last = -1;
+
+		ShardedWrite(TreeSet<Integer> locked) {
+			try {
+				for (int shard : locked)
+					lock(shard);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private Write lock(int shard) {
+			Write res = shards[shard].write();
+			writes[shard] = res;
+			reads[shard] = res;
+			if (first < 0)
+				first = shard;
+			last = shard;
+			return res;
+		}
+
+		private Write write(ID key) {
+			int shard = shard(key);
+			if (shard < 0)
+				return writes[first];
+			Write res = writes[shard];
+			if (res != null)
+				return res;
+			if (shard < last)
+				throw new IllegalStateException("Shard "+shard+" of "+key+" cannot be locked after shard "+last+", declare the key when opening the write");
+			if (reads[shard] != null) {
+				reads[shard].close();
+				reads[shard] = null;
+			}
+			return lock(shard);
+		}
+
+		@Override
+		public void put(ID key, ByteBuffer value) {
+			write(key).put(key, value);
+		}
+
+		@Override
+		public void delete(ID key) {
+			write(key).delete(key);
+		}
+
+		@Override
+		public void commit() {
+			for (Write w : writes)
+				if (w != null)
+					w.commit();
+		}
+
+		@Override
+		public void close() {
+			for (int i = 0; i < writes.length; i++)
+				if (writes[i] != null)
+					reads[i] = null; // closed below
+			RuntimeException ex = null;
+			try {
+				super.close();
+			} catch (RuntimeException e) {
+				ex = e;
+			}
+			for (int i = writes.length - 1; i >= 0; i--) {
+				if (writes[i] != null) {
+					try {
+						writes[i].close();
+					} catch (RuntimeException e) {
+						ex = e;
+					}
+					writes[i] = null;
+				}
+			}
+			if (ex != null)
+				throw ex;
+		}
+	}
+}
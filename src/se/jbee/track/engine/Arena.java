@@ -0,0 +1,170 @@
+package se.jbee.track.engine;
+
+import static java.lang.Math.max;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import se.jbee.track.db.DB.Write;
+import se.jbee.track.model.ID;
+
+/**
+ * A growable region of direct memory all the values written by a
+ * {@link Transaction} are encoded into one after the other before they are
+ * {@link #writeTo(Write)} the DB in one go.
+ *
+ * Should the region be too small for a value it grows and the value is encoded
+ * again. Values encoded before are copied so the region stays contiguous.
+ *
+ * Released {@link Arena}s are pooled so that direct memory is reused by the
+ * next writer.
+ */
+final class Arena implements AutoCloseable {
+
+	private static final int MIN_CAPACITY = 8192;
+	private static final int MAX_POOLED_CAPACITY = 1 << 20;
+	private static final int MAX_POOLED = 4;
+
+	private static final ConcurrentLinkedQueue<Arena> POOL = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param capacity the minimum capacity expected to be needed
+	 */
+	static Arena arena(int capacity) {
+		Arena res = POOL.poll();
+		if (res == null)
+			return new Arena(capacity);
+		res.ensure(capacity);
+		return res;
+	}
+
+	private ByteBuffer region;
+	private final List<ID> ids = new ArrayList<>();
+	private final List<Integer> ends = new ArrayList<>(); // -1 for deletion
+
+	private Arena(int capacity) {
+		this.region = ByteBuffer.allocateDirect(max(MIN_CAPACITY, capacity));
+	}
+
+	private void ensure(int capacity) {
+		if (region.remaining() < capacity)
+			grow(capacity);
+	}
+
+	private void grow(int capacity) {
+		ByteBuffer larger = ByteBuffer.allocateDirect(max(region.capacity() * 2, region.position() + capacity));
+		region.flip();
+		larger.put(region);
+		region = larger;
+	}
+
+	/**
+	 * Encodes the value for the given key.
+	 *
+	 * @param estimate the bytes expected to be needed to encode the value
+	 */
+	<T> void put(ID id, T value, Bincoder<T, ByteBuffer> encoder, int estimate) {
+		ensure(estimate);
+		int start = region.position();
+		while (true) {
+			try {
+				encoder.convert(value, region);
+				ids.add(id);
+				ends.add(region.position());
+				return;
+			} catch (BufferOverflowException e) {
+				region.position(start);
+				estimate *= 2;
+				grow(estimate);
+			}
+		}
+	}
+
+	void delete(ID id) {
+		ids.add(id);
+		ends.add(-1);
+	}
+
+	/**
+	 * Adds a record of all the puts and deletes so far as value of the given
+	 * key. The record is a {@link Journal#JOURNAL_EVN} followed by the number
+	 * of entries. Each entry is the ordinal of the key's {@link ID.Type} and
+	 * the key (length and bytes) followed by the length of the value and the
+	 * value bytes. A deletion has a length of -1.
+	 */
+	void journal(ID id) {
+		int n = ids.size();
+		int size = 1 + 4;
+		int start = 0;
+		for (int i = 0; i < n; i++) {
+			int end = ends.get(i);
+			size += 2 + ids.get(i).length() + 4;
+			if (end >= 0) {
+				size += end - start;
+				start = end;
+			}
+		}
+		ensure(size);
+		region.put(Journal.JOURNAL_EVN).putInt(n);
+		start = 0;
+		for (int i = 0; i < n; i++) {
+			ID entry = ids.get(i);
+			byte[] key = entry.readonlyBytes();
+			region.put((byte) entry.type.ordinal()).put((byte) key.length).put(key);
+			int end = ends.get(i);
+			if (end < 0) {
+				region.putInt(-1);
+			} else {
+				ByteBuffer value = region.duplicate();
+				value.limit(end).position(start);
+				region.putInt(end - start).put(value);
+				start = end;
+			}
+		}
+		ids.add(id);
+		ends.add(region.position());
+	}
+
+	/**
+	 * Puts or deletes all keys in key order so that the pages touched are
+	 * visited in sequence. This matters most for large transactions that
+	 * write many keys of the same type.
+	 */
+	void writeTo(Write tx) {
+		int n = ids.size();
+		int[] starts = new int[n];
+		Integer[] order = new Integer[n];
+		int start = 0;
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			starts[i] = start;
+			int end = ends.get(i);
+			if (end >= 0)
+				start = end;
+		}
+		Arrays.sort(order, (a, b) -> ID.KEY_ORDER.compare(ids.get(a), ids.get(b)));
+		for (int i : order) {
+			int end = ends.get(i);
+			if (end < 0) {
+				tx.delete(ids.get(i));
+			} else {
+				ByteBuffer value = region.duplicate();
+				value.limit(end).position(starts[i]);
+				tx.put(ids.get(i), value.slice());
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		region.clear();
+		ids.clear();
+		ends.clear();
+		if (region.capacity() <= MAX_POOLED_CAPACITY && POOL.size() < MAX_POOLED)
+			POOL.offer(this);
+	}
+}
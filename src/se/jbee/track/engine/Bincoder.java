@@ -1,11 +1,14 @@
 package se.jbee.track.engine;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static se.jbee.track.model.Attachments.attachments;
 import static se.jbee.track.model.Gist.fromBytes;
 
 import java.nio.ByteBuffer;
 import java.util.EnumMap;
 import java.util.Map.Entry;
+import java.util.function.ToIntFunction;
 
 import se.jbee.track.engine.Change.Tx;
 import se.jbee.track.model.Area;
@@ -79,7 +82,17 @@ public interface Bincoder<I,O> {
 	 * are identified and updated correctly.
 	 */
 	byte USER_EVN = 1;
-	byte TASK_EVN = 1;
+	/**
+	 * Tasks refer to names by their index in the {@link Dictionary} of their
+	 * output, use variable length numbers and store gists in Latin-1 when
+	 * possible.
+	 */
+	byte TASK_EVN = 2;
+	/**
+	 * The self-contained format of tasks stored before there was a
+	 * {@link Dictionary}.
+	 */
+	byte LEGACY_TASK_EVN = 1;
 	byte POLL_EVN = 1;
 	byte AREA_EVN = 1;
 	byte VERSION_EVN = 1;
@@ -87,6 +100,15 @@ public interface Bincoder<I,O> {
 	byte PAGE_EVN = 1;
 	byte EVENT_EVN = 1;
 
+	/**
+	 * Bytes of the head index in front of a history in ring format.
+	 */
+	int HISTORY_HEADER = 4;
+	/**
+	 * Maximum number of timestamps in a history in legacy format.
+	 */
+	int LEGACY_HISTORY_LENGTH = 8;
+
 	Bincoder<Repository, User> bin2user = (tx,from) -> {
 		evn1(from.get()); // just check
 		User u = new User(from.getInt());
@@ -152,7 +174,10 @@ public interface Bincoder<I,O> {
 	};
 
 	Bincoder<Repository, Task> bin2task = (tx,from) -> {
-		evn1(from.get()); // just check
+		byte evn = from.get();
+		if (evn == TASK_EVN)
+			return bin2task2(tx, from);
+		evn1(evn); // just check
 		Task t = new Task(from.getInt());
 		t.output = tx.output(bin2name(from));
 		t.area = tx.area(t.output.name, bin2name(from));
@@ -182,8 +207,12 @@ public interface Bincoder<I,O> {
 		return t;
 	};
 
+	/**
+	 * Writes the {@link #LEGACY_TASK_EVN} format that does not need a
+	 * {@link Dictionary}.
+	 */
 	Bincoder<Task,ByteBuffer> task2bin = (t,to) -> {
-		to.put(TASK_EVN);
+		to.put(LEGACY_TASK_EVN);
 		to.putInt(t.version());
 		name2bin(t.output.name, to);
 		name2bin(t.area.name, to);
@@ -213,6 +242,74 @@ public interface Bincoder<I,O> {
 		return to;
 	};
 
+	static Task bin2task2(Repository tx, ByteBuffer from) {
+		Task t = new Task(from.getInt());
+		t.output = tx.output(bin2name(from));
+		Dictionary dict = tx.dictionary(t.output.name);
+		t.area = tx.area(t.output.name, bin2ref(dict, from));
+		t.id = bin2varIDN(from);
+		t.serial = bin2varIDN(from);
+		t.reporter = bin2ref(dict, from);
+		t.reported = bin2varDate(from);
+		t.gist = bin2compactGist(from);
+		t.motive = bin2enum(motives, from);
+		t.purpose = bin2enum(purposes, from);
+		t.status = bin2enum(status, from);
+		t.baseVersions = bin2refs(dict, from);
+		byte flags = from.get();
+		t.exploitable = (flags & 1) != 0;
+		t.disclosed = (flags & 2) != 0;
+		t.archived = (flags & 4) != 0;
+		t.basis = bin2varIDN(from);
+		t.origin = bin2varIDN(from);
+		t.emphasis = zigzag2int(bin2varint(from));
+		t.base = tx.version(t.output.name, bin2ref(dict, from));
+		t.aspirants = bin2refs(dict, from);
+		t.participants = bin2refs(dict, from);
+		t.watchers = bin2refs(dict, from);
+		t.solver = bin2ref(dict, from);
+		t.resolved = bin2varDate(from);
+		t.conclusion = bin2compactGist(from);
+		t.attachments =  bin2urls(from);
+		return t;
+	}
+
+	/**
+	 * @param dict the {@link Dictionary} of the task's output, names not in it
+	 *        yet are added
+	 * @return a encoder for the {@link #TASK_EVN} format
+	 */
+	static Bincoder<Task,ByteBuffer> task2bin(Dictionary dict) {
+		return (t,to) -> {
+			to.put(TASK_EVN);
+			to.putInt(t.version());
+			name2bin(t.output.name, to);
+			ref2bin(dict, t.area.name, to);
+			varIDN2bin(t.id, to);
+			varIDN2bin(t.serial, to);
+			ref2bin(dict, t.reporter, to);
+			varDate2bin(t.reported, to);
+			compactGist2bin(t.gist, to);
+			enum2bin(t.motive, to);
+			enum2bin(t.purpose, to);
+			enum2bin(t.status, to);
+			refs2bin(dict, t.baseVersions, to);
+			to.put((byte) ((t.exploitable ? 1 : 0) | (t.disclosed ? 2 : 0) | (t.archived ? 4 : 0)));
+			varIDN2bin(t.basis, to);
+			varIDN2bin(t.origin, to);
+			varint2bin(int2zigzag(t.emphasis), to);
+			ref2bin(dict, t.base.name, to);
+			refs2bin(dict, t.aspirants, to);
+			refs2bin(dict, t.participants, to);
+			refs2bin(dict, t.watchers, to);
+			ref2bin(dict, t.solver, to);
+			varDate2bin(t.resolved, to);
+			compactGist2bin(t.conclusion, to);
+			urls2bin(t.attachments, to);
+			return to;
+		};
+	}
+
 	Bincoder<Repository, Page> bin2page = (tx,from) -> {
 		evn1(from.get()); // just check
 		int version = from.getInt();
@@ -372,18 +469,219 @@ public interface Bincoder<I,O> {
 		return to;
 	};
 
+	/*
+	 * Size estimates: the bytes needed to encode an entity (at most)
+	 */
+
+	ToIntFunction<User> user2size = u -> 5
+			+ size1(u.alias) + 2 + size(u.email)
+			+ 1 + 2 * (u.notificationSettings == null ? 0 : u.notificationSettings.size())
+			+ 1 + 4 + 2 + (u.encryptedOtp == null ? 0 : u.encryptedOtp.length)
+			+ 8 + 4 + 8 + 5 * 4 + 8 + 4
+			+ size(u.contributesToOutputs);
+
+	ToIntFunction<Version> version2size = v -> 5
+			+ size1(v.output) + size1(v.name) + size(v.changeset);
+
+	ToIntFunction<Task> task2size = t -> 5
+			+ size1(t.output.name) + size1(t.area.name) + 4 + 4 + size1(t.reporter) + 4
+			+ 2 + size(t.gist) + 3 + size(t.baseVersions) + 3 + 4 + 4 + 4
+			+ size1(t.base.name) + size(t.aspirants) + size(t.participants) + size(t.watchers)
+			+ size1(t.solver) + 4 + 2 + size(t.conclusion) + size(t.attachments);
+
+	ToIntFunction<Page> page2size = p -> 5
+			+ size1(p.output) + size1(p.menu) + size1(p.name) + 4 + size(p.template);
+
+	ToIntFunction<Output> output2size = o -> {
+		int size = 5 + size1(o.name) + 4 + size(o.categories) + 1;
+		for (Output.Integration i : o.integrations)
+			size += size1(i.name) + 2 + size(i.base);
+		return size;
+	};
+
+	ToIntFunction<Poll> poll2size = p -> 5 + 4
+			+ size1(p.area.output) + size1(p.area.name) + 1 + 2 + size(p.motivation)
+			+ size1(p.affected) + size1(p.initiator) + 4
+			+ size(p.consenting) + size(p.dissenting) + 4 + 4 + 1;
+
+	ToIntFunction<Area> area2size = a -> 5
+			+ size1(a.output) + size1(a.name) + size1(a.basis) + size1(a.category)
+			+ size(a.maintainers) + 4 + 4 + 3 + 2;
+
+	ToIntFunction<Event> event2size = e -> {
+		int size = 1 + 8 + size1(e.actor) + 2;
+		for (Event.Transition t : e)
+			size += size1(t.entity) + 1 + t.ops.length;
+		return size;
+	};
+
+	/**
+	 * A history is either given as a plain list of timestamps (legacy format)
+	 * or as a ring of timestamps: an int index of the oldest slot (head), the
+	 * very first timestamp followed by the slots. The ring format is identified
+	 * by its length that is not a multiple of 8.
+	 */
 	Bincoder<ID, History> bin2history = (id, from) -> {
-		long[] events = new long[from.remaining()/Long.BYTES];
-		for (int i = 0; i < events.length; i++) {
-			events[i] = from.getLong();
+		if (from.remaining() % Long.BYTES == 0) {
+			long[] events = new long[from.remaining()/Long.BYTES];
+			for (int i = 0; i < events.length; i++) {
+				events[i] = from.getLong();
+			}
+			return new History(id, events);
+		}
+		int head = from.getInt();
+		int slots = from.remaining()/Long.BYTES - 1;
+		long[] events = new long[slots+1];
+		events[0] = from.getLong();
+		int start = from.position();
+		for (int i = 0; i < slots; i++) {
+			events[i+1] = from.getLong(start + ((head + i) % slots) * Long.BYTES);
 		}
 		return new History(id, events);
 	};
 
+	/**
+	 * Appends an event to a history given in either format. The result is in
+	 * the ring format. Usually this is a copy of the previous history with one
+	 * slot added (while growing) or one slot and the head replaced (when
+	 * full). Only legacy histories or those written with a different retention
+	 * are rearranged.
+	 *
+	 * @param history the present history or null if there is none
+	 * @param retention the maximum number of events kept besides the first
+	 */
+	static ByteBuffer appendHistory(ByteBuffer history, long timestamp, int retention, ByteBuffer to) {
+		if (history == null)
+			return to.putInt(0).putLong(timestamp).putLong(timestamp);
+		final int start = to.position();
+		final int len = history.remaining();
+		if (len % Long.BYTES == HISTORY_HEADER) {
+			int slots = len / Long.BYTES - 1;
+			int head = history.getInt(history.position());
+			if (slots == retention) {
+				to.put(history.duplicate());
+				to.putInt(start, (head + 1) % slots);
+				return to.putLong(start + HISTORY_HEADER + Long.BYTES + head * Long.BYTES, timestamp);
+			}
+			if (slots < retention && head == 0)
+				return to.put(history.duplicate()).putLong(timestamp);
+		}
+		long[] events = bin2history.convert(null, history.duplicate()).events;
+		int keep = min(events.length-1, retention-1);
+		to.putInt(0).putLong(events[0]);
+		for (int i = events.length - keep; i < events.length; i++)
+			to.putLong(events[i]);
+		return to.putLong(timestamp);
+	}
+
+	static int history2size(int retention) {
+		return HISTORY_HEADER + Long.BYTES * (max(retention, LEGACY_HISTORY_LENGTH) + 1);
+	}
+
 	/*
 	 * Utility helpers
 	 */
 
+	/**
+	 * Writes a non negative number in 1 to 5 bytes, 7 bits per byte, least
+	 * significant first. The highest bit is set in all but the last byte.
+	 */
+	static void varint2bin(int value, ByteBuffer to) {
+		while ((value & ~0x7F) != 0) {
+			to.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		to.put((byte) value);
+	}
+
+	static int bin2varint(ByteBuffer from) {
+		int res = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = from.get();
+			res |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return res;
+	}
+
+	static int int2zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int zigzag2int(int zigzag) {
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * A null {@link Name} is 0, any other the {@link Dictionary} index plus 1.
+	 */
+	static void ref2bin(Dictionary dict, Name name, ByteBuffer to) {
+		varint2bin(name == null ? 0 : dict.add(name) + 1, to);
+	}
+
+	static Name bin2ref(Dictionary dict, ByteBuffer from) {
+		int ref = bin2varint(from);
+		return ref == 0 ? null : dict.name(ref - 1);
+	}
+
+	static void refs2bin(Dictionary dict, Names names, ByteBuffer to) {
+		varint2bin(names.count(), to);
+		for (Name name : names)
+			varint2bin(dict.add(name), to);
+	}
+
+	static Names bin2refs(Dictionary dict, ByteBuffer from) {
+		Name[] names = new Name[bin2varint(from)];
+		for (int i = 0; i < names.length; i++)
+			names[i] = dict.name(bin2varint(from));
+		return new Names(names);
+	}
+
+	static void varIDN2bin(IDN id, ByteBuffer to) {
+		varint2bin(id == null ? 0 : id.num + 1, to);
+	}
+
+	static IDN bin2varIDN(ByteBuffer from) {
+		int num = bin2varint(from);
+		return num == 0 ? null : IDN.idn(num - 1);
+	}
+
+	static void varDate2bin(Date date, ByteBuffer to) {
+		varint2bin(date == null ? 0 : date.epochDay + 1, to);
+	}
+
+	static Date bin2varDate(ByteBuffer from) {
+		int day = bin2varint(from);
+		return day == 0 ? null : new Date(day - 1);
+	}
+
+	/**
+	 * A gist is stored with a leading byte -1 for null, 0 for UTF-16 or 1 for
+	 * Latin-1 followed by the number of bytes as they are kept by the
+	 * {@link Gist}.
+	 */
+	static void compactGist2bin(Gist g, ByteBuffer to) {
+		if (g == null) {
+			to.put((byte) -1);
+			return;
+		}
+		byte[] bytes = g.compactBytes();
+		to.put((byte) (g.isLatin1() ? 1 : 0));
+		varint2bin(bytes.length, to);
+		to.put(bytes);
+	}
+
+	static Gist bin2compactGist(ByteBuffer from) {
+		byte coder = from.get();
+		if (coder < 0)
+			return null;
+		byte[] bytes = new byte[bin2varint(from)];
+		from.get(bytes);
+		return Gist.fromCompactBytes(bytes, coder == 1);
+	}
+
 	static ID bin2id(ByteBuffer from) {
 		return ID.fromBytes(getByteBytes(from));
 	}
@@ -515,6 +813,28 @@ public interface Bincoder<I,O> {
 		}
 	}
 
+	static int size(ByteSequence<?> seq) {
+		return seq == null ? 0 : seq.readonlyBytes().length;
+	}
+
+	static int size1(ByteSequence<?> seq) {
+		return 1 + size(seq);
+	}
+
+	static int size(Names names) {
+		int size = 2;
+		for (Name n : names)
+			size += size1(n);
+		return size;
+	}
+
+	static int size(Attachments urls) {
+		int size = 1;
+		for (URL url : urls)
+			size += 2 + size(url);
+		return size;
+	}
+
 	static byte[] getByteBytes(ByteBuffer from) {
 		return getNBytes(from.get(), from);
 	}
@@ -18,6 +18,7 @@ import static se.jbee.track.model.Name.as;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.function.Predicate;
@@ -42,11 +43,30 @@ import se.jbee.track.model.Version;
 public class DAO implements Repository {
 
 	protected final HashMap<ID, Entity<?>> loaded = new HashMap<>();
+	private final HashMap<Name, Dictionary> dictionaries = new HashMap<>();
 
 	private final DB.Read txr;
+	private final EntityCache cache;
 
+	/**
+	 * A {@link DAO} that decodes all entities itself.
+	 */
 	public DAO(Read txr) {
+		this(txr, null);
+	}
+
+	/**
+	 * A {@link DAO} reading from a new {@link Read} of the given {@link DB}
+	 * that shares decoded entities with other {@link DAO}s of the same
+	 * {@link DB} using a {@link EntityCache}.
+	 */
+	public DAO(DB db) {
+		this(db.read(), EntityCache.of(db));
+	}
+
+	private DAO(Read txr, EntityCache cache) {
 		this.txr = txr;
+		this.cache = cache;
 	}
 
 	@Override
@@ -65,7 +85,40 @@ public class DAO implements Repository {
 	}
 
 	private <T> T loadObject(ID id, Bincoder<Repository, T> decoder) {
-		return decoder.convert(this, read(id));
+		return decode(decoder, id, read(id));
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T decode(Bincoder<Repository, T> decoder, ID id, ByteBuffer v) {
+		if (cache == null || !EntityCache.isCached(id.type))
+			return decoder.convert(this, v);
+		Entity<?> e = cache.get(id, version(v));
+		if (e != null && isCurrent(e))
+			return (T) e;
+		T res = decoder.convert(this, v);
+		cache.put((Entity<?>) res);
+		return res;
+	}
+
+	/**
+	 * An {@link Output} refers to areas and a version that might have changed
+	 * without the output changing. A cached instance is only current if it
+	 * refers to the same instances this {@link DAO} loads.
+	 */
+	private boolean isCurrent(Entity<?> e) {
+		if (!(e instanceof Output))
+			return true;
+		Output o = (Output) e;
+		return o.origin == area(o.name, Name.ORIGIN)
+			&& o.somewhere == area(o.name, Name.UNKNOWN)
+			&& o.somewhen == version(o.name, Name.UNKNOWN);
+	}
+
+	/**
+	 * All entities start with their EVN byte followed by their version.
+	 */
+	static int version(ByteBuffer entity) {
+		return entity.getInt(entity.position() + 1);
 	}
 
 	/**
@@ -79,6 +132,14 @@ public class DAO implements Repository {
 		return loaded.get(id);
 	}
 
+	/**
+	 * Override this to keep track of the entities decoded when reading a range
+	 * of keys. Unlike loaded entities they are not kept by the {@link DAO}.
+	 */
+	protected void decoded(Entity<?> e) {
+		// nothing to do
+	}
+
 	@Override
 	public Page page(Name output, Name user, Name page) {
 		return load(pageId(output, user, page), bin2page);
@@ -125,6 +186,26 @@ public class DAO implements Repository {
 		return Bincoder.bin2history.convert(id, read(id));
 	}
 
+	@Override
+	public Dictionary dictionary(Name output) {
+		return dictionaries.computeIfAbsent(output, this::loadDictionary);
+	}
+
+	private Dictionary loadDictionary(Name output) {
+		ID id = ID.dictionaryId(output);
+		ByteBuffer buf = txr.get(id);
+		if (buf == null)
+			return Dictionary.decode(null);
+		if (cache == null)
+			return Dictionary.decode(buf);
+		Dictionary res = cache.dictionary(id, Dictionary.size(buf));
+		if (res == null) {
+			res = Dictionary.decode(buf);
+			cache.put(id, res);
+		}
+		return res;
+	}
+
 	private ByteBuffer read(ID id) throws UnknownEntity {
 		ByteBuffer buf = txr.get(id);
 		if (buf == null)
@@ -134,44 +215,69 @@ public class DAO implements Repository {
 
 	@Override
 	public void tasks(Name output, Predicate<Task> consumer) {
-		range(bin2task, ID.taskId(output, IDN.ZERO),
-				(t) -> t.output.name.equalTo(output) && consumer.test(t));
+		range(bin2task, ID.taskId(output, IDN.ZERO).prefix(), consumer);
+	}
+
+	@Override
+	public void tasks(Name output, IDN first, IDN end, Predicate<Task> consumer) {
+		txr.range(ID.taskId(output, first), ID.taskId(output, end), (k,v) -> consumer.test(transactionObjectOrDecode(bin2task, k, v)));
+	}
+
+	@Override
+	public void events(long from, Predicate<Event> consumer) {
+		txr.range(ID.eventId(from), (k,v) -> {
+			Event e = bin2event.convert(this, v);
+			return e.timestamp < from || consumer.test(e);
+		});
+	}
+
+	@Override
+	public Event[] events(long[] timestamps) {
+		long[] sorted = timestamps.clone();
+		Arrays.sort(sorted);
+		ID[] ids = new ID[sorted.length];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = ID.eventId(sorted[i]);
+		List<Event> res = new ArrayList<>(ids.length);
+		txr.get(ids, (k,v) -> res.add(bin2event.convert(this, v)));
+		return res.toArray(new Event[0]);
 	}
 
 	@Override
 	public Output[] outputs() {
-		return range(bin2output, new Output[0], ID.outputId(as("0")),
-				(p) -> true);
+		return range(bin2output, new Output[0], ID.outputId(as("0")).prefix());
 	}
 
 	@Override
 	public Page[] pages(Name output, Name menu) {
-		return range(bin2page, new Page[0], ID.pageId(output, menu, as("0")),
-				(s) -> s.menu.equalTo(menu));
+		return range(bin2page, new Page[0], ID.pageId(output, menu, as("0")).prefix());
 	}
 
 	@Override
 	public Poll[] polls(Name output, Name area) {
-		return range(bin2poll, new Poll[0], ID.pollId(output, area, IDN.ZERO),
-				(p) -> p.area.name.equalTo(area));
+		return range(bin2poll, new Poll[0], ID.pollId(output, area, IDN.ZERO).prefix());
 	}
 
-	private <T> void range(Bincoder<Repository, T> decoder, ID start, Predicate<T> filter) {
-		txr.range(start, (k,v) -> filter.test(transactionObjectOrDecode(decoder, k, v)));
+	/**
+	 * Decodes the entities with keys starting with the given prefix.
+	 */
+	private <T> void range(Bincoder<Repository, T> decoder, ID prefix, Predicate<T> consumer) {
+		txr.range(prefix, prefix.prefixEnd(), (k,v) -> consumer.test(transactionObjectOrDecode(decoder, k, v)));
 	}
 
-	private <T> T[] range(Bincoder<Repository, T> decoder, T[] empty, ID start, Predicate<T> filter) {
+	private <T> T[] range(Bincoder<Repository, T> decoder, T[] empty, ID prefix) {
 		List<T> res = new ArrayList<>();
-		txr.range(start, (k,v) -> {
-			T e = transactionObjectOrDecode(decoder, k, v);
-			return filter.test(e) && res.add(e);
-		});
+		range(decoder, prefix, (e) -> res.add(e));
 		return res.toArray(empty);
 	}
 
 	@SuppressWarnings("unchecked")
 	private <T> T transactionObjectOrDecode(Bincoder<Repository, T> decoder, ID k, ByteBuffer v) {
 		Object et = transactionObject(k);
-		return (et != null) ? (T)et : decoder.convert(this, v);
+		if (et != null)
+			return (T) et;
+		T res = decode(decoder, k, v);
+		decoded((Entity<?>) res);
+		return res;
 	}
 }
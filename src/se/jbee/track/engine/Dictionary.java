@@ -0,0 +1,105 @@
+package se.jbee.track.engine;
+
+import static java.util.Arrays.copyOf;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import se.jbee.track.model.Name;
+
+/**
+ * The {@link Name}s used by the {@link se.jbee.track.model.Task}s of an
+ * output. Tasks refer to a name by its index in the dictionary of their output
+ * instead of storing the name itself.
+ *
+ * A dictionary only ever grows. Names are appended by the {@link Transaction}
+ * writing the first task that uses them. So a dictionary read later can
+ * decode all tasks stored before and a dictionary instance can be shared as
+ * long as it is not {@link #add(Name)}ed to.
+ */
+public final class Dictionary {
+
+	static final byte DICTIONARY_EVN = 1;
+
+	private Name[] names;
+	private int size;
+	private HashMap<Name, Integer> refs;
+	private final int stored;
+
+	Dictionary(Name[] names) {
+		this.names = names;
+		this.size = names.length;
+		this.stored = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the name with the given reference
+	 */
+	public Name name(int ref) {
+		if (ref >= size)
+			throw new IllegalStateException("Unknown name reference: "+ref);
+		return names[ref];
+	}
+
+	/**
+	 * @return the reference of the given name, the name is added should it not
+	 *         be known yet
+	 */
+	int add(Name name) {
+		if (refs == null) {
+			refs = new HashMap<>();
+			for (int i = 0; i < size; i++)
+				refs.put(names[i], i);
+		}
+		Integer ref = refs.get(name);
+		if (ref != null)
+			return ref;
+		if (size == names.length)
+			names = copyOf(names, Math.max(8, size * 2));
+		names[size] = name;
+		refs.put(name, size);
+		return size++;
+	}
+
+	boolean isChanged() {
+		return size > stored;
+	}
+
+	static Dictionary decode(ByteBuffer from) {
+		if (from == null)
+			return new Dictionary(new Name[0]);
+		Bincoder.evn1(from.get());
+		Name[] names = new Name[Bincoder.bin2varint(from)];
+		for (int i = 0; i < names.length; i++)
+			names[i] = Bincoder.bin2name(from);
+		return new Dictionary(names);
+	}
+
+	/**
+	 * @return the number of names of the encoded dictionary
+	 */
+	static int size(ByteBuffer dictionary) {
+		ByteBuffer from = dictionary.duplicate();
+		from.get();
+		return Bincoder.bin2varint(from);
+	}
+
+	ByteBuffer encode(ByteBuffer to) {
+		to.put(DICTIONARY_EVN);
+		Bincoder.varint2bin(size, to);
+		for (int i = 0; i < size; i++)
+			Bincoder.name2bin(names[i], to);
+		return to;
+	}
+
+	int encodedSize() {
+		int res = 1 + 5;
+		for (int i = 0; i < size; i++)
+			res += Bincoder.size1(names[i]);
+		return res;
+	}
+}
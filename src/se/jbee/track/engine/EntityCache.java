@@ -0,0 +1,105 @@
+package se.jbee.track.engine;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.model.Entity;
+import se.jbee.track.model.ID;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
+
+/**
+ * Decoded {@link se.jbee.track.model.Output}s, {@link se.jbee.track.model.Area}s
+ * and {@link se.jbee.track.model.Version}s of a {@link DB} shared by all
+ * {@link DAO}s reading from it.
+ *
+ * These are few and referenced by each task decoded. As entities are never
+ * changed in place but cloned a decoded instance can be shared as long as it
+ * has the version stored in the DB. A {@link DAO} therefore still reads the
+ * stored value but only checks its version before it uses the cached
+ * instance. Committed {@link Changes} evict the entities changed.
+ *
+ * Only the decoding is saved, not the reading: a {@link DAO} still gets each
+ * output, area and version from the {@link DB} to learn its version.
+ *
+ * There is one cache for each {@link DB} instance. It is looked up by the DB
+ * and held weakly so that it is dropped together with the DB. This way DAOs
+ * and transactions share it without it being passed to them.
+ *
+ * The {@link Dictionary}s are shared in the same way. As they only grow any
+ * dictionary at least as large as the one stored can be used.
+ */
+final class EntityCache {
+
+	/**
+	 * When more entities are cached the cache is cleared.
+	 */
+	private static final int MAX_ENTITIES = 10_000;
+
+	private static final Map<DB, EntityCache> CACHES = new WeakHashMap<>();
+
+	static EntityCache of(DB db) {
+		synchronized (CACHES) {
+			return CACHES.computeIfAbsent(db, k -> new EntityCache());
+		}
+	}
+
+	static boolean isCached(ID.Type type) {
+		return type == ID.Type.Output || type == ID.Type.Area || type == ID.Type.Version;
+	}
+
+	private final ConcurrentHashMap<ID, Entity<?>> entities = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<ID, Dictionary> dictionaries = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the cached entity if it has the given version, otherwise null
+	 */
+	Entity<?> get(ID id, int version) {
+		Entity<?> res = entities.get(id);
+		if (res != null && res.version() == version) {
+			Metrics.count(Counter.entityHits);
+			return res;
+		}
+		Metrics.count(Counter.entityMisses);
+		return null;
+	}
+
+	/**
+	 * @param e an entity as it was decoded (not modified)
+	 */
+	void put(Entity<?> e) {
+		if (e.isModified())
+			return;
+		if (entities.size() >= MAX_ENTITIES)
+			entities.clear();
+		entities.put(e.uniqueID(), e);
+	}
+
+	/**
+	 * @return the cached {@link Dictionary} if it has at least the given size,
+	 *         otherwise null
+	 */
+	Dictionary dictionary(ID id, int size) {
+		Dictionary res = dictionaries.get(id);
+		return res != null && res.size() >= size ? res : null;
+	}
+
+	/**
+	 * As dictionaries only grow the larger one is kept.
+	 */
+	void put(ID id, Dictionary dict) {
+		dictionaries.merge(id, dict, (a, b) -> a.size() >= b.size() ? a : b);
+	}
+
+	void invalidate(Changes changes) {
+		for (Changes.Entry<?> e : changes)
+			if (isCached(e.after.uniqueID().type))
+				entities.remove(e.after.uniqueID());
+	}
+
+	int size() {
+		return entities.size();
+	}
+}
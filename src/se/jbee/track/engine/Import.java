@@ -0,0 +1,123 @@
+package se.jbee.track.engine;
+
+import static se.jbee.track.model.Name.as;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.model.Gist;
+import se.jbee.track.model.Motive;
+import se.jbee.track.model.Name;
+
+/**
+ * Loads {@link se.jbee.track.model.Output}s, {@link se.jbee.track.model.Area}s,
+ * {@link se.jbee.track.model.Version}s and {@link se.jbee.track.model.Task}s
+ * from a line based format, one record per line with tab separated fields:
+ *
+ * <pre>
+ * output	{output}
+ * area	{output}	{area}
+ * version	{output}	{version}
+ * task	{output}	{area}	{motive}	{gist}	[{version}]
+ * </pre>
+ *
+ * The version of a task is only used (and required) for defects. Empty lines
+ * and lines starting with <code>#</code> are ignored. Outputs, areas and
+ * versions that already exist are left as they are so that an aborted import
+ * can be run again after removing the tasks already imported from the input.
+ *
+ * Records are applied through the {@link Tracker} like any other
+ * {@link Change} but {@link #BATCH_SIZE} records share a {@link Transaction}.
+ * A batch writes each entity once, with one {@link Event} for all of them, so
+ * that the IDNs of the tasks of an output are assigned in a block.
+ *
+ * No listener is informed about the batches. Caches catch up with the
+ * {@link Event}s of the import once when they are build or restored.
+ */
+public final class Import {
+
+	public static final int BATCH_SIZE = 1000;
+
+	/**
+	 * @return the number of records imported
+	 * @throws IllegalArgumentException in case a line is not a valid record,
+	 *         all batches before the line are imported
+	 */
+	public static int run(Reader input, Name actor, DB db, Server server) throws IOException {
+		BufferedReader in = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+		int records = 0;
+		List<Change> batch = new ArrayList<>(BATCH_SIZE);
+		int lineNo = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			lineNo++;
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			try {
+				batch.add(record(line.split("\t"), actor));
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Invalid record at line "+lineNo+": "+line, e);
+			}
+			if (batch.size() == BATCH_SIZE)
+				records += run(batch, db, server);
+		}
+		if (!batch.isEmpty())
+			records += run(batch, db, server);
+		return records;
+	}
+
+	private static int run(List<Change> batch, DB db, Server server) {
+		Transaction.run((t, tx) -> {
+			for (Change record : batch)
+				record.apply(t, tx);
+		}, db, server);
+		int res = batch.size();
+		batch.clear();
+		return res;
+	}
+
+	private static Change record(String[] fields, Name actor) {
+		Name output = as(fields[1]);
+		switch (fields[0]) {
+		case "output":
+			return (t, tx) -> {
+				if (tx.outputOrNull(output) == null)
+					Change.envision(output, actor).apply(t, tx);
+			};
+		case "area":
+			Name area = as(fields[2]);
+			return (t, tx) -> {
+				if (tx.areaOrNull(output, area) == null)
+					Change.compart(output, area, actor).apply(t, tx);
+			};
+		case "version":
+			Name version = as(fields[2]);
+			return (t, tx) -> {
+				if (tx.versionOrNull(output, version) == null)
+					Change.tag(output, version, actor).apply(t, tx);
+			};
+		case "task":
+			return task(output, as(fields[2]), Motive.valueOf(fields[3]), Gist.gist(fields[4]),
+					fields.length > 5 ? as(fields[5]) : null, actor);
+		default:
+			throw new IllegalArgumentException("Unknown record type: "+fields[0]);
+		}
+	}
+
+	private static Change task(Name output, Name area, Motive motive, Gist gist, Name version, Name actor) {
+		switch (motive) {
+		case defect:
+			if (version == null)
+				throw new IllegalArgumentException("A defect requires a version");
+			return Change.warn(output, gist, actor, area, version, false);
+		case proposal:  return Change.propose(output, gist, actor, area);
+		case reminder:  return Change.remind(output, gist, actor, area);
+		case necessity: return Change.indicate(output, gist, actor, area);
+		default: throw new IllegalArgumentException("Unknown motive: "+motive);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package se.jbee.track.engine;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static se.jbee.track.engine.Bincoder.bin2area;
+import static se.jbee.track.engine.Bincoder.bin2event;
+import static se.jbee.track.engine.Bincoder.bin2output;
+import static se.jbee.track.engine.Bincoder.bin2page;
+import static se.jbee.track.engine.Bincoder.bin2poll;
+import static se.jbee.track.engine.Bincoder.bin2task;
+import static se.jbee.track.engine.Bincoder.bin2user;
+import static se.jbee.track.engine.Bincoder.bin2version;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.DB.Read;
+import se.jbee.track.db.DB.Write;
+import se.jbee.track.model.Entity;
+import se.jbee.track.model.ID;
+
+/**
+ * The journal is the sequence of all values written by {@link Transaction}s
+ * in the order they were committed. It is only written when the
+ * {@link Server.Switch#JOURNAL} is set.
+ *
+ * Each {@link Transaction} adds one record of the exact bytes it puts (or keys
+ * it deletes) in the same write transaction. The record is keyed by
+ * {@link ID#journalId(long)} using the timestamp of the {@link Event}. Each
+ * {@link Transaction} has a timestamp larger than the one before, even within
+ * the same millisecond, so records never overwrite each other.
+ *
+ * Replaying the records up to some point in time into an empty {@link DB}
+ * rebuilds the state the DB had at that time. The {@link Changes} replayed can
+ * also be fed to a listener like a cache.
+ */
+public final class Journal {
+
+	/**
+	 * Records of version 1 do not include the {@link ID.Type} of each key.
+	 */
+	private static final byte JOURNAL_EVN_1 = 1;
+	static final byte JOURNAL_EVN = 2;
+
+	private static final ID FIRST = ID.journalId(0L);
+
+	/**
+	 * Applies all records of the source's journal up to the given time to the
+	 * target. Each record is applied in its own write transaction.
+	 *
+	 * @param listener receives the {@link Changes} of each record applied, can
+	 *        be null
+	 * @return the timestamp of the last record applied or -1 if none was
+	 */
+	public static long replay(DB source, DB target, long until, Consumer<Changes> listener) {
+		long[] last = { -1L };
+		try (Read tx = source.read()) {
+			tx.range(FIRST, (id, record) -> {
+				if (id.type != ID.Type.journal)
+					return false;
+				long timestamp = timestamp(id);
+				if (timestamp > until)
+					return false;
+				Changes changes = apply(record, target, listener != null);
+				if (listener != null)
+					listener.accept(changes);
+				last[0] = timestamp;
+				return true;
+			});
+		}
+		return last[0];
+	}
+
+	private static long timestamp(ID journal) {
+		byte[] key = journal.readonlyBytes();
+		return Long.parseUnsignedLong(new String(key, 2, key.length - 2, US_ASCII), 16);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Changes apply(ByteBuffer record, DB target, boolean decode) {
+		byte version = record.get();
+		if (version != JOURNAL_EVN && version != JOURNAL_EVN_1)
+			throw new IllegalStateException("Unsupported journal version");
+		ID.Type[] types = ID.Type.values();
+		int n = record.getInt();
+		ID[] ids = new ID[n];
+		ByteBuffer[] values = new ByteBuffer[n];
+		Event event = null;
+		for (int i = 0; i < n; i++) {
+			ID.Type type = version == JOURNAL_EVN_1 ? null : types[record.get()];
+			byte[] key = new byte[record.get() & 0xFF];
+			record.get(key);
+			ids[i] = type == null ? ID.fromBytes(key) : ID.fromBytes(type, key);
+			int len = record.getInt();
+			if (len >= 0) {
+				ByteBuffer value = record.slice();
+				value.limit(len);
+				record.position(record.position() + len);
+				values[i] = value;
+				if (ids[i].type == ID.Type.event)
+					event = bin2event.convert(null, value.duplicate());
+			}
+		}
+		try (Write tx = target.write()) {
+			List<Entity<?>> befores = new ArrayList<>();
+			if (decode && event != null) {
+				DAO dao = new DAO(tx);
+				for (Event.Transition t : event) {
+					ID entity = typed(t.entity, ids);
+					befores.add(entity(entity, tx.get(entity), dao));
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				if (values[i] == null) {
+					tx.delete(ids[i]);
+				} else {
+					tx.put(ids[i], values[i]);
+				}
+			}
+			List<Changes.Entry<?>> log = new ArrayList<>();
+			if (decode && event != null) {
+				DAO dao = new DAO(tx);
+				int i = 0;
+				for (Event.Transition t : event) {
+					Entity before = befores.get(i++);
+					ID entity = typed(t.entity, ids);
+					Entity after = entity(entity, tx.get(entity), dao);
+					if (after != null) // deleted
+						log.add(new Changes.Entry(before, t.ops, after));
+				}
+			}
+			tx.commit();
+			return event == null ? Changes.EMPTY : Changes.changes(event.timestamp, log.toArray(new Changes.Entry[0]));
+		}
+	}
+
+	/**
+	 * The entities of an {@link Event} are decoded without their
+	 * {@link ID.Type} which is ambiguous for pages and polls. The keys of the
+	 * record have their type.
+	 */
+	private static ID typed(ID entity, ID[] ids) {
+		for (ID id : ids)
+			if (id.type != ID.Type.history && Arrays.equals(id.readonlyBytes(), entity.readonlyBytes()))
+				return id;
+		return entity;
+	}
+
+	private static Entity<?> entity(ID id, ByteBuffer value, Repository rep) {
+		if (value == null)
+			return null;
+		switch (id.type) {
+		case poll:    return bin2poll.convert(rep, value);
+		case Area:    return bin2area.convert(rep, value);
+		case Page:    return bin2page.convert(rep, value);
+		case Task:    return bin2task.convert(rep, value);
+		case User:    return bin2user.convert(rep, value);
+		case Output:  return bin2output.convert(rep, value);
+		case Version: return bin2version.convert(rep, value);
+		default: throw new UnsupportedOperationException("Not an entity: "+id);
+		}
+	}
+}
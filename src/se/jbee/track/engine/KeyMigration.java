@@ -0,0 +1,146 @@
+package se.jbee.track.engine;
+
+import static se.jbee.track.engine.Bincoder.bin2event;
+import static se.jbee.track.engine.Bincoder.event2bin;
+import static se.jbee.track.engine.Bincoder.event2size;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.DB.Read;
+import se.jbee.track.db.DB.Write;
+import se.jbee.track.model.ID;
+
+/**
+ * Copies a {@link DB} that still uses {@link ID#legacyTaskId(se.jbee.track.model.Name, se.jbee.track.model.IDN)}s
+ * to a {@link DB} using the current {@link ID#taskId(se.jbee.track.model.Name, se.jbee.track.model.IDN)}s.
+ *
+ * Task IDs occur as keys of tasks and their {@link History}s, in the
+ * {@link Event}s and in the records of the {@link Journal}. Everything else is
+ * copied as it is. As both formats have the same length no value changes its
+ * size.
+ *
+ * The source must only contain legacy task IDs as a current task ID whose
+ * {@link se.jbee.track.model.IDN} bytes happen to be base 32 digits cannot be
+ * told apart from a legacy one.
+ */
+public final class KeyMigration {
+
+	private static final int BATCH_SIZE = 10_000;
+
+	/**
+	 * @return the number of entries copied
+	 */
+	public static int run(DB source, DB target) {
+		return run(source, target, BATCH_SIZE);
+	}
+
+	static int run(DB source, DB target, int batchSize) {
+		int[] entries = { 0 };
+		List<ID> keys = new ArrayList<>(batchSize);
+		List<ByteBuffer> values = new ArrayList<>(batchSize);
+		try (Read tx = source.read()) {
+			for (ID.Type type : ID.Type.values()) {
+				tx.range(type, null, null, false, (k, v) -> {
+					keys.add(migrate(k));
+					values.add(migrate(type, v));
+					entries[0]++;
+					if (keys.size() == batchSize)
+						write(keys, values, target);
+					return true;
+				});
+				write(keys, values, target);
+			}
+		}
+		return entries[0];
+	}
+
+	private static void write(List<ID> keys, List<ByteBuffer> values, DB target) {
+		if (keys.isEmpty())
+			return;
+		try (Write tx = target.write()) {
+			for (int i = 0; i < keys.size(); i++)
+				tx.put(keys.get(i), values.get(i));
+			tx.commit();
+		}
+		keys.clear();
+		values.clear();
+	}
+
+	static ID migrate(ID id) {
+		if (id.type == ID.Type.history) {
+			ID entity = id.entity();
+			ID migrated = migrate(entity);
+			return migrated == entity ? id : ID.historyId(migrated);
+		}
+		ID res = id.fromLegacyTaskId();
+		return res == null ? id : res;
+	}
+
+	/**
+	 * @return a copy of the value with all task IDs in it migrated
+	 */
+	private static ByteBuffer migrate(ID.Type type, ByteBuffer value) {
+		switch (type) {
+		case event:   return migrateEvent(value);
+		case journal: return migrateJournal(value);
+		default:      return copy(value);
+		}
+	}
+
+	private static ByteBuffer migrateEvent(ByteBuffer value) {
+		Event e = bin2event.convert(null, value);
+		Event.Transition[] transitions = new Event.Transition[e.cardinality()];
+		for (int i = 0; i < transitions.length; i++) {
+			Event.Transition t = e.transition(i);
+			transitions[i] = new Event.Transition(migrate(t.entity), t.ops);
+		}
+		Event migrated = new Event(e.timestamp, e.actor, transitions);
+		ByteBuffer res = ByteBuffer.allocate(event2size.applyAsInt(migrated));
+		event2bin.convert(migrated, res);
+		res.flip();
+		return res;
+	}
+
+	/**
+	 * A record has the same layout as written by {@link Arena#journal(ID)}.
+	 * Records of version 1 do not have the type of each key.
+	 */
+	private static ByteBuffer migrateJournal(ByteBuffer value) {
+		ByteBuffer res = copy(value);
+		boolean typed = res.get() == Journal.JOURNAL_EVN;
+		ID.Type[] types = ID.Type.values();
+		for (int n = res.getInt(); n > 0; n--) {
+			ID.Type type = typed ? types[res.get()] : null;
+			int start = res.position();
+			byte[] key = new byte[res.get() & 0xFF];
+			res.get(key);
+			ID id = type == null ? ID.fromBytes(key) : ID.fromBytes(type, key);
+			ID migrated = migrate(id);
+			if (migrated != id) {
+				res.position(start + 1);
+				res.put(migrated.readonlyBytes());
+			}
+			int len = res.getInt();
+			if (len >= 0) {
+				int end = res.position() + len;
+				if (id.type == ID.Type.event) {
+					ByteBuffer event = res.duplicate();
+					event.limit(end);
+					res.put(migrateEvent(event));
+				}
+				res.position(end);
+			}
+		}
+		res.position(0);
+		return res;
+	}
+
+	private static ByteBuffer copy(ByteBuffer value) {
+		ByteBuffer res = ByteBuffer.allocate(value.remaining());
+		res.put(value.duplicate()).flip();
+		return res;
+	}
+}
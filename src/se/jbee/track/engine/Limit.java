@@ -1,5 +1,8 @@
 package se.jbee.track.engine;
 
+import java.util.Arrays;
+
+import se.jbee.track.model.ID;
 import se.jbee.track.model.Identifier;
 import se.jbee.track.model.Name;
 
@@ -18,6 +21,14 @@ public final class Limit extends Identifier<Limit> {
 		return new Limit(join(DIVIDER, asciiBytes(type), DIVIDER, name.readonlyBytes()));
 	}
 
+	/**
+	 * @param id a {@link ID#limitId(se.jbee.track.model.ByteSequence)}
+	 */
+	public static Limit fromId(ID id) {
+		byte[] bytes = id.readonlyBytes();
+		return new Limit(Arrays.copyOfRange(bytes, 2, bytes.length));
+	}
+
 	public int factor() {
 		char last = charAt(length()-1);
 		if (last == '*')
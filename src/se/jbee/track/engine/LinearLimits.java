@@ -1,9 +1,14 @@
 package se.jbee.track.engine;
 
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Keeps track of {@link Limit}s.
@@ -17,125 +22,328 @@ import java.util.concurrent.atomic.AtomicInteger;
  * caller has to keep track of occupied limits. Double-occupation (even in same
  * thread) is illegal. Free should be called at the end of a modification,
  * successful or not.
+ *
+ * The {@link Limit}s are kept in {@link #STRIPES} independent maps. Each
+ * counter packs its period and count into a single <code>long</code> that is
+ * updated by CAS so that no locks are involved.
+ *
+ * {@link Limit}s that have not been stressed for a day are expired using a
+ * timing wheel with a slot per hour. When the wheel turns to the next hour the
+ * one thread that succeeds in turning it expires the limits scheduled for that
+ * hour. All others continue right away. Limits still in use are rescheduled.
+ * That way there is never a scan of all limits. A limit is marked expired by a
+ * CAS so that it cannot be occupied and expired at the same time.
+ *
+ * When {@link #share()}d the counters stressed since the last synchronisation
+ * can be taken as {@link #increments()} and totals from other sources can be
+ * {@link #merge(Map, long)}d back in. This is used by {@link SharedLimits}.
  */
 public final class LinearLimits implements Limits {
 
 	private static final int ONE_HOUR = 1000*60*60;
 	private static final int ONE_DAY = 1000*60*60*24;
 
+	private static final int FREE = 0;
+	private static final int OCCUPIED = 1;
+	private static final int EXPIRED = 2; // final, no longer in the map
+
+	private static final int STRIPES = 16; // power of 2
+	private static final int SLOTS = 32; // > 25 hours
+
 	private final int base;
-	private final ConcurrentHashMap<Limit, LimitsPerPeriod> stats = new ConcurrentHashMap<>();
-	private long nextCleanup;
+	@SuppressWarnings("unchecked")
+	private final ConcurrentHashMap<Limit, LimitsPerPeriod>[] stats = (ConcurrentHashMap<Limit, LimitsPerPeriod>[]) new ConcurrentHashMap<?, ?>[STRIPES];
+	@SuppressWarnings("unchecked")
+	private final ConcurrentLinkedQueue<LimitsPerPeriod>[] wheel = (ConcurrentLinkedQueue<LimitsPerPeriod>[]) new ConcurrentLinkedQueue<?>[SLOTS];
+	private final AtomicLong wheelHour = new AtomicLong(Long.MIN_VALUE);
+	private final ConcurrentLinkedQueue<LimitsPerPeriod> dirty = new ConcurrentLinkedQueue<>();
+	private volatile boolean shared = false;
 
 	public LinearLimits(int base) {
 		this.base = base;
-		this.nextCleanup = Long.MIN_VALUE;
+		for (int i = 0; i < STRIPES; i++)
+			stats[i] = new ConcurrentHashMap<>();
+		for (int i = 0; i < SLOTS; i++)
+			wheel[i] = new ConcurrentLinkedQueue<>();
 	}
 
 	@Override
 	public boolean stress(Limit l, Clock clock) {
-		return periodLimits(l, clock).stress(clock.time());
+		long now = clock.time();
+		while (true) {
+			LimitsPerPeriod limits = periodLimits(l, now);
+			boolean res = limits.stress(now);
+			if (!isExpired(limits)) {
+				if (shared)
+					markDirty(limits);
+				return res;
+			}
+		}
 	}
 
 	@Override
 	public boolean occupy(Limit l, Clock clock) throws ConcurrentUsage {
-		LimitsPerPeriod limits = periodLimits(l, clock);
-		if (!limits.allocated.compareAndSet(false, true)) {
-			throw new ConcurrentUsage(l);
+		long now = clock.time();
+		LimitsPerPeriod limits = periodLimits(l, now);
+		while (!limits.state.compareAndSet(FREE, OCCUPIED)) {
+			if (!isExpired(limits))
+				throw new ConcurrentUsage(l);
+			limits = periodLimits(l, now);
+		}
+		try {
+			return limits.stress(now);
+		} finally {
+			if (shared)
+				markDirty(limits);
 		}
-		return limits.stress(clock.time());
 	}
 
 	@Override
 	public void free(Limit l) {
-		if (!periodLimits(l, null).allocated.compareAndSet(true, false)) {
+		LimitsPerPeriod limits = stripe(l).get(l);
+		if (limits == null || !limits.state.compareAndSet(OCCUPIED, FREE)) {
 			throw new ConcurrentUsage(l);
 		}
 	}
 
-	private LimitsPerPeriod periodLimits(Limit l, Clock clock) {
-		if (clock != null) {
-			long now = clock.time();
-			if (now > nextCleanup) {
-				cleanup(now);
-				nextCleanup = now+ONE_HOUR;
+	/**
+	 * Starts to keep track of the {@link Limit}s stressed so that they can be
+	 * synchronised using {@link #increments()} and {@link #merge(Map, long)}.
+	 */
+	void share() {
+		shared = true;
+	}
+
+	private void markDirty(LimitsPerPeriod limits) {
+		if (!limits.dirty.get() && limits.dirty.compareAndSet(false, true))
+			dirty.add(limits);
+	}
+
+	/**
+	 * Should only be called by a single thread.
+	 *
+	 * @return the counts added since the last call to this method or
+	 *         {@link #merge(Map, long)} for each {@link Limit} stressed since
+	 *         the last call. Each period and count is packed into one long.
+	 */
+	Map<Limit, long[]> increments() {
+		Map<Limit, long[]> res = new HashMap<>();
+		LimitsPerPeriod limits = dirty.poll();
+		while (limits != null) {
+			limits.dirty.set(false); // stressing from now on marks it again
+			res.put(limits.limit, limits.increments());
+			limits = dirty.poll();
+		}
+		return res;
+	}
+
+	/**
+	 * Sets the counts to the given totals (plus any local counts not included
+	 * in them yet). Should only be called by the thread calling
+	 * {@link #increments()}.
+	 *
+	 * @param totals each period and count packed into one long
+	 */
+	void merge(Map<Limit, long[]> totals, long now) {
+		for (Entry<Limit, long[]> e : totals.entrySet()) {
+			LimitsPerPeriod limits = periodLimits(e.getKey(), now);
+			limits.merge(e.getValue());
+			while (isExpired(limits)) {
+				limits = periodLimits(e.getKey(), now);
+				limits.merge(e.getValue());
 			}
 		}
-		return stats.computeIfAbsent(l, (li) -> { return new LimitsPerPeriod(li, base); } );
 	}
 
-	private void cleanup(long now) {
-		Iterator<LimitsPerPeriod> limits = stats.values().iterator();
-		while (limits.hasNext()) {
-			if (now - limits.next().lastStressed > ONE_DAY) {
-				limits.remove();
+	static int period(long packed) {
+		return (int) (packed >>> 32);
+	}
+
+	static int count(long packed) {
+		return (int) packed;
+	}
+
+	static long pack(int period, int count) {
+		return ((long) period << 32) | (count & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return the sum of two packed counts, where counts of an earlier period
+	 *         are discarded
+	 */
+	static long add(long a, long b) {
+		int pa = period(a);
+		int pb = period(b);
+		if (pa == pb)
+			return pack(pa, count(a) + count(b));
+		return pb - pa > 0 ? b : a;
+	}
+
+	/**
+	 * @return number of {@link Limit}s currently tracked
+	 */
+	int tracked() {
+		int res = 0;
+		for (ConcurrentHashMap<Limit, LimitsPerPeriod> s : stats)
+			res += s.size();
+		return res;
+	}
+
+	private ConcurrentHashMap<Limit, LimitsPerPeriod> stripe(Limit l) {
+		int h = l.hashCode();
+		return stats[(h ^ (h >>> 16)) & (STRIPES-1)];
+	}
+
+	private LimitsPerPeriod periodLimits(Limit l, long now) {
+		long hour = now / ONE_HOUR;
+		turnWheel(hour);
+		return stripe(l).computeIfAbsent(l, (li) -> {
+			LimitsPerPeriod res = new LimitsPerPeriod(li, base);
+			res.lastStressed = now;
+			schedule(res, hour);
+			return res;
+		});
+	}
+
+	/**
+	 * Limits are marked expired before they are removed. A thread that got
+	 * hold of one just before uses the one added in its place instead. As it
+	 * might still be in the map it is removed to make room for that.
+	 */
+	private boolean isExpired(LimitsPerPeriod limits) {
+		if (limits.state.get() != EXPIRED)
+			return false;
+		stripe(limits.limit).remove(limits.limit, limits);
+		return true;
+	}
+
+	private void schedule(LimitsPerPeriod limits, long lastStressedHour) {
+		wheel[(int) ((lastStressedHour + 25) % SLOTS)].add(limits);
+	}
+
+	private void turnWheel(long hour) {
+		long current = wheelHour.get();
+		if (hour <= current || !wheelHour.compareAndSet(current, hour))
+			return; // not turning or another thread is turning it
+		if (current == Long.MIN_VALUE)
+			return; // first turn, nothing scheduled yet
+		long first = Math.max(current + 1, hour - SLOTS + 1);
+		for (long h = first; h <= hour; h++)
+			expire(wheel[(int) (h % SLOTS)], hour * ONE_HOUR);
+	}
+
+	private void expire(ConcurrentLinkedQueue<LimitsPerPeriod> slot, long now) {
+		for (int n = slot.size(); n > 0; n--) {
+			LimitsPerPeriod limits = slot.poll();
+			if (limits == null)
+				return;
+			if (now - limits.lastStressed > ONE_DAY && limits.state.compareAndSet(FREE, EXPIRED)) {
+				stripe(limits.limit).remove(limits.limit, limits);
+			} else {
+				schedule(limits, limits.lastStressed / ONE_HOUR);
 			}
 		}
 	}
 
 	private static final class LimitsPerPeriod {
 
+		private static final int[] FACTORS = { 1, 10, 20, 30, 50 };
+		private static final int[] DIVISORS = { 1000, 1000*60, 1000*60*15, ONE_HOUR, ONE_DAY };
+		private static final String[] NAMES = { "s", "m", "q", "h", "d" };
+
 		private final Limit limit;
-		private final LimitPerPeriod second;
-		private final LimitPerPeriod minute;
-		private final LimitPerPeriod quater;
-		private final LimitPerPeriod hour;
-		private final LimitPerPeriod day;
-		final AtomicBoolean allocated = new AtomicBoolean(false);
-		long lastStressed;
+		private final int[] limits = new int[FACTORS.length];
+		/**
+		 * Per period: the period in the upper and the count in the lower 32 bits.
+		 */
+		private final AtomicLongArray counts = new AtomicLongArray(FACTORS.length);
+		final AtomicInteger state = new AtomicInteger(FREE);
+		final AtomicBoolean dirty = new AtomicBoolean(false);
+		volatile long lastStressed;
+		/**
+		 * Per period: the part of the count that is known to the source
+		 * {@link #merge(long[])}ed from. Only used by the synchronising thread.
+		 */
+		private final long[] synced = new long[FACTORS.length];
 
 		LimitsPerPeriod(Limit l, int base) {
 			this.limit = l;
 			int f = l.factor() * base;
-			this.second = new LimitPerPeriod( 1*f, 1000);
-			this.minute = new LimitPerPeriod(10*f, 1000*60);
-			this.quater = new LimitPerPeriod(20*f, 1000*60*15);
-			this.hour   = new LimitPerPeriod(30*f, ONE_HOUR);
-			this.day    = new LimitPerPeriod(50*f, ONE_DAY);
+			for (int i = 0; i < limits.length; i++)
+				limits[i] = FACTORS[i] * f;
 		}
 
 		boolean stress(long now) {
 			lastStressed=now;
-			return second.stress(now) && minute.stress(now) && quater.stress(now) && hour.stress(now) && day.stress(now);
+			for (int i = 0; i < limits.length; i++)
+				if (!stress(i, now))
+					return false;
+			return true;
 		}
 
-		@SuppressWarnings("boxing")
-		@Override
-		public String toString() {
-			return String.format("%s [s%d/%d m%d/%d q%d/%d h%d/%d d%d/%d]",
-					limit, second.count.get(), second.limit,
-					minute.count.get(), minute.limit, quater.count.get(),
-					quater.limit, hour.count.get(), hour.limit,
-					day.count.get(), hour.limit);
+		private boolean stress(int i, long now) {
+			final int period = (int) (now / DIVISORS[i]);
+			final int limit = limits[i];
+			while (true) {
+				long packed = counts.get(i);
+				int current = period(packed);
+				int count = count(packed);
+				if (period - current > 0) { // a later period starts
+					current = period;
+					count = 0;
+				}
+				if (count >= limit) // already larger?
+					return false;
+				if (counts.compareAndSet(i, packed, pack(current, count + 1)))
+					return count + 1 < limit; // could we inc it without overflow?
+			}
 		}
-	}
 
-	private static final class LimitPerPeriod {
+		long[] increments() {
+			long[] res = new long[synced.length];
+			for (int i = 0; i < res.length; i++) {
+				long packed = counts.get(i);
+				res[i] = pack(period(packed), count(packed) - known(i, packed));
+				synced[i] = packed;
+			}
+			return res;
+		}
 
-		/**
-		 * The absolute limit that cannot be exceeded.
-		 */
-		final int limit;
-		final int periodDivisor;
+		void merge(long[] totals) {
+			for (int i = 0; i < totals.length && i < synced.length; i++) {
+				long total = totals[i];
+				int period = period(total);
+				while (true) {
+					long packed = counts.get(i);
+					if (period(packed) - period > 0)
+						break; // totals are outdated
+					int unknown = period(packed) == period ? count(packed) - known(i, packed) : 0;
+					if (counts.compareAndSet(i, packed, pack(period, count(total) + unknown))) {
+						synced[i] = total;
+						break;
+					}
+				}
+			}
+		}
 
-		long previousPeriod;
-		AtomicInteger count = new AtomicInteger();
+		private int known(int i, long packed) {
+			return period(synced[i]) == period(packed) ? count(synced[i]) : 0;
+		}
 
-		LimitPerPeriod(int limit, int periodDivisor) {
-			this.limit = limit;
-			this.periodDivisor = periodDivisor;
+		int countOf(int i) {
+			return LinearLimits.count(counts.get(i));
 		}
 
-		boolean stress(long now) {
-			long period = now / periodDivisor;
-			if (period > previousPeriod) {
-				count.set(0);
-				previousPeriod = period;
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append(limit).append(" [");
+			for (int i = 0; i < limits.length; i++) {
+				if (i > 0)
+					str.append(' ');
+				str.append(NAMES[i]).append(countOf(i)).append('/').append(limits[i]);
 			}
-			if (count.get() >= limit) // already larger?
-				return false;
-			return count.incrementAndGet() < limit; // could we inc it without overflow?
+			return str.append(']').toString();
 		}
-
 	}
 }
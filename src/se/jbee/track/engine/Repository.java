@@ -27,7 +27,34 @@ public interface Repository extends AutoCloseable {
 	Event event(long timestamp) throws UnknownEntity;
 	History history(ID entity) throws UnknownEntity;
 
+	/**
+	 * @return the {@link Dictionary} of the output, an empty one if the output
+	 *         has none yet
+	 */
+	Dictionary dictionary(Name output);
+
 	void tasks(Name output, Predicate<Task> consumer);
+
+	/**
+	 * @param first the {@link IDN} of the first {@link Task} (inclusive)
+	 * @param end the {@link IDN} to stop at (exclusive)
+	 * @param consumer receives the {@link Task}s in {@link IDN} order until it
+	 *        returns false
+	 */
+	void tasks(Name output, IDN first, IDN end, Predicate<Task> consumer);
+
+	/**
+	 * @param from the timestamp of the first {@link Event} (inclusive)
+	 * @param consumer receives the {@link Event}s in chronological order
+	 *        until it returns false
+	 */
+	void events(long from, Predicate<Event> consumer);
+
+	/**
+	 * @return the {@link Event}s with the given timestamps that exist in
+	 *         chronological order
+	 */
+	Event[] events(long[] timestamps);
 	
 	Output[] outputs();
 	Page[] pages(Name output, Name menu);
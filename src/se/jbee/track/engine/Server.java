@@ -3,15 +3,19 @@ package se.jbee.track.engine;
 import static java.lang.Integer.parseInt;
 import static java.lang.Short.parseShort;
 import static se.jbee.track.engine.Server.Switch.DEDICATED;
+import static se.jbee.track.engine.Server.Switch.JOURNAL;
 import static se.jbee.track.engine.Server.Switch.LOCKDOWN;
 import static se.jbee.track.engine.Server.Switch.OPEN;
+import static se.jbee.track.engine.Server.Switch.OPTIMISTIC;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.EnumMap;
 import java.util.EnumSet;
 
 import se.jbee.track.model.Date;
 import se.jbee.track.model.Email;
+import se.jbee.track.model.ID;
 import se.jbee.track.model.Output;
 import se.jbee.track.model.User;
 
@@ -40,6 +44,12 @@ public final class Server {
 	 * -o       open: allow users to create outputs
 	 * -l       lock-down: only the admin user may log in
 	 * -d       dedicated: allow user to see admin's email
+	 * -c       optimistic: detect concurrent changes on commit and retry
+	 * -j       journal: record all values written by each transaction
+	 * -n N     shards: distribute outputs and users over N DBs (default 1)
+	 * -t N     scan threshold: filter outputs with N or more tasks in parallel (default 16384)
+	 * -q MS    slow queries: record cache lookups taking MS or longer (default 100)
+	 * -r TYPE=N history retention: keep the last N events of entities of TYPE
 	 * </pre>
 	 *
 	 * @param args
@@ -64,6 +74,12 @@ public final class Server {
 			case 'o': res = res.with(Switch.OPEN); break;
 			case 'l': res = res.with(Switch.LOCKDOWN); break;
 			case 'd': res = res.with(Switch.DEDICATED); break;
+			case 'c': res = res.with(Switch.OPTIMISTIC); break;
+			case 'j': res = res.with(Switch.JOURNAL); break;
+			case 'n': res = res.withShards(parseInt(args[i++])); break;
+			case 't': res = res.withParallelScan(parseInt(args[i++])); break;
+			case 'q': res = res.withSlowQuery(parseInt(args[i++])); break;
+			case 'r': res = withRetention(res, args[i++]); break;
 			case 'h': System.out.println("Usage: java -jar collaborate.jar [OPTION...]"); System.exit(0); break;
 			default:
 				throw new IllegalArgumentException("Unknown option: "+args[i-1]);
@@ -72,6 +88,22 @@ public final class Server {
 		return res;
 	}
 
+	private static Server withRetention(Server server, String typeEqN) {
+		int eq = typeEqN.indexOf('=');
+		if (eq < 0)
+			throw new IllegalArgumentException("Expected TYPE=N but got: "+typeEqN);
+		return server.with(ID.Type.valueOf(typeEqN.substring(0, eq)), parseInt(typeEqN.substring(eq+1)));
+	}
+
+	/**
+	 * Like the legacy history: the first and the last 7 events.
+	 */
+	private static final int DEFAULT_HISTORY_RETENTION = 7;
+
+	private static final int DEFAULT_PARALLEL_SCAN = 16384;
+
+	private static final int DEFAULT_SLOW_QUERY = 100;
+
 	public static enum Switch {
 		/**
 		 * If set any register {@link User} may create {@link Output}s otherwise
@@ -94,6 +126,21 @@ public final class Server {
 		 */
 		DEDICATED,
 
+		/**
+		 * If set concurrent changes to the same entities are detected when
+		 * committing a transaction which then is retried. Otherwise the
+		 * specific {@link Limit}s are occupied during a transaction so that
+		 * concurrent changes fail right away.
+		 */
+		OPTIMISTIC,
+
+		/**
+		 * If set all values written by a transaction are also recorded in
+		 * the {@link Journal} so that the DB can be rebuild to any point in
+		 * time.
+		 */
+		JOURNAL,
+
 	}
 
 	/**
@@ -116,15 +163,30 @@ public final class Server {
 	public final Clock clock;
 	public final Limits limits;
 	private final EnumSet<Switch> switches;
+	private final EnumMap<ID.Type, Integer> retention;
 	public final int port;
+	/**
+	 * Number of DBs the outputs and users are distributed over, 1 for a single
+	 * DB.
+	 */
+	public final int shards;
+	/**
+	 * Number of tasks an output must have for a cache to filter all of them in
+	 * parallel.
+	 */
+	public final int parallelScan;
+	/**
+	 * Milliseconds a cache lookup must take to be recorded as slow query.
+	 */
+	public final int slowQuery;
 
 	public Server() {
 		this(Email.NO_ADMIN,
 				new File(System.getProperty("java.io.tmpdir") + "/collaborate-"+Date.today()+"/"), 1014L * 1024L * 10L, 8080,
-				() -> System.currentTimeMillis(), new LinearLimits(5), EnumSet.noneOf(Switch.class));
+				() -> System.currentTimeMillis(), new LinearLimits(5), EnumSet.noneOf(Switch.class), new EnumMap<>(ID.Type.class), 1, DEFAULT_PARALLEL_SCAN, DEFAULT_SLOW_QUERY);
 	}
 
-	private Server(Email admin, File pathDB, long sizeDB, int port, Clock clock, Limits limits, EnumSet<Switch> switches) {
+	private Server(Email admin, File pathDB, long sizeDB, int port, Clock clock, Limits limits, EnumSet<Switch> switches, EnumMap<ID.Type, Integer> retention, int shards, int parallelScan, int slowQuery) {
 		this.admin = admin;
 		this.pathDB = pathDB;
 		this.sizeDB = sizeDB;
@@ -132,6 +194,10 @@ public final class Server {
 		this.clock = clock;
 		this.limits = limits;
 		this.switches = switches;
+		this.retention = retention;
+		this.shards = shards;
+		this.parallelScan = parallelScan;
+		this.slowQuery = slowQuery;
 		this.isTemporary = pathDB.getPath().startsWith(System.getProperty("java.io.tmpdir"));
 	}
 
@@ -143,27 +209,35 @@ public final class Server {
 		return switches.contains(LOCKDOWN);
 	}
 
+	public boolean isOptimistic() {
+		return switches.contains(OPTIMISTIC);
+	}
+
+	public boolean isJournaled() {
+		return switches.contains(JOURNAL);
+	}
+
 	public boolean isAdmin(User user) {
 		return user.email.equalTo(admin);
 	}
 
 	public Server with(Clock clock) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
 	}
 
 	public Server with(Limits limits) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
 	}
 
 	public Server with(Email admin) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
 	}
 
 	public Server with(Switch...switches) {
 		return new Server(admin, pathDB, sizeDB, port, clock, limits,
 				switches.length == 0
 				? EnumSet.noneOf(Switch.class)
-				: EnumSet.of(switches[0], switches));
+				: EnumSet.of(switches[0], switches), retention, shards, parallelScan, slowQuery);
 	}
 
 	public Server with(File pathDB) throws IOException {
@@ -173,15 +247,15 @@ public final class Server {
 		if (!pathDB.isDirectory()) {
 			throw new IllegalArgumentException("Please provide the folder the database is located, not a file like: "+pathDB);
 		}
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
 	}
 
 	public Server with(short sizeDB) {
-		return new Server(admin, pathDB, 1014L * 1024L * sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, 1014L * 1024L * sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
 	}
 
 	public Server with(int port) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
 	}
 
 	public Server with(Switch s) {
@@ -189,7 +263,46 @@ public final class Server {
 			return this;
 		EnumSet<Switch> switches = this.switches.clone();
 		switches.add(s);
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
+	}
+
+	public Server withShards(int shards) {
+		if (shards < 1)
+			throw new IllegalArgumentException("At least one shard is needed: "+shards);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
+	}
+
+	public Server withParallelScan(int parallelScan) {
+		if (parallelScan < 2)
+			throw new IllegalArgumentException("Parallel scan threshold must be at least 2: "+parallelScan);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
+	}
+
+	public Server withSlowQuery(int slowQuery) {
+		if (slowQuery < 0)
+			throw new IllegalArgumentException("Slow query threshold must not be negative: "+slowQuery);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
+	}
+
+	/**
+	 * @param type the type of {@link ID} the retention is set for
+	 * @param events the number of most recent events kept in a {@link History}
+	 *        of an entity of that type (besides the first one)
+	 */
+	public Server with(ID.Type type, int events) {
+		if (events < 1)
+			throw new IllegalArgumentException("A history has to keep at least one event: "+events);
+		EnumMap<ID.Type, Integer> retention = this.retention.clone();
+		retention.put(type, events);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, retention, shards, parallelScan, slowQuery);
+	}
+
+	/**
+	 * @return the number of most recent events kept in a {@link History} of an
+	 *         entity with the given type of {@link ID}
+	 */
+	public int historyRetention(ID.Type type) {
+		return retention.getOrDefault(type, DEFAULT_HISTORY_RETENTION);
 	}
 
 	public Email admin() {
@@ -0,0 +1,167 @@
+package se.jbee.track.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Limits} that are synchronised with a {@link Backend} periodically.
+ *
+ * All {@link #stress(Limit, Clock)}ing is done against the local
+ * {@link LinearLimits} without any round-trip. Every period the counts added
+ * locally are sent to the {@link Backend} which answers with the totals that
+ * then replace the local counts. Between two synchronisations a limit can
+ * therefore be exceeded by the usage of other nodes within that period.
+ *
+ * The {@link Backend} can be a persistent one like {@link StoredLimits} so that
+ * a restart does not reset the limits or one shared between multiple nodes.
+ *
+ * {@link #occupy(Limit, Clock)} is about detecting concurrent modifications
+ * within one node. It is not synchronised and stays local.
+ */
+public final class SharedLimits implements Limits, AutoCloseable {
+
+	/**
+	 * The source of truth for the {@link Limit} counts. Counts are given as
+	 * <code>long</code>s with the period in the upper and the count in the
+	 * lower 32 bits, one for each period second, minute, quarter, hour, day.
+	 */
+	public interface Backend {
+
+		/**
+		 * @param increments the counts added locally since the last exchange
+		 * @return the totals of at least all the given {@link Limit}s, it might
+		 *         include totals of other {@link Limit}s that did change since
+		 *         the last exchange
+		 */
+		Map<Limit, long[]> exchange(Map<Limit, long[]> increments);
+
+		/**
+		 * @return all totals known, used on startup
+		 */
+		Map<Limit, long[]> totals();
+	}
+
+	private final LinearLimits limits;
+	private final Backend backend;
+	private final Clock clock;
+	private final ScheduledExecutorService sync;
+
+	public SharedLimits(LinearLimits limits, Backend backend, Clock clock, long syncPeriodMillis) {
+		this.limits = limits;
+		this.backend = backend;
+		this.clock = clock;
+		limits.share();
+		limits.merge(backend.totals(), clock.time());
+		this.sync = Executors.newSingleThreadScheduledExecutor(this::factory);
+		sync.scheduleWithFixedDelay(this::syncQuietly, syncPeriodMillis, syncPeriodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private Thread factory(Runnable target) {
+		Thread t = new Thread(target);
+		t.setDaemon(true);
+		t.setName("limits-sync");
+		return t;
+	}
+
+	@Override
+	public boolean stress(Limit l, Clock clock) throws ConcurrentUsage {
+		return limits.stress(l, clock);
+	}
+
+	@Override
+	public boolean occupy(Limit l, Clock clock) throws ConcurrentUsage {
+		return limits.occupy(l, clock);
+	}
+
+	@Override
+	public void free(Limit l) throws ConcurrentUsage {
+		limits.free(l);
+	}
+
+	/**
+	 * Sends the local increments to the {@link Backend} and merges the
+	 * returned totals.
+	 */
+	public void sync() {
+		try {
+			sync.submit(this::exchange).get();
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to synchronise limits", e);
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			exchange();
+		} catch (RuntimeException e) {
+			// try again next time, otherwise the scheduler would stop
+		}
+	}
+
+	private void exchange() {
+		limits.merge(backend.exchange(limits.increments()), clock.time());
+	}
+
+	@Override
+	public void close() {
+		try {
+			sync();
+		} finally {
+			sync.shutdown();
+		}
+	}
+
+	/**
+	 * A in-process stand-in for a {@link Backend} shared by multiple nodes,
+	 * each using its own {@link #node()}.
+	 */
+	public static final class Local {
+
+		private final Map<Limit, long[]> totals = new HashMap<>();
+		private final Map<Limit, Long> updates = new HashMap<>();
+		private long serial = 0;
+
+		public Backend node() {
+			return new Backend() {
+
+				private long seen = 0;
+
+				@Override
+				public Map<Limit, long[]> exchange(Map<Limit, long[]> increments) {
+					synchronized (Local.this) {
+						serial++;
+						for (Entry<Limit, long[]> e : increments.entrySet()) {
+							long[] total = totals.computeIfAbsent(e.getKey(), l -> new long[e.getValue().length]);
+							long[] inc = e.getValue();
+							for (int i = 0; i < total.length; i++)
+								total[i] = LinearLimits.add(total[i], inc[i]);
+							updates.put(e.getKey(), serial);
+						}
+						Map<Limit, long[]> res = new HashMap<>();
+						for (Entry<Limit, Long> e : updates.entrySet()) {
+							if (e.getValue() > seen)
+								res.put(e.getKey(), totals.get(e.getKey()).clone());
+						}
+						seen = serial;
+						return res;
+					}
+				}
+
+				@Override
+				public Map<Limit, long[]> totals() {
+					synchronized (Local.this) {
+						Map<Limit, long[]> res = new HashMap<>();
+						for (Entry<Limit, long[]> e : totals.entrySet())
+							res.put(e.getKey(), e.getValue().clone());
+						seen = serial;
+						return res;
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package se.jbee.track.engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.DB.Read;
+import se.jbee.track.db.DB.Write;
+import se.jbee.track.model.ID;
+
+/**
+ * A {@link SharedLimits.Backend} that keeps the totals in the {@link DB}.
+ *
+ * The increments are written in batches of up to {@link #BATCH_SIZE}
+ * {@link Limit}s per write transaction so that ongoing {@link Transaction}s
+ * are not blocked for long.
+ */
+public final class StoredLimits implements SharedLimits.Backend {
+
+	private static final byte LIMIT_EVN = 1;
+	private static final int PERIODS = 5;
+	private static final int BATCH_SIZE = 256;
+	private static final long ONE_DAY = 1000L*60*60*24;
+
+	private final DB db;
+	private final Clock clock;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(1 + PERIODS * 8);
+
+	public StoredLimits(DB db, Clock clock) {
+		this.db = db;
+		this.clock = clock;
+	}
+
+	@Override
+	public synchronized Map<Limit, long[]> exchange(Map<Limit, long[]> increments) {
+		Map<Limit, long[]> res = new HashMap<>();
+		Iterator<Entry<Limit, long[]>> iter = increments.entrySet().iterator();
+		while (iter.hasNext()) {
+			try (Write tx = db.write()) {
+				for (int i = 0; i < BATCH_SIZE && iter.hasNext(); i++) {
+					Entry<Limit, long[]> e = iter.next();
+					ID id = ID.limitId(e.getKey());
+					long[] total = decode(tx.get(id));
+					long[] inc = e.getValue();
+					for (int p = 0; p < PERIODS; p++)
+						total[p] = LinearLimits.add(total[p], inc[p]);
+					tx.put(id, encode(total));
+					res.put(e.getKey(), total);
+				}
+				tx.commit();
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Also removes totals whose day has passed.
+	 */
+	@Override
+	public synchronized Map<Limit, long[]> totals() {
+		final int today = (int) (clock.time() / ONE_DAY);
+		Map<Limit, long[]> res = new HashMap<>();
+		List<ID> outdated = new ArrayList<>();
+		try (Read tx = db.read()) {
+			tx.range(ID.Type.limit, null, null, false, (id, val) -> {
+				long[] total = decode(val);
+				if (LinearLimits.period(total[PERIODS-1]) < today) {
+					outdated.add(id);
+				} else {
+					res.put(Limit.fromId(id), total);
+				}
+				return true;
+			});
+		}
+		if (!outdated.isEmpty()) {
+			try (Write tx = db.write()) {
+				for (ID id : outdated)
+					tx.delete(id);
+				tx.commit();
+			}
+		}
+		return res;
+	}
+
+	private ByteBuffer encode(long[] total) {
+		buf.clear();
+		buf.put(LIMIT_EVN);
+		for (int p = 0; p < PERIODS; p++)
+			buf.putLong(total[p]);
+		buf.flip();
+		return buf;
+	}
+
+	private static long[] decode(ByteBuffer val) {
+		long[] res = new long[PERIODS];
+		if (val == null)
+			return res;
+		if (val.get() != LIMIT_EVN)
+			throw new IllegalStateException("Unsupported limit version");
+		for (int p = 0; p < PERIODS; p++)
+			res[p] = val.getLong();
+		return res;
+	}
+}
@@ -0,0 +1,139 @@
+package se.jbee.track.engine;
+
+import static java.lang.Math.min;
+import static java.util.Arrays.copyOfRange;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.model.ID;
+import se.jbee.track.model.User;
+
+/**
+ * A {@link Timeline} composes the {@link History}s of one or more entities
+ * with the {@link Event}s they refer to, most recent first.
+ *
+ * The {@link Event}s of all {@link History}s not known yet are fetched at
+ * once within a single read transaction. The {@link Event}s of the most
+ * recently used entities are kept until the entity changes again.
+ *
+ * For a {@link User} the {@link Event}s are those the user caused.
+ */
+public final class Timeline {
+
+	private static final Event[] NONE = new Event[0];
+
+	private final DB db;
+	private final Map<ID, Event[]> recent;
+	private long invalidations = 0;
+
+	/**
+	 * @param capacity the number of entities whose {@link Event}s are kept
+	 */
+	public Timeline(DB db, int capacity) {
+		this.db = db;
+		this.recent = new LinkedHashMap<ID, Event[]>(capacity, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ID, Event[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return a page of the {@link Event}s in the {@link History} of any of the
+	 *         given entities, most recent first
+	 */
+	public Event[] events(int offset, int length, ID... entities) {
+		Map<ID, Event[]> histories = histories(entities);
+		List<Event> merged = new ArrayList<>();
+		for (Event[] events : histories.values())
+			for (Event e : events)
+				merged.add(e);
+		merged.sort((a,b) -> Long.compare(b.timestamp, a.timestamp));
+		Event[] res = new Event[merged.size()];
+		int n = 0;
+		for (Event e : merged)
+			if (n == 0 || res[n-1].timestamp != e.timestamp) // same event in multiple histories
+				res[n++] = e;
+		return offset >= n ? NONE : copyOfRange(res, offset, min(n, offset + length));
+	}
+
+	private Map<ID, Event[]> histories(ID[] entities) {
+		Map<ID, Event[]> res = new HashMap<>();
+		List<ID> unknown = new ArrayList<>();
+		long generation;
+		synchronized (recent) {
+			generation = invalidations;
+			for (ID entity : entities) {
+				Event[] events = recent.get(entity);
+				if (events != null) {
+					res.put(entity, events);
+				} else {
+					unknown.add(entity);
+				}
+			}
+		}
+		if (unknown.isEmpty())
+			return res;
+		Map<ID, Event[]> loaded = load(unknown);
+		synchronized (recent) {
+			if (generation == invalidations) // otherwise loaded might be outdated already
+				recent.putAll(loaded);
+		}
+		res.putAll(loaded);
+		return res;
+	}
+
+	private Map<ID, Event[]> load(List<ID> entities) {
+		Map<ID, Event[]> res = new HashMap<>();
+		try (Repository rep = new DAO(db)) {
+			Map<ID, History> histories = new HashMap<>();
+			int total = 0;
+			for (ID entity : entities) {
+				try {
+					History h = rep.history(entity);
+					histories.put(entity, h);
+					total += h.events.length;
+				} catch (Repository.UnknownEntity e) {
+					res.put(entity, NONE);
+				}
+			}
+			long[] timestamps = new long[total];
+			int i = 0;
+			for (History h : histories.values())
+				for (long t : h.events)
+					timestamps[i++] = t;
+			Map<Long, Event> events = new HashMap<>();
+			for (Event e : rep.events(timestamps))
+				events.put(e.timestamp, e);
+			for (Map.Entry<ID, History> h : histories.entrySet()) {
+				long[] history = h.getValue().events;
+				List<Event> list = new ArrayList<>(history.length);
+				for (int j = 0; j < history.length; j++) {
+					Event e = events.get(history[j]);
+					if (e != null && (j == 0 || history[j] != history[0])) // first is also at 1 unless compacted
+						list.add(e);
+				}
+				res.put(h.getKey(), list.toArray(NONE));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Forgets the {@link Event}s of the changed entities.
+	 */
+	public void invalidate(Changes changes) {
+		synchronized (recent) {
+			invalidations++;
+			for (Changes.Entry<?> e : changes)
+				recent.remove(e.after.uniqueID());
+		}
+	}
+}
@@ -48,6 +48,8 @@ import se.jbee.track.model.User;
 import se.jbee.track.model.User.AuthState;
 import se.jbee.track.model.Version;
 import se.jbee.track.util.Array;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
 
 /**
  * Implementation of the tracker-business logic.
@@ -1007,9 +1009,11 @@ public final class Tracker {
 			return; // no limit checks for admins during the lockdown
 		try {
 			if (!server.limits.stress(limit, server.clock)) {
+				Metrics.count(Counter.limitsExceeded);
 				denyTransition(Error.E1_LIMIT_EXCEEDED, limit, msg);
 			}
 		} catch (ConcurrentUsage e) {
+			Metrics.count(Counter.limitsOccupied);
 			denyTransition(Error.E27_LIMIT_OCCUPIED, limit, msg);
 		}
 	}
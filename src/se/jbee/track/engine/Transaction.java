@@ -12,9 +12,13 @@ import static se.jbee.track.engine.Changes.changes;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
@@ -24,6 +28,7 @@ import se.jbee.track.engine.Change.Operation;
 import se.jbee.track.engine.Change.Tx;
 import se.jbee.track.engine.Event.Transition;
 import se.jbee.track.engine.Limits.ConcurrentUsage;
+import se.jbee.track.engine.TransitionDenied.Error;
 import se.jbee.track.model.Area;
 import se.jbee.track.model.Entity;
 import se.jbee.track.model.ID;
@@ -35,6 +40,8 @@ import se.jbee.track.model.Task;
 import se.jbee.track.model.Transitory;
 import se.jbee.track.model.User;
 import se.jbee.track.model.Version;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Timer;
 
 /**
  * A {@link Transaction} keeps track of a change applied as a whole or not at
@@ -44,14 +51,13 @@ import se.jbee.track.model.Version;
  * changed so that when they are loaded more then once the changed entity is
  * returned. It will also keep track of updated user entities without the need
  * to {@link #put(Entity)} them explicitly.
+ *
+ * When the {@link Server#isOptimistic()} the versions of the entities read are
+ * validated within the write transaction. A {@link Change} that collides with
+ * another transaction committed in the meantime is applied again.
  */
 public final class Transaction extends DAO implements Tx {
 
-	/**
-	 * We really just need a single buffer for writing as only one TX can write at a time.
-	 */
-	private static final ByteBuffer WRITE_BUF = ByteBuffer.allocateDirect(8192);
-
 	public static Changes run(Change set, DB db, Server server) throws ConcurrentUsage {
 		return run(set, db, server, null);
 	}
@@ -63,10 +69,12 @@ public final class Transaction extends DAO implements Tx {
 	 * @throws ConcurrentUsage when trying to change an entity already changed by an ongoing transaction (in another thread)
 	 */
 	public static Changes run(Change set, DB db, Server server, Consumer<Changes> listener) throws ConcurrentUsage {
-		final long now = max(lastTick.incrementAndGet(), server.clock.time());
+		if (server.isOptimistic())
+			return runOptimistic(set, db, server, listener);
+		final long now = tick(server.clock);
 		final Clock fixedNow = () -> now;
 		Limits limits = new OccupySpecificLimits(server.limits);
-		try (Transaction tx = new Transaction(fixedNow, db, listener)) {
+		try (Transaction tx = new Transaction(fixedNow, db, server, listener)) {
 			try {
 				set.apply(new Tracker(server.with(fixedNow).with(limits)), tx);
 				return tx.commit();
@@ -76,6 +84,37 @@ public final class Transaction extends DAO implements Tx {
 		}
 	}
 
+	/**
+	 * Applies the changes to the DB. Should another transaction have changed
+	 * any of the entities read in the meantime the change is tried again.
+	 *
+	 * As limits have been stressed by the first attempt further attempts do not
+	 * stress them again.
+	 *
+	 * @throws TransitionDenied when the change still collides after
+	 *             {@link #MAX_ATTEMPTS}
+	 */
+	private static Changes runOptimistic(Change set, DB db, Server server, Consumer<Changes> listener) {
+		Conflict conflict = null;
+		for (int i = 0; i < MAX_ATTEMPTS; i++) {
+			final long now = tick(server.clock);
+			final Clock fixedNow = () -> now;
+			try (Transaction tx = new Transaction(fixedNow, db, server, listener)) {
+				set.apply(new Tracker(server.with(fixedNow).with(i == 0 ? server.limits : Limits.NONE)), tx);
+				return tx.commit();
+			} catch (Conflict e) {
+				conflict = e;
+			}
+		}
+		throw new TransitionDenied(Error.E30_CONCURRENT_CHANGE, conflict.id);
+	}
+
+	/**
+	 * How often a {@link Change} is tried when running
+	 * {@link Server#isOptimistic()}.
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+
 	/**
 	 * With this we do our little tick so that we can guarantee each transaction has a unique {@link Clock#time()}.
 	 * Each time transaction {@link #run(Change, DB, se.jbee.track.engine.Limits.Assurances)} is called the constant time
@@ -83,21 +122,31 @@ public final class Transaction extends DAO implements Tx {
 	 */
 	private static final AtomicLong lastTick = new AtomicLong(Long.MIN_VALUE);
 
+	private static long tick(Clock clock) {
+		long time = clock.time();
+		return lastTick.updateAndGet(last -> max(last + 1, time));
+	}
+
 	private final LinkedHashMap<ID, Entity<?>> changed = new LinkedHashMap<>();
 	private final HashMap<ID, ArrayList<Change.Operation>> changeTypes = new HashMap<>();
 	private final HashMap<ID, User> loadedUsers = new HashMap<>();
+	private final HashMap<ID, Integer> decodedVersions = new HashMap<>();
 
 	private final Clock clock;
 	private final DB db;
+	private final Server server;
 	private final Consumer<Changes> listener;
+	private final boolean optimistic;
 
 	private ID actor;
 
-	private Transaction(Clock clock, DB db, Consumer<Changes> listener) {
-		super(db.read());
+	private Transaction(Clock clock, DB db, Server server, Consumer<Changes> listener) {
+		super(db);
 		this.clock = clock;
 		this.db = db;
+		this.server = server;
 		this.listener = listener;
+		this.optimistic = server.isOptimistic();
 	}
 
 	@Override
@@ -106,6 +155,12 @@ public final class Transaction extends DAO implements Tx {
 		return res != null ? res : loaded.get(id);
 	}
 
+	@Override
+	protected void decoded(Entity<?> e) {
+		if (optimistic)
+			decodedVersions.putIfAbsent(e.uniqueID(), e.initalVersion);
+	}
+
 	@Override
 	public void put(Operation op, Entity<?> e) {
 		if (e.isCurrupted())
@@ -115,7 +170,8 @@ public final class Transaction extends DAO implements Tx {
 			putFields(op, e); // "auto"-update fields with updates
 			changed.put(id, e);
 			ArrayList<Operation> ops = changeTypes.computeIfAbsent(id, (id_) -> new ArrayList<>());
-			ops.add(op);
+			if (!ops.contains(op)) // an entity changed many times the same way (like an output in an import) is recorded once
+				ops.add(op);
 			putUser(e, id);
 		}
 	}
@@ -181,81 +237,175 @@ public final class Transaction extends DAO implements Tx {
 			return Changes.EMPTY; // empty changesets have serial 0 and can be discarded/ignored
 		if (actor == null)
 			throw new IllegalStateException("Acting user has to be updated during a transaction!");
-		try (Write tx = db.write()) {
-			WRITE_BUF.clear();
-			Changes.Entry<?>[] log = writeEntities(tx, WRITE_BUF);
+		int[] sizes = estimateSizes();
+		try (Write tx = db.write(scope()); Arena arena = Arena.arena(sizes[sizes.length-1])) {
+			if (optimistic)
+				validate(tx);
+			long nsStart = System.nanoTime();
+			Changes.Entry<?>[] log = encodeEntities(tx, arena, sizes);
 			long timestamp = clock.time();
-			writeHistoryAndEvent(tx, log, timestamp, WRITE_BUF);
+			encodeHistoryAndEvent(tx, log, timestamp, arena);
+			if (server.isJournaled())
+				arena.journal(ID.journalId(timestamp));
+			Metrics.since(Timer.commitEncode, nsStart);
+			nsStart = System.nanoTime();
+			arena.writeTo(tx);
+			Metrics.since(Timer.commitWrite, nsStart);
+			nsStart = System.nanoTime();
 			tx.commit();
+			Metrics.since(Timer.commitSync, nsStart);
 			// serial is fetched within the TX write() but after commit() so we know this is successful
 			// also only one thread can enter the write block
-			return publish(changes(timestamp, log));
+			Changes res = changes(timestamp, log);
+			EntityCache.of(db).invalidate(res);
+			return publish(res);
+		}
+	}
+
+	/**
+	 * @return the keys written, and validated should this be optimistic, so
+	 *         that a DB made of parts only needs to lock the parts they are in
+	 */
+	private Collection<ID> scope() {
+		if (!optimistic)
+			return changed.keySet();
+		Set<ID> res = new HashSet<>(changed.keySet());
+		res.addAll(loaded.keySet());
+		res.addAll(decodedVersions.keySet());
+		return res;
+	}
+
+	/**
+	 * Makes sure all entities read, loaded or decoded in a range, are still in
+	 * the version read and all entities created still do not exist.
+	 */
+	private void validate(Write tx) throws Conflict {
+		for (Entry<ID, Entity<?>> e : loaded.entrySet())
+			validate(tx, e.getKey(), e.getValue().initalVersion);
+		for (Entry<ID, Integer> e : decodedVersions.entrySet())
+			validate(tx, e.getKey(), e.getValue());
+		for (ID id : changed.keySet()) {
+			if (!loaded.containsKey(id) && !decodedVersions.containsKey(id) && tx.get(id) != null)
+				throw new Conflict(id);
 		}
 	}
 
+	private static void validate(Write tx, ID id, int version) throws Conflict {
+		ByteBuffer current = tx.get(id);
+		if (current == null || version(current) != version)
+			throw new Conflict(id);
+	}
+
 	private Changes publish(Changes changes) {
 		if (listener != null)
 			try { listener.accept(changes); } catch (RuntimeException e) { /* just ignore this */ }
 		return changes;
 	}
 
+	/**
+	 * @return the estimated bytes needed for each changed entity in order of
+	 *         {@link #changed} followed by the sum of all including history and
+	 *         event
+	 */
+	private int[] estimateSizes() {
+		int[] res = new int[changed.size()+1];
+		int i = 0;
+		int total = 0;
+		for (Entry<ID,Entity<?>> e : changed.entrySet()) {
+			Entity<?> val = e.getValue();
+			int size = 0;
+			switch (e.getKey().type) {
+			case poll:    size = Bincoder.poll2size.applyAsInt((Poll)val); break;
+			case Area:    size = Bincoder.area2size.applyAsInt((Area)val); break;
+			case Page:    size = Bincoder.page2size.applyAsInt((Page)val); break;
+			case Task:    size = Bincoder.task2size.applyAsInt((Task)val); break;
+			case User:    size = Bincoder.user2size.applyAsInt((User)val); break;
+			case Output:  size = Bincoder.output2size.applyAsInt((Output)val); break;
+			case Version: size = Bincoder.version2size.applyAsInt((Version)val); break;
+			default: throw new UnsupportedOperationException("Cannot store entities of type: "+e.getKey());
+			}
+			res[i++] = size;
+			total += size + Bincoder.history2size(server.historyRetention(e.getKey().type)) + 8 + e.getKey().length();
+		}
+		res[i] = total + 64;
+		return res;
+	}
+
 	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private Changes.Entry<?>[] writeEntities(Write tx, ByteBuffer buf) {
+	private Changes.Entry<?>[] encodeEntities(Write tx, Arena arena, int[] sizes) {
 		Changes.Entry<?>[] res = new Changes.Entry[changed.size()];
+		Map<Name, Dictionary> dictionaries = new HashMap<>();
 		int i = 0;
 		for (Entry<ID,Entity<?>> e : changed.entrySet()) {
 			ID id = e.getKey();
 			Entity<?> val = e.getValue();
 			ArrayList<Operation> transitions = changeTypes.get(id);
 			Operation[] ops = transitions == null ? new Operation[0] : transitions.toArray(new Operation[0]);
+			int size = sizes[i];
 			res[i++] = new Changes.Entry(loaded.get(id), ops, val);
 			switch (id.type) {
-			case poll:    write(tx, id, (Poll)val, poll2bin, buf); break;
-			case Area:    write(tx, id, (Area)val, area2bin, buf); break;
-			case Page:    write(tx, id, (Page)val, page2bin, buf); break;
-			case Task:    write(tx, id, (Task)val, task2bin, buf); break;
-			case User:    write(tx, id, (User)val, user2bin, buf); break;
-			case Output: write(tx, id, (Output)val, output2bin, buf); break;
-			case Version: write(tx, id, (Version)val, version2bin, buf); break;
+			case poll:    encode(arena, id, (Poll)val, poll2bin, size); break;
+			case Area:    encode(arena, id, (Area)val, area2bin, size); break;
+			case Page:    encode(arena, id, (Page)val, page2bin, size); break;
+			case Task:    encode(arena, id, (Task)val, task2bin(dictionary(tx, ((Task)val).output.name, dictionaries)), size); break;
+			case User:    encode(arena, id, (User)val, user2bin, size); break;
+			case Output:  encode(arena, id, (Output)val, output2bin, size); break;
+			case Version: encode(arena, id, (Version)val, version2bin, size); break;
 			default: throw new UnsupportedOperationException("Cannot store entities of type: "+id);
 			}
 		}
+		for (Entry<Name, Dictionary> d : dictionaries.entrySet()) {
+			Dictionary dict = d.getValue();
+			if (dict.isChanged())
+				arena.put(ID.dictionaryId(d.getKey()), dict, Dictionary::encode, dict.encodedSize());
+		}
 		return res;
 	}
 
-	private void writeHistoryAndEvent(Write tx, Changes.Entry<?>[] changes, long timestamp, ByteBuffer buf) {
+	/**
+	 * The dictionary is read within the write transaction so that names added
+	 * by the transaction committed last are known.
+	 */
+	private static Dictionary dictionary(Write tx, Name output, Map<Name, Dictionary> dictionaries) {
+		return dictionaries.computeIfAbsent(output, o -> Dictionary.decode(tx.get(ID.dictionaryId(o))));
+	}
+
+	private void encodeHistoryAndEvent(Write tx, Changes.Entry<?>[] changes, long timestamp, Arena arena) {
 		final Transition[] transitions = new Transition[changes.length];
 		int i = 0;
 		for (Changes.Entry<?> e : changes) {
 			ID id = e.after.uniqueID();
 			transitions[i++] = new Transition(id, e.transitions);
 			ID hid = ID.historyId(id);
-			ByteBuffer history = tx.get(hid);
-			if (history == null) {
-				buf.putLong(timestamp).putLong(timestamp).flip();
-			} else {
-				if (history.remaining() >= 64) {
-					buf.putLong(history.getLong());
-					history.getLong(); // throw away oldest
-					buf.put(history).putLong(timestamp).flip();
-				} else {
-					buf.put(history).putLong(timestamp).flip();
-				}
-			}
-			tx.put(hid, buf);
-			buf.clear();
+			ByteBuffer history = e.isCreation() ? null : tx.get(hid); // a new entity has no history yet
+			int retention = server.historyRetention(id.type);
+			arena.put(hid, history, (h, buf) -> Bincoder.appendHistory(h, timestamp, retention, buf),
+					Bincoder.history2size(retention));
 		}
 		Event e = new Event(timestamp, actor, transitions);
-		write(tx, e.uniqueID() , e, Bincoder.event2bin, buf);
+		arena.put(e.uniqueID(), e, Bincoder.event2bin, Bincoder.event2size.applyAsInt(e));
 	}
 
-	private static <T> void write(Write tx, ID id, T e, Bincoder<T, ByteBuffer> encoder, ByteBuffer buf) {
+	private static <T> void encode(Arena arena, ID id, T e, Bincoder<T, ByteBuffer> encoder, int size) {
 		if (e instanceof Transitory && ((Transitory) e).obsolete()) {
-			tx.delete(id);
+			arena.delete(id);
 		} else {
-			encoder.convert(e, buf).flip();
-			tx.put(id, buf);
-			buf.clear();
+			arena.put(id, e, encoder, size);
+		}
+	}
+
+	/**
+	 * Another transaction changed an entity this transaction depends upon.
+	 */
+	private static final class Conflict extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		final ID id;
+
+		Conflict(ID id) {
+			super("Entity changed concurrently: "+id);
+			this.id = id;
 		}
 	}
 
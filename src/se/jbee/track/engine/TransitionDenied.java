@@ -33,7 +33,8 @@ public final class TransitionDenied extends IllegalStateException {
 		E26_LOCKDOWN(26, "Sorry! Server is undergoing maintenance work. Access is restricted to administrators. Please try again later."),
 		E27_LIMIT_OCCUPIED( 27, "Sorry! Another user just changed the same data (%s). Please reload the page and redo your actions if they still apply."),
 		E28_CATEGORY_LIMIT(28, "Sorry! Categories per output are limited to %d."),
-		E29_CHANGESET_REQUIRED(29, "Oops! Please provide the names of the versions released.")
+		E29_CHANGESET_REQUIRED(29, "Oops! Please provide the names of the versions released."),
+		E30_CONCURRENT_CHANGE(30, "Sorry! Another user just changed the same data (%s). Please try again.")
 
 		;
 		public final int code;
@@ -71,6 +71,8 @@ public class ListViewHtmlRenderer implements HtmlRenderer<ListView> {
 			render(page, task, out);
 		}
 		out.append("</table>");
+		if (matches.profile != null)
+			out.append("<pre class='explain'>").append(matches.profile.toString()).append("</pre>");
 	}
 
 	private void render(ListView page, Task task, HtmlWriter out) {
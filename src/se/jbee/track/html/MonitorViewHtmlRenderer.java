@@ -0,0 +1,45 @@
+package se.jbee.track.html;
+
+import java.util.Map.Entry;
+
+import se.jbee.track.api.MonitorView;
+import se.jbee.track.util.Histogram;
+import se.jbee.track.util.Metrics.Counter;
+import se.jbee.track.util.Metrics.Timer;
+
+public class MonitorViewHtmlRenderer implements HtmlRenderer<MonitorView> {
+
+	@Override
+	public void render(MonitorView view, HtmlWriter out) {
+		out.header();
+		if (view.backup != null)
+			out.append("<p>Backup written to ").append(view.backup.getPath()).append("</p>");
+		out.append("<h2>Timers</h2>");
+		out.append("<table><tr><th>timer</th><th>count</th><th>mean</th><th>p50</th><th>p90</th><th>p99</th><th>max</th></tr>");
+		for (Entry<Timer, Histogram> e : view.timers.entrySet()) {
+			Histogram h = e.getValue();
+			out.append("<tr><td>").append(e.getKey().name()).append("</td><td>").append(String.valueOf(h.count())).append("</td>");
+			cell(out, h.mean());
+			cell(out, h.percentile(50));
+			cell(out, h.percentile(90));
+			cell(out, h.percentile(99));
+			cell(out, h.max());
+			out.append("</tr>");
+		}
+		out.append("</table>");
+		out.append("<h2>Counters</h2>");
+		out.append("<table>");
+		for (Entry<Counter, Long> e : view.counters.entrySet()) {
+			out.append("<tr><td>").append(e.getKey().name()).append("</td><td>").append(String.valueOf(e.getValue())).append("</td></tr>");
+		}
+		out.append("</table>");
+		out.append("<h2>Slow queries</h2>");
+		for (String query : view.slowQueries)
+			out.append("<pre>").append(query).append("</pre>");
+		out.footer();
+	}
+
+	private static void cell(HtmlWriter out, long ns) {
+		out.append("<td>").append(String.format("%.3f ms", ns / 1000000d)).append("</td>");
+	}
+}
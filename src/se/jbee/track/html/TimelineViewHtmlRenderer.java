@@ -0,0 +1,21 @@
+package se.jbee.track.html;
+
+import se.jbee.track.api.TimelineView;
+import se.jbee.track.engine.Event;
+
+public class TimelineViewHtmlRenderer implements HtmlRenderer<TimelineView> {
+
+	@Override
+	public void render(TimelineView view, HtmlWriter out) {
+		out.header();
+		out.append("<table><tr><th>when</th><th>who</th><th>what</th></tr>");
+		for (Event e : view.events) {
+			out.append("<tr><td>").append(e.time().toString()).append("</td><td>").append(e.actor.toString()).append("</td><td>");
+			for (Event.Transition t : e)
+				out.append(t.toString()).append(" ");
+			out.append("</td></tr>");
+		}
+		out.append("</table>");
+		out.footer();
+	}
+}
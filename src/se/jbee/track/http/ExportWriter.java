@@ -0,0 +1,118 @@
+package se.jbee.track.http;
+
+import java.io.PrintWriter;
+
+import se.jbee.track.api.ExportView;
+import se.jbee.track.api.ExportView.Format;
+import se.jbee.track.model.Task;
+
+/**
+ * Writes the {@link Task}s of an {@link ExportView} one line per task as they
+ * are read. The {@link PrintWriter} is only flushed when it is checked for
+ * errors every {@link #CHECK_INTERVAL} tasks, the HTTP server sends its buffer
+ * as a chunk whenever it is full. Should the client have gone the export stops.
+ */
+public final class ExportWriter {
+
+	private static final String[] COLUMNS = { "output", "id", "serial", "motive",
+			"purpose", "status", "area", "version", "reporter", "reported",
+			"gist", "emphasis", "solver", "resolved", "conclusion", "archived" };
+
+	static final int CHECK_INTERVAL = 64;
+
+	public static String contentType(Format format) {
+		return format == Format.csv
+				? "text/csv; charset=utf-8"
+				: "application/x-ndjson; charset=utf-8";
+	}
+
+	private final PrintWriter out;
+	private int written;
+
+	public ExportWriter(PrintWriter out) {
+		this.out = out;
+	}
+
+	public void write(ExportView export) {
+		if (export.format == Format.csv) {
+			out.append(String.join(",", COLUMNS)).append("\r\n");
+			export.forEach(this::csv);
+		} else {
+			export.forEach(this::ndjson);
+		}
+	}
+
+	private boolean csv(Task t) {
+		Object[] values = values(t);
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				out.append(',');
+			Object v = values[i];
+			if (v instanceof CharSequence) {
+				out.append('"').append(v.toString().replace("\"", "\"\"")).append('"');
+			} else if (v != null) {
+				out.append(v.toString());
+			}
+		}
+		out.append("\r\n");
+		return isOpen();
+	}
+
+	private boolean ndjson(Task t) {
+		Object[] values = values(t);
+		out.append('{');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				out.append(',');
+			out.append('"').append(COLUMNS[i]).append("\":");
+			Object v = values[i];
+			if (v instanceof CharSequence) {
+				json(v.toString());
+			} else {
+				out.append(String.valueOf(v));
+			}
+		}
+		out.append("}\n");
+		return isOpen();
+	}
+
+	private boolean isOpen() {
+		return ++written % CHECK_INTERVAL != 0 || !out.checkError();
+	}
+
+	private void json(String s) {
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':  out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					out.append(String.format("\\u%04x", (int) c));
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * @return the values of the {@link #COLUMNS}, text as {@link String}, null
+	 *         for not set
+	 */
+	private static Object[] values(Task t) {
+		return new Object[] { str(t.output.name), t.id.num, t.serial.num, str(t.motive),
+				str(t.purpose), str(t.status), str(t.area == null ? null : t.area.name),
+				str(t.base == null ? null : t.base.name), str(t.reporter), str(t.reported),
+				str(t.gist), t.emphasis, str(t.solver), str(t.resolved), str(t.conclusion), t.archived };
+	}
+
+	private static String str(Object v) {
+		return v == null ? null : v.toString();
+	}
+}
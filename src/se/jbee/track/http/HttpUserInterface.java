@@ -4,16 +4,22 @@ import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.util.Map;
 
+import se.jbee.track.api.ExportView;
+import se.jbee.track.api.ExportView.Format;
 import se.jbee.track.api.ListView;
+import se.jbee.track.api.MonitorView;
 import se.jbee.track.api.Param;
 import se.jbee.track.api.Param.Command;
 import se.jbee.track.api.Params;
 import se.jbee.track.api.SampleView;
+import se.jbee.track.api.TimelineView;
 import se.jbee.track.api.UserInterface;
 import se.jbee.track.api.View;
 import se.jbee.track.api.ViewService;
 import se.jbee.track.html.HtmlRenderer;
 import se.jbee.track.html.HtmlWriter;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Timer;
 
 /**
  * Connects the HTTP world with the general {@link UserInterface} abstraction.
@@ -32,6 +38,15 @@ public class HttpUserInterface implements UserInterface {
 	public int respond(Params params, PrintWriter out) {
 		if (Command.sample.name().equals(params.get(Param.command))) {
 			runAndRender(SampleView.class, params, out);
+		} else if (Command.monitor.name().equals(params.get(Param.command))
+				|| Command.backup.name().equals(params.get(Param.command))) {
+			runAndRender(MonitorView.class, params, out);
+		} else if (Command.trace.name().equals(params.get(Param.command))) {
+			runAndRender(TimelineView.class, params, out);
+		} else if (Command.export.name().equals(params.get(Param.command))) {
+			if (format(params) == null)
+				return HttpURLConnection.HTTP_BAD_REQUEST;
+			runAndExport(params, out);
 		} else {
 			runAndRender(ListView.class, params, out);
 		}
@@ -41,11 +56,39 @@ public class HttpUserInterface implements UserInterface {
 		return HttpURLConnection.HTTP_NOT_FOUND;
 	}
 
+	@Override
+	public String contentType(Params params) {
+		Format format = format(params);
+		if (!Command.export.name().equals(params.get(Param.command)) || format == null)
+			return UserInterface.super.contentType(params);
+		return ExportWriter.contentType(format);
+	}
+
+	/**
+	 * @return the export format requested or null if it is unknown
+	 */
+	private static Format format(Params params) {
+		return Format.parse(params.getOrDefault(Param.format, Format.ndjson.name()));
+	}
+
+	private void runAndExport(Params params, PrintWriter out) {
+		long nsStart = System.nanoTime();
+		ExportView export = views.run(params, ExportView.class);
+		Metrics.since(Timer.view, nsStart);
+		nsStart = System.nanoTime();
+		new ExportWriter(out).write(export);
+		Metrics.since(Timer.render, nsStart);
+	}
+
 	private <T extends View> void runAndRender(Class<T> pageType, Params params, PrintWriter out) {
+		long nsStart = System.nanoTime();
 		T page = views.run(params, pageType);
+		Metrics.since(Timer.view, nsStart);
 		@SuppressWarnings("unchecked")
 		HtmlRenderer<T> renderer = (HtmlRenderer<T>) renderers.get(pageType);
+		nsStart = System.nanoTime();
 		renderer.render(page, new HtmlWriter(out));
+		Metrics.since(Timer.render, nsStart);
 	}
 
 }
@@ -20,6 +20,8 @@ import org.eclipse.jetty.server.session.SessionHandler;
 import se.jbee.track.api.Param;
 import se.jbee.track.api.Params;
 import se.jbee.track.api.UserInterface;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Timer;
 
 public class JettyHttpServer extends AbstractHandler {
 
@@ -65,15 +67,15 @@ public class JettyHttpServer extends AbstractHandler {
 		if ("/favicon.ico".equals(target)) {
 			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 		} else {
-			response.setContentType("text/html; charset=utf-8");
+			long nsStart = System.nanoTime();
 			Params params = Params.fromPath(target);
 			params.set(Param.actor, baseRequest.getSession(true).getId());
 			if (params.getOrDefault(Param.viewed, "").equals("@")) {
 				params.set(Param.viewed, params.get(Param.actor));
 			}
-			long nsStart = System.nanoTime();
+			Metrics.since(Timer.params, nsStart);
+			response.setContentType(ui.contentType(params));
 			response.setStatus(ui.respond(params, response.getWriter()));
-			System.out.println((System.nanoTime() - nsStart)/1000000L+" ms");
 		}
 		baseRequest.setHandled(true);
 	}
@@ -196,7 +196,7 @@ public final class Criteria implements Iterable<Criteria.Criterium> {
 			String[] val = parseValue(v);
 			if (val.length == 1) {
 				// just to get rid of those special cases right away
-				if (!prop.isSetValue()) {
+				if (!prop.isSetValue() && !prop.isTextSearch()) { // text "in" is contains
 					if (op == in)
 						op = eq;
 					if (op == nin)
@@ -298,7 +298,7 @@ public final class Criteria implements Iterable<Criteria.Criterium> {
 		case name     : return Name.as(val);
 		case property : return p.value(val);
 		case text     : return Gist.gist(val);
-		case flag     : return "true|yes|on|1".matches(val) ? Boolean.TRUE : Boolean.FALSE;
+		case flag     : return val.matches("true|yes|on|1") ? Boolean.TRUE : Boolean.FALSE;
 		default       : throw new CriteriumMalformed("Unsupported value type: "+p.type);
 		}
 	}
@@ -534,6 +534,10 @@ public final class Criteria implements Iterable<Criteria.Criterium> {
 		length(number, 0, eq, le, lt),
 		order(property, 0, Property.class, asc, desc),
 		group(property, 0, Property.class, eq),
+		/**
+		 * When set the matches carry a profile of how they were looked up
+		 */
+		explain(flag, 0, eq),
 		coloration(property, 0, Coloration.class, eq),
 		layout(property, 0, Layout.class, eq),
 
@@ -608,6 +612,14 @@ public final class Criteria implements Iterable<Criteria.Criterium> {
 			return ordinal() >= user.ordinal() && ordinal() <= participant.ordinal();
 		}
 
+		/**
+		 * @return true for texts that are searched with {@link Operator#in} as
+		 *         "contains"
+		 */
+		public boolean isTextSearch() {
+			return this == gist || this == conclusion;
+		}
+
 		public Enum<?> value(String name) {
 			if (values == null) {
 				values = propertyType.getEnumConstants(); // need to do this outside of constructor as Property itself can be the enum
@@ -33,8 +33,24 @@ public final class Gist extends Text<Gist> {
 		return new Gist(utf16Symbols);
 	}
 
+	/**
+	 * @param symbols as given by {@link #compactBytes()}
+	 * @param latin1 as given by {@link #isLatin1()}
+	 */
+	public static Gist fromCompactBytes(byte[] symbols, boolean latin1) {
+		if (symbols.length == 0)
+			return EMPTY;
+		if (symbols.length >= (latin1 ? 256 : 512))
+			throw new IllegalArgumentException("Gist is too long, maximal 256 characters.");
+		return new Gist(symbols, latin1);
+	}
+
 	private Gist(byte[] utf16Symbols) {
 		super(utf16Symbols);
 	}
 
+	private Gist(byte[] symbols, boolean latin1) {
+		super(symbols, latin1);
+	}
+
 }
@@ -3,20 +3,23 @@ package se.jbee.track.model;
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.util.Arrays.copyOfRange;
 
+import java.util.Comparator;
+
 /**
  * A (database wide) unique identifier.
  */
 public final class ID extends Identifier<ID> {
 
 	private static final byte[] DIVIDER = {':'};
+	private static final int IDN_BYTES = 4;
 
-	@UseCode("UPOAVTpeh")
+	@UseCode("UPOAVTpehljd")
 	public enum Type {
 		// core domain (uses upper case symbols)
 		User, Page, Output, Area, Version, Task,
 
 		// support domain (uses lower case symbols)
-		poll, event, history;
+		poll, event, history, limit, journal, dictionary;
 
 		final byte[] symbol;
 
@@ -42,13 +45,26 @@ public final class ID extends Identifier<ID> {
 	}
 
 	private static ID id(Type type, Name level1, Name... names) {
-		byte[] id = join(type.symbol, DIVIDER, level1.readonlyBytes());
+		int len = 2 + level1.length();
+		for (Name n : names)
+			len += 1 + n.length();
+		byte[] id = new byte[len];
+		id[0] = type.symbol[0];
+		id[1] = DIVIDER[0];
+		int pos = append(level1, id, 2);
 		for (Name n : names) {
-			id = join(id, DIVIDER, n.readonlyBytes());
+			id[pos++] = DIVIDER[0];
+			pos = append(n, id, pos);
 		}
 		return new ID(type, id);
 	}
 
+	private static int append(Name name, byte[] to, int pos) {
+		byte[] bytes = name.readonlyBytes();
+		System.arraycopy(bytes, 0, to, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
 	public static ID outputId(Name output) {
 		return id(ID.Type.Output, output);
 	}
@@ -83,10 +99,57 @@ public final class ID extends Identifier<ID> {
 		return id(ID.Type.Version, output, version);
 	}
 
+	/**
+	 * A task key is the output followed by a divider and the {@link IDN} as a 4
+	 * byte big-endian number. Tasks of an output therefore sort by their
+	 * {@link IDN}.
+	 */
 	public static ID taskId(Name output, IDN id) {
+		byte[] key = new byte[output.length() + 1 + IDN_BYTES];
+		int pos = append(output, key, 0);
+		key[pos++] = DIVIDER[0];
+		int num = id.num;
+		key[pos++] = (byte) (num >>> 24);
+		key[pos++] = (byte) (num >>> 16);
+		key[pos++] = (byte) (num >>> 8);
+		key[pos]   = (byte) num;
+		return new ID(Type.Task, key);
+	}
+
+	/**
+	 * The task key as it was before {@link IDN}s were stored in binary. The
+	 * {@link IDN} was a 4 digit base 32 number which limited it to 1048575.
+	 */
+	public static ID legacyTaskId(Name output, IDN id) {
 		return new ID(Type.Task, join(output.readonlyBytes(), DIVIDER, toBase32(id.num)));
 	}
 
+	/**
+	 * @return the same task in the current format if this is a
+	 *         {@link #legacyTaskId(Name, IDN)}, otherwise null
+	 */
+	public ID fromLegacyTaskId() {
+		byte[] bytes = readonlyBytes();
+		int start = bytes.length - IDN_BYTES;
+		if (type != Type.Task || start < 1 || bytes[start-1] != DIVIDER[0])
+			return null;
+		int num = 0;
+		for (int i = start; i < bytes.length; i++) {
+			int d = bytes[i] >= '0' && bytes[i] <= '9' ? bytes[i] - '0' : bytes[i] >= 'A' && bytes[i] <= 'V' ? bytes[i] - 'A' + 10 : -1;
+			if (d < 0)
+				return null;
+			num = (num << 5) | d;
+		}
+		return taskId(Name.fromBytes(copyOfRange(bytes, 0, start-1)), IDN.idn(num));
+	}
+
+	/**
+	 * A ID for the {@link Name}s the tasks of an output refer to.
+	 */
+	public static ID dictionaryId(Name output) {
+		return id(ID.Type.dictionary, output);
+	}
+
 	public static ID eventId(long timestamp) {
 		// we just use the hex string of the long number - a key without a : is an event
 		return new ID(Type.event, Long.toHexString(timestamp).getBytes(US_ASCII));
@@ -96,17 +159,118 @@ public final class ID extends Identifier<ID> {
 		return entity.type == Type.history ? entity : new ID(Type.history, join(Type.history.symbol, DIVIDER, entity.readonlyBytes()));
 	}
 
+	/**
+	 * A ID for the persisted counters of a limit.
+	 */
+	public static ID limitId(ByteSequence<?> limit) {
+		return new ID(Type.limit, join(Type.limit.symbol, DIVIDER, limit.readonlyBytes()));
+	}
+
+	/**
+	 * A ID for the journal record of the transaction at the given time. Unlike
+	 * {@link #eventId(long)} it has a fixed width so that keys sort
+	 * chronologically.
+	 */
+	public static ID journalId(long timestamp) {
+		return new ID(Type.journal, join(Type.journal.symbol, DIVIDER, String.format("%016x", timestamp).getBytes(US_ASCII)));
+	}
+
+	/**
+	 * The order of keys in the DB: first by type, then byte by byte (unsigned)
+	 * with a prefix before all keys it is a prefix of.
+	 */
+	public static final Comparator<ID> KEY_ORDER = (a, b) -> {
+		if (a.type != b.type)
+			return a.type.compareTo(b.type);
+		byte[] x = a.readonlyBytes();
+		byte[] y = b.readonlyBytes();
+		int n = Math.min(x.length, y.length);
+		for (int i = 0; i < n; i++) {
+			int res = (x[i] & 0xFF) - (y[i] & 0xFF);
+			if (res != 0)
+				return res;
+		}
+		return x.length - y.length;
+	};
+
+	/**
+	 * For keys stored along with their {@link Type}. The type of all keys
+	 * cannot be told from their bytes as {@link Type#Page} and
+	 * {@link Type#poll} share a symbol.
+	 */
+	public static ID fromBytes(Type type, byte[] bytes) {
+		return new ID(type, bytes);
+	}
+
 	public static ID fromBytes(byte[] bytes) {
 		if (bytes[1] != DIVIDER[0]) {
+			// a task key starts with the output, a event key has no : at all
+			for (int i = 2; i < bytes.length; i++)
+				if (bytes[i] == DIVIDER[0])
+					return new ID(Type.Task, bytes);
 			return new ID(Type.event, bytes);
 		}
 		return new ID(Type.fromSymbol(bytes[0]), bytes);
 	}
 
+	/**
+	 * @return the ID made of this ID's bytes up to and including the last
+	 *         divider. This is a prefix of all IDs that only differ in their
+	 *         last component, like all tasks of an output.
+	 */
+	public ID prefix() {
+		byte[] bytes = readonlyBytes();
+		if (type == Type.Task) // the IDN bytes might contain a divider
+			return new ID(type, copyOfRange(bytes, 0, bytes.length - IDN_BYTES));
+		int i = bytes.length - 1;
+		while (i > 0 && bytes[i] != DIVIDER[0])
+			i--;
+		return i == bytes.length - 1 ? this : new ID(type, copyOfRange(bytes, 0, i + 1));
+	}
+
+	/**
+	 * @return the smallest ID (in {@link #KEY_ORDER}) after all IDs this ID is
+	 *         a prefix of
+	 */
+	public ID prefixEnd() {
+		byte[] bytes = readonlyBytes().clone();
+		int i = bytes.length - 1;
+		while (i > 0 && bytes[i] == (byte) 0xFF)
+			i--;
+		bytes[i]++;
+		return new ID(type, copyOfRange(bytes, 0, i + 1));
+	}
+
 	public ID entity() {
 		return type == Type.history ? fromBytes(copyOfRange(readonlyBytes(), 2, readonlyBytes().length)) : this;
 	}
 
+	/**
+	 * @return the {@link IDN} of this {@link Type#Task} {@link ID} if it is one
+	 *         of the given output, otherwise null
+	 */
+	public IDN taskIDN(Name output) {
+		byte[] a = readonlyBytes();
+		byte[] b = output.readonlyBytes();
+		if (type != Type.Task || a.length != b.length + 1 + IDN_BYTES || a[b.length] != ':')
+			return null;
+		for (int i = 0; i < b.length; i++) {
+			if (a[i] != b[i])
+				return null;
+		}
+		return IDN.idn(idn(a));
+	}
+
+	/**
+	 * @return the output of this {@link Type#Task} {@link ID}, otherwise null
+	 */
+	public Name taskOutput() {
+		if (type != Type.Task)
+			return null;
+		byte[] a = readonlyBytes();
+		return Name.fromBytes(copyOfRange(a, 0, a.length - 1 - IDN_BYTES));
+	}
+
 	public boolean startsWith(Name name) {
 		byte[] a = readonlyBytes();
 		byte[] b = name.readonlyBytes();
@@ -119,8 +283,17 @@ public final class ID extends Identifier<ID> {
 		return a.length-2 == b.length || a[b.length+1] == ':';
 	}
 
+	private static int idn(byte[] taskId) {
+		int i = taskId.length - IDN_BYTES;
+		return (taskId[i] & 0xFF) << 24 | (taskId[i+1] & 0xFF) << 16 | (taskId[i+2] & 0xFF) << 8 | (taskId[i+3] & 0xFF);
+	}
+
 	@Override
 	public String toString() {
+		if (type == Type.Task) {
+			byte[] bytes = readonlyBytes();
+			return new String(bytes, 0, bytes.length - IDN_BYTES, US_ASCII) + idn(bytes);
+		}
 		return type == Type.event ? String.valueOf(toLong(readonlyBytes())) : super.toString();
 	}
 
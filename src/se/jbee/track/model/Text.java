@@ -1,21 +1,73 @@
 package se.jbee.track.model;
 
-import static java.nio.ByteBuffer.wrap;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_16BE;
 
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
+/**
+ * A text is stored with one byte per character (Latin-1) should all its
+ * characters fit, otherwise in UTF-16BE. This is decided when it is created
+ * so that equal texts always use the same representation.
+ *
+ * The {@link #readonlyBytes()} are always UTF-16BE. For a Latin-1 text they are
+ * computed so the {@link #length()}, {@link #charAt(int)},
+ * {@link #contains(Text)} and {@link #toString()} work on the stored bytes
+ * directly.
+ */
 public abstract class Text<T extends Text<T>> implements ByteSequence<T> {
 
 	private final byte[] text;
+	private final boolean latin1;
 
 	protected Text(byte[] utf16Symbols) {
-		this.text = utf16Symbols;
+		boolean fits = true;
+		for (int i = 0; i < utf16Symbols.length && fits; i+=2)
+			fits = utf16Symbols[i] == 0;
+		this.latin1 = fits;
+		this.text = fits ? compress(utf16Symbols) : utf16Symbols;
 	}
 
+	/**
+	 * @param symbols the bytes as given by {@link #compactBytes()}
+	 * @param latin1 true, if the symbols are one byte per character
+	 */
+	protected Text(byte[] symbols, boolean latin1) {
+		this.text = symbols;
+		this.latin1 = latin1;
+	}
+
+	private static byte[] compress(byte[] utf16) {
+		byte[] res = new byte[utf16.length / 2];
+		for (int i = 0; i < res.length; i++)
+			res[i] = utf16[i*2+1];
+		return res;
+	}
+
+	/**
+	 * @return the characters in UTF-16BE, for a {@link #isLatin1()} text this
+	 *         is a new array each time
+	 */
 	@Override
 	public byte[] readonlyBytes() {
+		if (!latin1)
+			return text;
+		byte[] res = new byte[text.length * 2];
+		for (int i = 0; i < text.length; i++)
+			res[i*2+1] = text[i];
+		return res;
+	}
+
+	public boolean isLatin1() {
+		return latin1;
+	}
+
+	/**
+	 * @return the bytes as stored, one per character if {@link #isLatin1()}
+	 *         otherwise UTF-16BE. These must not be changed.
+	 */
+	public byte[] compactBytes() {
 		return text;
 	}
 
@@ -24,19 +76,34 @@ public abstract class Text<T extends Text<T>> implements ByteSequence<T> {
 		return UTF_16BE;
 	}
 
+	@Override
+	public boolean isEmpty() {
+		return text.length == 0;
+	}
+
 	@Override
 	public int length() {
-		return text.length / 2;
+		return latin1 ? text.length : text.length / 2;
 	}
 
 	@Override
 	public char charAt(int index) {
-		return charset().decode(wrap(text, index*2, 2)).get();
+		return latin1
+				? (char) (text[index] & 0xFF)
+				: (char) ((text[index*2] & 0xFF) << 8 | (text[index*2+1] & 0xFF));
+	}
+
+	@Override
+	public int indexOf(char c) {
+		for (int i = 0, n = length(); i < n; i++)
+			if (charAt(i) == c)
+				return i;
+		return -1;
 	}
 
 	@Override
 	public String toString() {
-		return new String(text, charset());
+		return new String(text, latin1 ? ISO_8859_1 : UTF_16BE);
 	}
 
 	@Override
@@ -50,7 +117,55 @@ public abstract class Text<T extends Text<T>> implements ByteSequence<T> {
 		return obj != null && obj.getClass() == getClass() && equalTo((T) obj);
 	}
 
+	@Override
+	public boolean equalTo(T other) {
+		Text<?> o = other;
+		return this == other || other != null && latin1 == o.latin1 && Arrays.equals(text, o.text);
+	}
+
+	/**
+	 * Like for other {@link ByteSequence}s shorter texts come first.
+	 */
+	@Override
+	public int compareTo(T other) {
+		if (this == other)
+			return 0;
+		int n = length();
+		int res = Integer.compare(n, other.length());
+		for (int i = 0; res == 0 && i < n; i++)
+			res = Character.compare(charAt(i), other.charAt(i));
+		return res;
+	}
+
 	public boolean contains(T section) {
-		return ByteSequence.contains(this, section);
+		return indexOf(section) >= 0;
+	}
+
+	/**
+	 * @return the index of the first character of the section in this text or
+	 *         -1 if it is not contained
+	 */
+	public int indexOf(T section) {
+		Text<?> s = section;
+		if (latin1 && !s.latin1)
+			return -1; // the section has characters this text cannot have
+		int ls = s.length();
+		int last = length() - ls;
+		if (latin1) {
+			outer: for (int i = 0; i <= last; i++) {
+				for (int j = 0; j < ls; j++)
+					if (text[i+j] != s.text[j])
+						continue outer;
+				return i;
+			}
+			return -1;
+		}
+		outer: for (int i = 0; i <= last; i++) {
+			for (int j = 0; j < ls; j++)
+				if (charAt(i+j) != s.charAt(j))
+					continue outer;
+			return i;
+		}
+		return -1;
 	}
 }
@@ -0,0 +1,106 @@
+package se.jbee.track.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram for (latency) values like nanoseconds.
+ *
+ * Values are counted in buckets of exponentially growing width. Each such
+ * bucket is divided into {@link #SUB_BUCKETS} linear sub-buckets. This is the
+ * idea behind a HDR histogram: a fixed and small memory footprint with a
+ * relative error of at most 1/{@link #SUB_BUCKETS} for any recorded value.
+ *
+ * Recording is wait-free and can be done by any number of threads.
+ */
+public final class Histogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value))
+			m = max.get();
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public long mean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * @param percentile a value between 0 and 100
+	 * @return the upper bound of the bucket the percentile falls into, or 0
+	 *         if no values have been recorded yet
+	 */
+	public long percentile(double percentile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100d));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return a copy of the values recorded so far that does not change when
+	 *         more values are recorded. The count is the sum of the copied
+	 *         buckets so that percentiles of the copy are consistent.
+	 */
+	public Histogram snapshot() {
+		Histogram res = new Histogram();
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = counts.get(i);
+			res.counts.set(i, c);
+			n += c;
+		}
+		res.count.set(n);
+		res.sum.set(sum.get());
+		res.max.set(max.get());
+		return res;
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int bucket = exp - SUB_BITS + 1;
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return bucket * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int bucket = index / SUB_BUCKETS;
+		int sub = index % SUB_BUCKETS;
+		long lower = (long) (SUB_BUCKETS + sub) << (bucket - 1);
+		return lower + (1L << (bucket - 1)) - 1;
+	}
+}
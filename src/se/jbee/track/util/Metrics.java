@@ -0,0 +1,112 @@
+package se.jbee.track.util;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A process wide registry of {@link Timer}s and {@link Counter}s measuring the
+ * request pipeline from parsing the request to rendering the response.
+ *
+ * Like the {@link se.jbee.track.engine.Changes} serial these are application
+ * lifetime values. They are not persisted.
+ */
+public final class Metrics {
+
+	/**
+	 * The stages of the request pipeline whose latency is recorded.
+	 */
+	public enum Timer {
+		params, view, render,
+		cacheQueue, cacheLookup,
+		commitEncode, commitWrite, commitSync
+	}
+
+	/**
+	 * Counted events and sizes. Sizes go up and down.
+	 */
+	public enum Counter {
+		cacheHits, cacheMisses, slowQueries, shedQueries, timedOutQueries, failedQueries,
+		indexedOutputs, indexedTasks, parallelScans,
+		limitsExceeded, limitsOccupied,
+		dbGrowths,
+		entityHits, entityMisses
+	}
+
+	/**
+	 * The number of slow queries kept, older ones are dropped.
+	 */
+	private static final int SLOW_QUERIES = 64;
+
+	private static final EnumMap<Timer, Histogram> TIMERS = new EnumMap<>(Timer.class);
+	private static final AtomicLongArray COUNTERS = new AtomicLongArray(Counter.values().length);
+	private static final ArrayDeque<String> SLOW = new ArrayDeque<>();
+
+	static {
+		for (Timer t : Timer.values())
+			TIMERS.put(t, new Histogram());
+	}
+
+	private Metrics() {
+		throw new UnsupportedOperationException("util");
+	}
+
+	public static void record(Timer timer, long nanos) {
+		TIMERS.get(timer).record(nanos);
+	}
+
+	/**
+	 * Records the time passed since the given start.
+	 *
+	 * @param nsStart a {@link System#nanoTime()} taken at the start
+	 */
+	public static void since(Timer timer, long nsStart) {
+		record(timer, System.nanoTime() - nsStart);
+	}
+
+	public static void count(Counter counter) {
+		add(counter, 1);
+	}
+
+	public static void add(Counter counter, long delta) {
+		COUNTERS.addAndGet(counter.ordinal(), delta);
+	}
+
+	public static Histogram histogram(Timer timer) {
+		return TIMERS.get(timer);
+	}
+
+	public static long value(Counter counter) {
+		return COUNTERS.get(counter.ordinal());
+	}
+
+	/**
+	 * Records a query that took longer than the threshold.
+	 *
+	 * @param query the query and how it was looked up
+	 */
+	public static void slowQuery(long nanos, String query) {
+		count(Counter.slowQueries);
+		String entry = String.format("%.3f ms ", nanos / 1000000d)+query;
+		synchronized (SLOW) {
+			if (SLOW.size() == SLOW_QUERIES)
+				SLOW.removeFirst();
+			SLOW.addLast(entry);
+		}
+	}
+
+	/**
+	 * @return the most recent slow queries, latest first
+	 */
+	public static String[] slowQueries() {
+		synchronized (SLOW) {
+			String[] res = SLOW.toArray(new String[0]);
+			for (int i = 0, j = res.length-1; i < j; i++, j--) {
+				String tmp = res[i];
+				res[i] = res[j];
+				res[j] = tmp;
+			}
+			return res;
+		}
+	}
+}
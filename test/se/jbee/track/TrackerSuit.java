@@ -5,11 +5,25 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 import se.jbee.track.api.TestURLToParams;
+import se.jbee.track.cache.TestCacheWorker;
+import se.jbee.track.cache.TestSnapshot;
+import se.jbee.track.cache.TestStatistics;
 import se.jbee.track.cache.TestTaskSet;
+import se.jbee.track.cache.TestTextIndex;
 import se.jbee.track.db.TestHeapMapDB;
+import se.jbee.track.db.TestMemoryDB;
+import se.jbee.track.db.TestShardedDB;
 import se.jbee.track.engine.TestConvert;
+import se.jbee.track.engine.TestEntityCache;
 import se.jbee.track.engine.TestLMDB;
+import se.jbee.track.engine.TestImport;
+import se.jbee.track.engine.TestKeyMigration;
+import se.jbee.track.engine.TestJournal;
+import se.jbee.track.engine.TestLinearLimits;
 import se.jbee.track.engine.TestOTP;
+import se.jbee.track.engine.TestSharedLimits;
+import se.jbee.track.engine.TestTimeline;
+import se.jbee.track.http.TestExportWriter;
 import se.jbee.track.model.TestByteSequenceSecurity;
 import se.jbee.track.model.TestCriteria;
 import se.jbee.track.model.TestCriterium;
@@ -17,13 +31,18 @@ import se.jbee.track.model.TestGist;
 import se.jbee.track.model.TestName;
 import se.jbee.track.model.TestTemplate;
 import se.jbee.track.model.TestURL;
+import se.jbee.track.util.TestHistogram;
 
 @RunWith(Suite.class)
 @SuiteClasses({ TestTracker.class, TestConvert.class, TestLMDB.class,
 		TestCriteria.class, TestOTP.class, TestUseCode.class,
 		TestCriterium.class, TestGist.class, TestTaskSet.class,
 		TestByteSequenceSecurity.class, TestURL.class, TestName.class, TestURLToParams.class,
-		TestTemplate.class, TestHeapMapDB.class })
+		TestTemplate.class, TestHeapMapDB.class, TestHistogram.class,
+		TestLinearLimits.class, TestSharedLimits.class, TestTextIndex.class,
+		TestSnapshot.class, TestTimeline.class, TestJournal.class,
+		TestImport.class, TestExportWriter.class, TestMemoryDB.class, TestEntityCache.class, TestKeyMigration.class,
+		TestShardedDB.class, TestCacheWorker.class, TestStatistics.class })
 public class TrackerSuit {
 	// run all tests...
 }
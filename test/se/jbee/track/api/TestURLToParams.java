@@ -151,4 +151,63 @@ public class TestURLToParams {
 		assertEquals(params.get(Param.command), Command.examine.name());
 	}
 
+	@Test
+	public void monitor() {
+		Params params = Params.fromPath("/monitor/");
+
+		assertEquals(1, params.size());
+		assertEquals(params.get(Param.command), Command.monitor.name());
+	}
+
+	@Test
+	public void traceAreas() {
+		Params params = Params.fromPath("/trace/foo/bar,baz/");
+
+		assertEquals(3, params.size());
+		assertEquals(params.get(Param.command), Command.trace.name());
+		assertEquals(params.get(Param.output), "foo");
+		assertEquals(params.get(Param.area), "bar,baz");
+	}
+
+	@Test
+	public void traceUser() {
+		Params params = Params.fromPath("/trace/user/foo/");
+
+		assertEquals(2, params.size());
+		assertEquals(params.get(Param.command), Command.trace.name());
+		assertEquals(params.get(Param.viewed), "foo");
+	}
+
+	@Test
+	public void traceTaskWithOffset() {
+		Params params = Params.fromPath("/trace/foo/12/offset/50");
+
+		assertEquals(4, params.size());
+		assertEquals(params.get(Param.command), Command.trace.name());
+		assertEquals(params.get(Param.output), "foo");
+		assertEquals(params.get(Param.task), "12");
+		assertEquals(params.get(Param.offset), "50");
+	}
+
+	@Test
+	public void traceOutputWithOffset() {
+		Params params = Params.fromPath("/trace/foo/offset/50/");
+
+		assertEquals(3, params.size());
+		assertEquals(params.get(Param.command), Command.trace.name());
+		assertEquals(params.get(Param.output), "foo");
+		assertEquals(params.get(Param.offset), "50");
+	}
+
+	@Test
+	public void exportWithFilter() {
+		Params params = Params.fromPath("/export/foo/csv/[status=unsolved]");
+
+		assertEquals(4, params.size());
+		assertEquals(params.get(Param.command), Command.export.name());
+		assertEquals(params.get(Param.output), "foo");
+		assertEquals(params.get(Param.format), "csv");
+		assertEquals(params.get(Param.filter), "[status=unsolved]");
+	}
+
 }
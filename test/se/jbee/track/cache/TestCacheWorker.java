@@ -0,0 +1,224 @@
+package se.jbee.track.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.MemoryDB;
+import se.jbee.track.engine.Changes;
+import se.jbee.track.engine.DAO;
+import se.jbee.track.engine.Limits;
+import se.jbee.track.engine.Repository;
+import se.jbee.track.engine.Server;
+import se.jbee.track.engine.Transaction;
+import se.jbee.track.model.Criteria;
+import se.jbee.track.model.Criteria.Property;
+import se.jbee.track.model.Date;
+import se.jbee.track.model.User;
+import se.jbee.track.util.Metrics;
+import se.jbee.track.util.Metrics.Counter;
+
+public class TestCacheWorker {
+
+	@Test
+	public void largeOutputsAreDecodedInParallelChunks() throws Exception {
+		int tasks = 2 * CacheWorker.INIT_CHUNK + 77;
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), tasks, as("peter")), db, server);
+			long now = System.currentTimeMillis();
+			CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, null);
+			try {
+				assertEquals(tasks, total(worker, "[length=10]"));
+				AtomicInteger inUI = new AtomicInteger();
+				try (Repository rep = new DAO(db)) {
+					rep.tasks(as("vizio"), t -> { if (t.area.name.equalTo(as("ui"))) inUI.incrementAndGet(); return true; });
+				}
+				assertEquals(inUI.get(), total(worker, "[area=ui][length=10]"));
+				Matches first = worker.matchesFor(new User(1), criteria("[length=3]")).get();
+				for (int i = 0; i < first.tasks.length; i++)
+					assertEquals(i+1, first.tasks[i].id.num);
+			} finally {
+				worker.close();
+			}
+		}
+	}
+
+	@Test
+	public void unselectiveLookupsAreFilteredInParallel() throws Exception {
+		int tasks = 3000;
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), tasks, as("peter")), db, server);
+			long now = System.currentTimeMillis();
+			CacheWorker sequential = new CacheWorker(as("vizio"), db, Date.date(now), now, null);
+			CacheWorker parallel = new CacheWorker(as("vizio"), db, Date.date(now), now, null, 2, Long.MAX_VALUE);
+			try {
+				long scans = Metrics.value(Counter.parallelScans);
+				for (String criteria : new String[] { "[motive!=defect][length=5000]", "[heat>cold][length=5000]" }) {
+					Matches expected = sequential.matchesFor(new User(1), criteria(criteria)).get();
+					Matches actual = parallel.matchesFor(new User(1), criteria(criteria)).get();
+					assertEquals(expected.total, actual.total);
+					for (int i = 0; i < expected.tasks.length; i++)
+						assertEquals(expected.tasks[i].id, actual.tasks[i].id);
+				}
+				assertEquals(scans + 2, Metrics.value(Counter.parallelScans));
+			} finally {
+				sequential.close();
+				parallel.close();
+			}
+		}
+	}
+
+	@Test
+	public void plansUseSmallIndexesAndScanOtherwise() throws Exception {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), 400, as("peter")), db, server);
+			long now = System.currentTimeMillis();
+			CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, null);
+			try {
+				Plan bySerial = worker.plan(criteria("[serial=1][length=10]"));
+				assertFalse(bySerial.isScan());
+				assertEquals(Property.serial, bySerial.driver.left);
+				Plan byArea = worker.plan(criteria("[area=ui]"));
+				assertTrue(byArea.isScan());
+				assertEquals(Property.archived, byArea.filter.get(0).left);
+				Plan mixed = worker.plan(criteria("[heat>cold][motive!=defect][serial=1]"));
+				assertEquals(Property.serial, mixed.filter.get(0).left);
+				AtomicInteger first = new AtomicInteger();
+				AtomicInteger exploitable = new AtomicInteger();
+				try (Repository rep = new DAO(db)) {
+					rep.tasks(as("vizio"), t -> {
+						if (t.serial.num == 1) first.incrementAndGet();
+						if (t.exploitable) exploitable.incrementAndGet();
+						return true;
+					});
+				}
+				assertEquals(first.get(), total(worker, "[serial=1]"));
+				assertTrue(exploitable.get() > 0);
+				assertEquals(exploitable.get(), worker.plan(criteria("[exploitable=yes]")).estimate);
+			} finally {
+				worker.close();
+			}
+		}
+	}
+
+	@Test
+	public void explainedLookupsCarryTheirProfile() throws Exception {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), 50, as("peter")), db, server);
+			long now = System.currentTimeMillis();
+			CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, null, Integer.MAX_VALUE, 0L);
+			try {
+				long slow = Metrics.value(Counter.slowQueries);
+				Matches plain = worker.matchesFor(new User(1), criteria("[serial=1]")).get();
+				assertNull(plain.profile);
+				Matches explained = worker.matchesFor(new User(1), criteria("[serial=1][explain=yes]")).get();
+				assertNotNull(explained.profile);
+				assertEquals(explained.total, explained.profile.matches);
+				assertTrue(explained.profile.plan.startsWith("index [serial = 1]"));
+				assertEquals(slow + 2, Metrics.value(Counter.slowQueries));
+				assertTrue(Metrics.slowQueries()[0].contains("[explain = true]"));
+			} finally {
+				worker.close();
+			}
+		}
+	}
+
+	@Test
+	public void overloadedWorkerShedsLookups() throws Exception {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), 2000, as("peter")), db, server);
+			long now = System.currentTimeMillis();
+			CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, null);
+			try {
+				List<Future<Matches>> lookups = new ArrayList<>();
+				boolean overloaded = false;
+				for (int i = 0; i < 100 * CacheWorker.MAX_PENDING && !overloaded; i++) {
+					Future<Matches> lookup = worker.matchesFor(new User(1), criteria("[motive!=defect][length=5000]"));
+					lookups.add(lookup);
+					overloaded = lookup.isDone() && !lookup.get().excludedOutputs.isEmpty();
+				}
+				Future<Void> invalidated = worker.invalidate(Changes.EMPTY); // does not wait for room
+				assertTrue(overloaded);
+				int shed = 0;
+				for (Future<Matches> lookup : lookups) {
+					Matches m = lookup.get();
+					if (!m.excludedOutputs.isEmpty()) {
+						assertTrue(m.excludedOutputs.contains(as("vizio")));
+						shed++;
+					} else {
+						assertTrue(m.total > 0);
+					}
+				}
+				assertTrue(shed > 0);
+				invalidated.get(1, TimeUnit.SECONDS);
+			} finally {
+				worker.close();
+			}
+		}
+	}
+
+	@Test
+	public void lookupsNotDoneInTimeExcludeTheirOutput() {
+		long timedOut = Metrics.value(Counter.timedOutQueries);
+		CompletableFuture<Matches> never = new CompletableFuture<>();
+		Matches matches = Matches.matches(never, names("vizio"));
+		assertEquals(0, matches.total);
+		assertTrue(matches.excludedOutputs.contains(as("vizio")));
+		assertTrue(never.isCancelled());
+		assertEquals(timedOut + 1, Metrics.value(Counter.timedOutQueries));
+		CompletableFuture<Matches> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new IllegalStateException());
+		assertTrue(Matches.matches(failed, names("vizio")).excludedOutputs.contains(as("vizio")));
+	}
+
+	@Test(expected = CancellationException.class)
+	public void filteringStopsAtTheDeadline() throws Exception {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), 3000, as("peter")), db, server);
+			long now = System.currentTimeMillis();
+			CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, null);
+			try {
+				worker.lookup(criteria("[motive!=defect]"), System.nanoTime());
+			} finally {
+				worker.close();
+			}
+		}
+	}
+
+	private static int total(CacheWorker worker, String criteria) throws Exception {
+		return worker.matchesFor(new User(1), criteria(criteria)).get().total;
+	}
+
+	private static Criteria criteria(String criteria) {
+		return Criteria.parse("[output=vizio]"+criteria).without(Criteria.Property.output);
+	}
+}
@@ -0,0 +1,109 @@
+package se.jbee.track.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.LMDB;
+import se.jbee.track.db.MemoryDB;
+import se.jbee.track.engine.Changes;
+import se.jbee.track.engine.Limits;
+import se.jbee.track.engine.Server;
+import se.jbee.track.engine.Transaction;
+import se.jbee.track.model.Criteria;
+import se.jbee.track.model.Criteria.Property;
+import se.jbee.track.model.Date;
+import se.jbee.track.model.Name;
+import se.jbee.track.model.User;
+
+public class TestSnapshot {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void restoredCacheCatchesUpWithLaterChanges() throws Exception {
+		Name peter = as("peter");
+		Name output = as("vizio");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		File snapshot = new File(tmp.newFolder(), "vizio.cache");
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), tmp.newFolder())) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), 20, peter), db, server);
+			int before = total(db, snapshot, "[length=100]");
+			assertEquals(20, before);
+			assertTrue(snapshot.exists());
+
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), 5, peter), db, server);
+			assertEquals(25, total(db, snapshot, "[length=100]"));
+			assertEquals(total(db, null, "[area=ui][length=100]"), total(db, snapshot, "[area=ui][length=100]"));
+			assertEquals(total(db, null, "[gist~Product][length=100]"), total(db, snapshot, "[gist~Product][length=100]"));
+		}
+	}
+
+	@Test
+	public void snapshotIsSavedAfterManyInvalidations() throws Exception {
+		File snapshot = new File(tmp.newFolder(), "vizio.cache");
+		try (DB db = new MemoryDB()) {
+			long now = System.currentTimeMillis();
+			CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, snapshot);
+			try {
+				for (int i = 0; i < CacheWorker.SAVE_AFTER; i++)
+					worker.invalidate(Changes.EMPTY);
+				while (!worker.matchesFor(new User(1), Criteria.parse("[length=1]")).get().excludedOutputs.isEmpty()) {
+					// lookups are shed until the worker is done with the invalidations
+				}
+				assertTrue(snapshot.exists());
+			} finally {
+				worker.close();
+			}
+		}
+	}
+
+	@Test
+	public void restoredStatisticsAreUsedOnceAllTasksAreLoaded() throws Exception {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		File snapshot = new File(tmp.newFolder(), "vizio.cache");
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+					names("ui", "db"), names("example"), 20, as("peter")), db, server);
+			long now = System.currentTimeMillis() + 3600_000L; // so that the restored worker does not catch up with the sample
+			new CacheWorker(as("vizio"), db, Date.date(now), now, snapshot).close();
+			CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, snapshot);
+			try {
+				Changes added = Transaction.run(sample(names("peter"), names("vizio"), names("0.1"),
+						names("ui", "db"), names("example"), 1, as("peter")), db, server);
+				worker.invalidate(added).get(); // loads the added task only
+				int guessed = (int) Math.round(21 * (1d - Property.exploitable.selectivity / 100d));
+				assertEquals(guessed, worker.plan(Criteria.parse("[exploitable=yes]")).estimate);
+				assertEquals(guessed, worker.plan(Criteria.parse("[exploitable=no]")).estimate);
+				worker.matchesFor(new User(1), Criteria.parse("[length=1]")).get(); // loads all
+				assertEquals(total(db, null, "[exploitable=yes][length=100]"), worker.plan(Criteria.parse("[exploitable=yes]")).estimate);
+			} finally {
+				worker.close();
+			}
+		}
+	}
+
+	private static int total(DB db, File snapshot, String criteria) throws Exception {
+		long now = System.currentTimeMillis();
+		CacheWorker worker = new CacheWorker(as("vizio"), db, Date.date(now), now, snapshot);
+		try {
+			return worker.matchesFor(new User(1), Criteria.parse("[output=vizio]"+criteria).without(Criteria.Property.output)).get().total;
+		} finally {
+			worker.close();
+		}
+	}
+}
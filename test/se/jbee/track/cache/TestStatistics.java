@@ -0,0 +1,56 @@
+package se.jbee.track.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import se.jbee.track.model.Criteria;
+import se.jbee.track.model.Date;
+import se.jbee.track.model.Task;
+
+public class TestStatistics {
+
+	private final Date today = Date.today();
+
+	@Test
+	public void histogramsCountValuesOfTasks() {
+		Statistics stats = new Statistics(today);
+		for (int i = 1; i <= 10; i++)
+			stats.add(task(i, i, i % 5 == 0));
+		assertEquals(10, stats.tasks());
+		assertEquals(0.2d, fraction(stats, "[exploitable=yes]"), 0.001d);
+		assertEquals(0.8d, fraction(stats, "[exploitable=no]"), 0.001d);
+		assertEquals(0.3d, fraction(stats, "[emphasis>7]"), 0.001d);
+		assertEquals(0.4d, fraction(stats, "[emphasis<=4]"), 0.001d);
+		assertEquals(0.5d, fraction(stats, "[reported<"+today.minusDays(5)+"]"), 0.001d);
+		assertEquals(-1d, fraction(stats, "[gist~foo]"), 0.001d);
+	}
+
+	@Test
+	public void replacedTasksAreNoLongerCounted() {
+		Statistics stats = new Statistics(today);
+		Task before = task(1, 3, false);
+		stats.add(before);
+		stats.add(task(2, 3, false));
+		assertEquals(1d, fraction(stats, "[emphasis=3]"), 0.001d);
+		stats.remove(before);
+		stats.add(task(1, 9, true));
+		assertEquals(2, stats.tasks());
+		assertEquals(0.5d, fraction(stats, "[emphasis=3]"), 0.001d);
+		assertEquals(0.5d, fraction(stats, "[exploitable=yes]"), 0.001d);
+		stats.clear();
+		assertEquals(-1d, fraction(stats, "[emphasis=3]"), 0.001d);
+	}
+
+	private Task task(int days, int emphasis, boolean exploitable) {
+		Task t = new Task(1);
+		t.reported = today.minusDays(days);
+		t.emphasis = emphasis;
+		t.exploitable = exploitable;
+		return t;
+	}
+
+	private static double fraction(Statistics stats, String criteria) {
+		return stats.fraction(Criteria.parse(criteria).get(0));
+	}
+}
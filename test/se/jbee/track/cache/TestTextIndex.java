@@ -0,0 +1,59 @@
+package se.jbee.track.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.model.Gist.gist;
+import static se.jbee.track.model.IDN.idn;
+
+import org.junit.Test;
+
+import se.jbee.track.cache.CacheWorker.TaskSet;
+
+public class TestTextIndex {
+
+	@Test
+	public void candidatesContainAllTasksContainingTheText() {
+		TextIndex index = new TextIndex();
+		index.add(gist("Login fails with long passwords"), idn(1));
+		index.add(gist("Logout does not work"), idn(2));
+		index.add(gist("Passwords are stored in plain text"), idn(3));
+
+		TaskSet candidates = index.candidates(gist("Log"));
+		assertEquals(2, candidates.size());
+		assertTrue(candidates.contains(idn(1)));
+		assertTrue(candidates.contains(idn(2)));
+		candidates = index.candidates(gist("asswords"));
+		assertTrue(candidates.contains(idn(1)));
+		assertTrue(candidates.contains(idn(3)));
+		assertFalse(candidates.contains(idn(2)));
+	}
+
+	@Test
+	public void unknownTrigramHasNoCandidates() {
+		TextIndex index = new TextIndex();
+		index.add(gist("Login fails"), idn(1));
+
+		assertEquals(0, index.candidates(gist("xyz")).size());
+	}
+
+	@Test
+	public void shortTextCannotBeNarrowedDown() {
+		TextIndex index = new TextIndex();
+		index.add(gist("Login fails"), idn(1));
+
+		assertNull(index.candidates(gist("Lo")));
+	}
+
+	@Test
+	public void removedTextIsNoLongerFound() {
+		TextIndex index = new TextIndex();
+		index.add(gist("Login fails"), idn(1));
+		index.remove(gist("Login fails"), idn(1));
+		index.add(gist("Logout fails"), idn(1));
+
+		assertEquals(0, index.candidates(gist("Login")).size());
+		assertTrue(index.candidates(gist("Logout")).contains(idn(1)));
+	}
+}
@@ -1,10 +1,8 @@
 package se.jbee.track.db;
 
-import static java.util.Collections.emptySortedMap;
-
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
@@ -35,7 +33,7 @@ public final class HeapMapDB implements DB {
 	}
 
 	private final boolean emptyOnClose;
-	private final AtomicReference<SortedMap<ID, ByteBuffer>> entities = new AtomicReference<>(emptySortedMap());
+	private final AtomicReference<NavigableMap<ID, ByteBuffer>> entities = new AtomicReference<>(new TreeMap<>(ID.KEY_ORDER));
 	private final Semaphore writeLock = new Semaphore(1);
 
 	public HeapMapDB(boolean emptyOnClose) {
@@ -61,15 +59,15 @@ public final class HeapMapDB implements DB {
 	public void close() {
 		if (emptyOnClose) {
 			entities.get().clear();
-			entities.set(emptySortedMap());
+			entities.set(new TreeMap<>(ID.KEY_ORDER));
 		}
 	}
 
 	private static class HeapMapRead implements Read {
 
-		final SortedMap<ID, ByteBuffer> entities;
+		final NavigableMap<ID, ByteBuffer> entities;
 
-		HeapMapRead(SortedMap<ID, ByteBuffer> entities) {
+		HeapMapRead(NavigableMap<ID, ByteBuffer> entities) {
 			this.entities = entities;
 		}
 
@@ -84,15 +82,22 @@ public final class HeapMapDB implements DB {
 		}
 
 		@Override
-		public void range(ID first, BiPredicate<ID, ByteBuffer> consumer) {
-			Iterator<Entry<ID, ByteBuffer>> iter = entities.entrySet().iterator();
-			Entry<ID, ByteBuffer> e = null;
-			while (iter.hasNext() && (e == null || !e.getKey().equalTo(first)))
-				e = iter.next();
-			if (e != null && e.getKey().equalTo(first)) {
-				boolean cont = consumer.test(first, e.getValue());
-				while (cont && iter.hasNext())
-					cont = consumer.test(first, e.getValue());
+		public void range(ID.Type type, ID first, ID end, boolean reverse, BiPredicate<ID, ByteBuffer> consumer) {
+			NavigableMap<ID, ByteBuffer> view = entities;
+			if (first != null)
+				view = view.tailMap(first, true);
+			if (end != null)
+				view = view.headMap(end, false);
+			if (reverse)
+				view = view.descendingMap();
+			for (Entry<ID, ByteBuffer> e : view.entrySet()) {
+				ID key = e.getKey();
+				if (key.type == type) {
+					if (!consumer.test(key, e.getValue().duplicate()))
+						return;
+				} else if (reverse == key.type.compareTo(type) < 0) {
+					return; // passed all keys of the type
+				}
 			}
 		}
 
@@ -103,7 +108,7 @@ public final class HeapMapDB implements DB {
 		private final HeapMapDB db;
 		private boolean committed = false;
 
-		HeapMapWrite(SortedMap<ID, ByteBuffer> entities, HeapMapDB db) {
+		HeapMapWrite(NavigableMap<ID, ByteBuffer> entities, HeapMapDB db) {
 			super(new TreeMap<>(entities));
 			this.db = db;
 		}
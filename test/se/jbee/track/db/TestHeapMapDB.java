@@ -1,11 +1,15 @@
 package se.jbee.track.db;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static se.jbee.track.model.ID.outputId;
 import static se.jbee.track.model.ID.userId;
 import static se.jbee.track.model.Name.as;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
@@ -89,6 +93,25 @@ public class TestHeapMapDB {
 		assertEquals(value, db.read().get(key));
 	}
 
+	@Test
+	public void rangeStopsAtEndAndTypeBoundary() {
+		try (Write tx = db.write()) {
+			for (String user : new String[] { "aa", "bb", "cc", "dd" })
+				tx.put(userId(as(user)), value(user));
+			tx.put(outputId(as("aa")), value("a"));
+			tx.commit();
+		}
+		List<ID> keys = new ArrayList<>();
+		db.read().range(userId(as("bb")), userId(as("dd")), (k, v) -> keys.add(k));
+		assertEquals(asList(userId(as("bb")), userId(as("cc"))), keys);
+		keys.clear();
+		db.read().keys(ID.Type.User, null, userId(as("cc")), true, keys::add);
+		assertEquals(asList(userId(as("bb")), userId(as("aa"))), keys);
+		keys.clear();
+		db.read().range(userId(as("cc")), (k, v) -> keys.add(k));
+		assertEquals(asList(userId(as("cc")), userId(as("dd"))), keys);
+	}
+
 	private static ByteBuffer value(String val) {
 		return ByteBuffer.wrap("bar".getBytes());
 	}
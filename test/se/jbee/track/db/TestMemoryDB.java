@@ -0,0 +1,138 @@
+package se.jbee.track.db;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Gist.gist;
+import static se.jbee.track.model.ID.userId;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.jbee.track.db.DB.Read;
+import se.jbee.track.db.DB.Write;
+import se.jbee.track.engine.Change;
+import se.jbee.track.engine.DAO;
+import se.jbee.track.engine.Limits;
+import se.jbee.track.engine.Repository;
+import se.jbee.track.engine.Server;
+import se.jbee.track.engine.Transaction;
+import se.jbee.track.model.ID;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Poll.Matter;
+
+public class TestMemoryDB {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void readsSeeTheStateAtTheirBeginning() {
+		try (DB db = new MemoryDB()) {
+			ID key = userId(as("peter"));
+			put(db, key, 1);
+			try (Read before = db.read()) {
+				try (Write tx = db.write()) {
+					tx.put(key, value(2));
+					assertEquals(2, tx.get(key).getInt());
+					assertEquals(1, before.get(key).getInt());
+					tx.commit();
+				}
+				assertEquals(1, before.get(key).getInt());
+				try (Read after = db.read()) {
+					assertEquals(2, after.get(key).getInt());
+				}
+				try (Write tx = db.write()) {
+					tx.delete(key);
+					tx.commit();
+				}
+				assertEquals(1, before.get(key).getInt());
+			}
+			try (Read tx = db.read()) {
+				assertNull(tx.get(key));
+			}
+		}
+	}
+
+	@Test
+	public void uncommittedWritesAreDiscarded() {
+		try (DB db = new MemoryDB()) {
+			ID key = userId(as("peter"));
+			put(db, key, 1);
+			try (Write tx = db.write()) {
+				tx.put(key, value(2));
+				tx.put(userId(as("paul")), value(3));
+			}
+			try (Read tx = db.read()) {
+				assertEquals(1, tx.get(key).getInt());
+				assertNull(tx.get(userId(as("paul"))));
+			}
+		}
+	}
+
+	@Test
+	public void rangeIsBoundedAndOrdered() {
+		try (DB db = new MemoryDB()) {
+			for (String user : new String[] { "dd", "bb", "aa", "cc" })
+				put(db, userId(as(user)), 1);
+			List<ID> keys = new ArrayList<>();
+			try (Read tx = db.read()) {
+				tx.range(userId(as("bb")), userId(as("dd")), (k, v) -> keys.add(k));
+				assertEquals(asList(userId(as("bb")), userId(as("cc"))), keys);
+				keys.clear();
+				tx.keys(ID.Type.User, null, null, true, keys::add);
+				assertEquals(asList(userId(as("dd")), userId(as("cc")), userId(as("bb")), userId(as("aa"))), keys);
+			}
+		}
+	}
+
+	@Test
+	public void dumpIsLoadedAgain() throws Exception {
+		File dump = new File(tmp.newFolder(), "memory.db");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB(dump, 0L)) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 10, as("peter")), db, server);
+		}
+		try (DB db = new MemoryDB(dump, 0L); Repository rep = new DAO(db.read())) {
+			assertEquals(10, rep.output(as("vizio")).tasks);
+			assertNotNull(rep.task(as("vizio"), IDN.idn(10)));
+		}
+	}
+
+	@Test
+	public void dumpedPollsAreLoadedAsPolls() throws Exception {
+		File dump = new File(tmp.newFolder(), "memory.db");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new MemoryDB(dump, 0L)) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 1, as("peter")), db, server);
+			Transaction.run(Change.poll(Matter.inclusion, gist("anyone"), as("vizio"), as("ui"), as("peter"), as("peter")), db, server);
+		}
+		try (DB db = new MemoryDB(dump, 0L); Repository rep = new DAO(db.read())) {
+			assertNotNull(rep.poll(as("vizio"), as("ui"), IDN.idn(1)));
+		}
+	}
+
+	private static void put(DB db, ID key, int value) {
+		try (Write tx = db.write()) {
+			tx.put(key, value(value));
+			tx.commit();
+		}
+	}
+
+	private static ByteBuffer value(int value) {
+		ByteBuffer res = ByteBuffer.allocate(4);
+		res.putInt(value).flip();
+		return res;
+	}
+}
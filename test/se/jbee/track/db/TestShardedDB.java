@@ -0,0 +1,172 @@
+package se.jbee.track.db;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.ID.outputId;
+import static se.jbee.track.model.ID.taskId;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import se.jbee.track.db.DB.Read;
+import se.jbee.track.db.DB.Write;
+import se.jbee.track.engine.DAO;
+import se.jbee.track.engine.Limits;
+import se.jbee.track.engine.Repository;
+import se.jbee.track.engine.Server;
+import se.jbee.track.engine.Transaction;
+import se.jbee.track.model.ID;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Name;
+
+public class TestShardedDB {
+
+	@Test
+	public void entriesOfAnOutputAreInTheSameShard() {
+		ShardedDB db = new ShardedDB(new MemoryDB(), new MemoryDB(), new MemoryDB());
+		Name output = as("vizio");
+		int shard = db.shard(outputId(output));
+		assertEquals(shard, db.shard(taskId(output, IDN.idn(42))));
+		assertEquals(shard, db.shard(ID.areaId(output, as("ui"))));
+		assertEquals(shard, db.shard(ID.versionId(output, as("0.1"))));
+		assertEquals(shard, db.shard(ID.dictionaryId(output)));
+		assertEquals(shard, db.shard(ID.historyId(taskId(output, IDN.idn(42)))));
+		assertEquals(shard, db.shard(ID.Type.Task, taskId(output, IDN.idn(1)), taskId(output, IDN.idn(100))));
+		assertEquals(-1, db.shard(ID.Type.Output, null, null));
+	}
+
+	@Test
+	public void transactionsAreReadAcrossShards() {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new ShardedDB(new MemoryDB(), new MemoryDB(), new MemoryDB())) {
+			for (String output : new String[] { "vizio", "track", "other", "more" })
+				Transaction.run(sample(names("peter"), names(output), names("0.1"), names("ui"), names("example"), 5, as("peter")), db, server);
+			try (Repository rep = new DAO(db)) {
+				assertEquals(5, rep.output(as("track")).tasks);
+				assertNotNull(rep.task(as("vizio"), IDN.idn(5)));
+				List<IDN> tasks = new ArrayList<>();
+				rep.tasks(as("more"), t -> tasks.add(t.id));
+				assertEquals(5, tasks.size());
+				assertEquals(4, rep.outputs().length);
+				assertNotNull(rep.history(taskId(as("other"), IDN.idn(3))));
+			}
+			List<ID> events = new ArrayList<>();
+			try (Read tx = db.read()) {
+				tx.keys(ID.Type.event, null, null, false, events::add);
+			}
+			assertEquals(4, events.size());
+			List<ID> sorted = new ArrayList<>(events);
+			sorted.sort(ID.KEY_ORDER);
+			assertEquals(sorted, events);
+		}
+	}
+
+	@Test
+	public void writesToDifferentShardsDoNotBlockEachOther() throws Exception {
+		ShardedDB db = new ShardedDB(new MemoryDB(), new MemoryDB());
+		ID a = outputId(outputIn(db, 0));
+		ID b = outputId(outputIn(db, 1));
+		try (Write tx = db.write(singleton(a))) {
+			tx.put(a, value(1));
+			CompletableFuture<Void> other = CompletableFuture.runAsync(() -> {
+				try (Write tx2 = db.write(singleton(b))) {
+					tx2.put(b, value(2));
+					tx2.commit();
+				}
+			});
+			other.get(5, TimeUnit.SECONDS);
+			tx.commit();
+		}
+		try (Read tx = db.read()) {
+			assertEquals(1, tx.get(a).getInt());
+			assertEquals(2, tx.get(b).getInt());
+		}
+	}
+
+	@Test
+	public void shardsAreOnlyLockedInAscendingOrder() {
+		ShardedDB db = new ShardedDB(new MemoryDB(), new MemoryDB());
+		ID a = outputId(outputIn(db, 0));
+		ID b = outputId(outputIn(db, 1));
+		try (Write tx = db.write(singleton(a))) {
+			tx.put(b, value(2)); // higher: can be locked
+		}
+		try (Write tx = db.write(singleton(b))) {
+			tx.put(a, value(1));
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("cannot be locked"));
+			return;
+		}
+		throw new AssertionError("Expected lock order to be enforced");
+	}
+
+	@Test
+	public void rangesAreMergedInKeyOrder() {
+		ShardedDB db = new ShardedDB(new MemoryDB(), new MemoryDB(), new MemoryDB());
+		List<ID> expected = new ArrayList<>();
+		for (String output : new String[] { "aa", "bb", "cc", "dd", "ee", "ff" }) {
+			ID id = outputId(as(output));
+			expected.add(id);
+			try (Write tx = db.write(singleton(id))) {
+				tx.put(id, value(1));
+				tx.commit();
+			}
+		}
+		List<ID> keys = new ArrayList<>();
+		try (Read tx = db.read()) {
+			tx.range(ID.Type.Output, null, null, true, (k, v) -> keys.add(k) && keys.size() < 3);
+		}
+		assertEquals(asList(expected.get(5), expected.get(4), expected.get(3)), keys);
+	}
+
+	@Test
+	public void rangesLargerThanABatchAreMergedInKeyOrder() {
+		ShardedDB db = new ShardedDB(new MemoryDB(), new MemoryDB(), new MemoryDB());
+		List<ID> expected = new ArrayList<>();
+		for (int i = 0; i < 5 * ShardedDB.MERGE_BATCH; i++) {
+			ID id = outputId(as("output"+i));
+			expected.add(id);
+			try (Write tx = db.write(singleton(id))) {
+				tx.put(id, value(i));
+				tx.commit();
+			}
+		}
+		expected.sort(ID.KEY_ORDER);
+		List<ID> keys = new ArrayList<>();
+		try (Read tx = db.read()) {
+			tx.range(ID.Type.Output, null, null, false, (k, v) -> keys.add(k));
+			assertEquals(expected, keys);
+			keys.clear();
+			tx.range(ID.Type.Output, null, null, true, (k, v) -> keys.add(k));
+			Collections.reverse(expected);
+			assertEquals(expected, keys);
+		}
+	}
+
+	private static Name outputIn(ShardedDB db, int shard) {
+		for (int i = 0; ; i++) {
+			Name output = as("output"+i);
+			if (db.shard(outputId(output)) == shard)
+				return output;
+		}
+	}
+
+	private static ByteBuffer value(int value) {
+		ByteBuffer res = ByteBuffer.allocate(4);
+		res.putInt(value).flip();
+		return res;
+	}
+}
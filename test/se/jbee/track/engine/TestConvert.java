@@ -1,6 +1,7 @@
 package se.jbee.track.engine;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static se.jbee.track.engine.Bincoder.area2bin;
 import static se.jbee.track.engine.Bincoder.bin2area;
@@ -55,6 +56,37 @@ public class TestConvert {
 		return now;
 	}
 
+	@Test
+	public void historyRingKeepsFirstAndMostRecentEvents() {
+		ByteBuffer history = null;
+		for (long t = 1; t <= 10; t++)
+			history = appendHistory(history, t, 3);
+		assertEquals(4 + 8 + 3 * 8, history.remaining());
+		History h = Bincoder.bin2history.convert(ID.userId(as("foo")), history);
+		assertArrayEquals(new long[] { 1, 8, 9, 10 }, h.events);
+		assertTrue(h.isCompacted());
+	}
+
+	@Test
+	public void historyInLegacyFormatIsConvertedOnAppend() {
+		ByteBuffer legacy = ByteBuffer.allocate(8 * 8);
+		for (long t = 1; t <= 8; t++)
+			legacy.putLong(t);
+		legacy.flip();
+		assertArrayEquals(new long[] { 1, 2, 3, 4, 5, 6, 7, 8 }, Bincoder.bin2history.convert(null, legacy.duplicate()).events);
+		History h = Bincoder.bin2history.convert(null, appendHistory(legacy, 9, 7));
+		assertArrayEquals(new long[] { 1, 3, 4, 5, 6, 7, 8, 9 }, h.events);
+		h = Bincoder.bin2history.convert(null, appendHistory(appendHistory(legacy, 9, 7), 10, 7));
+		assertArrayEquals(new long[] { 1, 4, 5, 6, 7, 8, 9, 10 }, h.events);
+	}
+
+	private static ByteBuffer appendHistory(ByteBuffer history, long timestamp, int retention) {
+		ByteBuffer buf = ByteBuffer.allocate(Bincoder.history2size(retention));
+		Bincoder.appendHistory(history, timestamp, retention, buf);
+		buf.flip();
+		return buf;
+	}
+
 	@Test
 	public void userConversion() {
 		User user1 = newTestUser();
@@ -108,6 +140,32 @@ public class TestConvert {
 		assertConsistentConversion(bin2task, task2bin, task1);
 	}
 
+	@Test
+	public void taskConversionWithDictionary() {
+		User user1 = newTestUser();
+		Output prod1 = tracker.envision(as("p1"), user1);
+		Task task1 = tracker.reportDefect(prod1, gist("broken"), user1, prod1.somewhere, prod1.somewhen, true);
+		Task task2 = tracker.reportDefect(prod1, gist("kaputt \u00fcberall \u20ac"), user1, prod1.somewhere, prod1.somewhen, true);
+		TestRepository rep = new TestRepository();
+		for (Task task : new Task[] { task1, task2 }) {
+			ByteBuffer buf = ByteBuffer.allocate(2048);
+			Bincoder.task2bin(rep.dictionary).convert(task, buf);
+			buf.flip();
+			int size = buf.remaining();
+			Task read = bin2task.convert(rep, buf);
+			assertEquals(task.gist, read.gist);
+			assertEquals(task.reporter, read.reporter);
+			assertEquals(task.area.name, read.area.name);
+			ByteBuffer rewritten = ByteBuffer.allocate(2048);
+			Bincoder.task2bin(rep.dictionary).convert(read, rewritten);
+			assertEquals(size, rewritten.position());
+			ByteBuffer legacy = ByteBuffer.allocate(2048);
+			task2bin.convert(task, legacy);
+			assertTrue(size < legacy.position());
+		}
+		assertEquals(2, rep.dictionary.size()); // the reporter and ~ used as area and version
+	}
+
 	@Test
 	public void logEntryConversion() {
 		long timestamp = System.currentTimeMillis();
@@ -141,6 +199,8 @@ public class TestConvert {
 
 	static class TestRepository implements Repository {
 
+		final Dictionary dictionary = Dictionary.decode(null);
+
 		@Override
 		public User user(Name user) {
 			User res = new User(1);
@@ -202,12 +262,33 @@ public class TestConvert {
 			throw new UnknownEntity(ID.historyId(entity));
 		}
 
+		@Override
+		public Dictionary dictionary(Name output) {
+			return dictionary;
+		}
+
 		@Override
 		public void tasks(Name output, Predicate<Task> consumer) {
 			// TODO Auto-generated method stub
 
 		}
 
+		@Override
+		public void tasks(Name output, IDN first, IDN end, Predicate<Task> consumer) {
+			// TODO Auto-generated method stub
+
+		}
+
+		@Override
+		public void events(long from, Predicate<Event> consumer) {
+			// nothing to do
+		}
+
+		@Override
+		public Event[] events(long[] timestamps) {
+			return new Event[0];
+		}
+
 		@Override
 		public Output[] outputs() {
 			// TODO Auto-generated method stub
@@ -0,0 +1,64 @@
+package se.jbee.track.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import org.junit.Test;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.MemoryDB;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Name;
+import se.jbee.track.model.Output;
+import se.jbee.track.model.Task;
+
+public class TestEntityCache {
+
+	private final Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+	private final Name vizio = as("vizio");
+
+	@Test
+	public void decodedEntitiesAreSharedBetweenReads() {
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 10, as("peter")), db, server);
+			Output output;
+			try (Repository rep = new DAO(db)) {
+				output = rep.output(vizio);
+			}
+			try (Repository rep = new DAO(db)) {
+				assertSame(output, rep.output(vizio));
+				assertSame(output.origin, rep.area(vizio, Name.ORIGIN));
+				Task task = rep.task(vizio, IDN.idn(1));
+				assertSame(output, task.output);
+			}
+			try (Repository rep = new DAO(db.read())) {
+				assertNotSame(output, rep.output(vizio));
+			}
+		}
+	}
+
+	@Test
+	public void changedEntitiesAreDecodedAgain() {
+		try (DB db = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 10, as("peter")), db, server);
+			try (Repository before = new DAO(db)) {
+				Output output = before.output(vizio);
+				Transaction.run(Change.suggest(vizio, as("other"), as("peter")), db, server);
+				try (Repository after = new DAO(db)) {
+					Output changed = after.output(vizio);
+					assertEquals(output.version() + 1, changed.version());
+					assertSame(changed, after.output(vizio));
+				}
+				assertSame(output, before.output(vizio));
+			}
+			try (Repository rep = new DAO(db)) {
+				assertEquals(2, rep.output(vizio).categories.count());
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package se.jbee.track.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Name.as;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.LMDB;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Motive;
+import se.jbee.track.model.Name;
+import se.jbee.track.model.Task;
+import se.jbee.track.model.User;
+
+public class TestImport {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void tasksAreImportedInBatches() throws Exception {
+		final File path = tmp.newFolder();
+		Name peter = as("peter");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		int tasks = Import.BATCH_SIZE * 2 + 10;
+		StringBuilder input = new StringBuilder();
+		input.append("# exported from elsewhere\n");
+		input.append("output\tvizio\n");
+		input.append("area\tvizio\tui\n");
+		input.append("area\tvizio\tdb\n");
+		input.append("version\tvizio\t0.1\n\n");
+		for (int i = 0; i < tasks; i++) {
+			if (i % 2 == 0) {
+				input.append("task\tvizio\tui\tproposal\tTask number ").append(i).append('\n');
+			} else {
+				input.append("task\tvizio\tdb\tdefect\tBug number ").append(i).append("\t0.1\n");
+			}
+		}
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*100).setMaxReaders(8), path)) {
+			Changes changes = Transaction.run(Change.register(peter, email("peter@example.com")), db, server);
+			long before = Transaction.run(Change.authenticate(peter, ((User)changes.get(0).after).otp), db, server).timestamp + 1;
+			AtomicInteger events = new AtomicInteger();
+			assertEquals(tasks + 4, Import.run(new StringReader(input.toString()), peter, db, server));
+			try (Repository rep = new DAO(db.read())) {
+				assertEquals(tasks, rep.output(as("vizio")).tasks);
+				Task last = rep.task(as("vizio"), IDN.idn(tasks));
+				assertEquals(Motive.proposal, rep.task(as("vizio"), IDN.idn(1)).motive);
+				assertEquals(Motive.defect, last.motive);
+				rep.events(before, e -> { events.incrementAndGet(); return true; });
+			}
+			assertEquals(3, events.get());
+		}
+	}
+
+	@Test
+	public void invalidRecordsNameTheirLine() throws Exception {
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), tmp.newFolder())) {
+			Import.run(new StringReader("output\tvizio\n\ntask\tvizio\tui\tdefect\tNo version\n"), as("peter"), db, new Server());
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Invalid record at line 3"));
+			return;
+		}
+		throw new AssertionError("import should have failed");
+	}
+}
@@ -0,0 +1,129 @@
+package se.jbee.track.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Gist.gist;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.LMDB;
+import se.jbee.track.engine.Server.Switch;
+import se.jbee.track.model.ID;
+import se.jbee.track.model.ID.Type;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Name;
+import se.jbee.track.model.Poll;
+import se.jbee.track.model.Poll.Matter;
+
+public class TestJournal {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void replayRebuildsStateAtPointInTime() throws Exception {
+		Name output = as("vizio");
+		AtomicLong time = new AtomicLong(1000L);
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE)
+				.with(time::incrementAndGet).with(Switch.JOURNAL);
+		try (DB db = open(tmp.newFolder());
+			DB copy = open(tmp.newFolder());
+			DB later = open(tmp.newFolder())) {
+			Change change = sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 1, as("peter"));
+			long first = Transaction.run(change, db, server, null).timestamp;
+			long second = Transaction.run(change, db, server, null).timestamp;
+			ID task2 = ID.taskId(output, IDN.idn(2));
+
+			List<Changes> replayed = new ArrayList<>();
+			assertEquals(first, Journal.replay(db, copy, first, replayed::add));
+			assertEquals(1, replayed.size());
+			assertEquals(first, replayed.get(0).timestamp);
+			assertFalse(replayed.get(0).isEmpty());
+			try (Repository rep = new DAO(copy.read())) {
+				assertNotNull(rep.task(output, IDN.idn(1)));
+				assertEquals(first, rep.event(first).timestamp);
+			}
+			try (Repository rep = new DAO(copy.read()); Repository all = new DAO(db.read())) {
+				assertEquals(all.history(ID.outputId(output)).events.length - 1, rep.history(ID.outputId(output)).events.length);
+			}
+			try (DB.Read tx = copy.read()) {
+				assertNull(tx.get(task2));
+			}
+
+			assertEquals(second, Journal.replay(db, later, Long.MAX_VALUE, null));
+			try (DB.Read expected = db.read(); DB.Read actual = later.read()) {
+				assertEquals(expected.get(task2), actual.get(task2));
+				assertEquals(expected.get(ID.outputId(output)), actual.get(ID.outputId(output)));
+				assertEquals(expected.get(ID.eventId(second)), actual.get(ID.eventId(second)));
+			}
+		}
+	}
+
+	@Test
+	public void transactionsWithinTheSameMillisecondAreAllReplayed() throws Exception {
+		Name output = as("vizio");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE)
+				.with(() -> 1000L).with(Switch.JOURNAL);
+		try (DB db = open(tmp.newFolder());
+			DB copy = open(tmp.newFolder())) {
+			Change change = sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 1, as("peter"));
+			long first = Transaction.run(change, db, server, null).timestamp;
+			long second = Transaction.run(change, db, server, null).timestamp;
+
+			List<Changes> replayed = new ArrayList<>();
+			assertEquals(second, Journal.replay(db, copy, Long.MAX_VALUE, replayed::add));
+			assertEquals(2, replayed.size());
+			assertEquals(first, replayed.get(0).timestamp);
+			assertEquals(second, replayed.get(1).timestamp);
+			try (Repository rep = new DAO(copy.read())) {
+				assertNotNull(rep.task(output, IDN.idn(1)));
+				assertNotNull(rep.task(output, IDN.idn(2)));
+				assertEquals(2, rep.output(output).tasks);
+			}
+		}
+	}
+
+	@Test
+	public void pollsAreReplayedAsPolls() throws Exception {
+		Name output = as("vizio");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE).with(Switch.JOURNAL);
+		try (DB db = open(tmp.newFolder());
+			DB copy = open(tmp.newFolder())) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 1, as("peter")), db, server);
+			Transaction.run(Change.poll(Matter.inclusion, gist("anyone"), output, as("ui"), as("peter"), as("peter")), db, server);
+
+			List<Changes> replayed = new ArrayList<>();
+			Journal.replay(db, copy, Long.MAX_VALUE, replayed::add);
+			boolean poll = false;
+			for (Changes.Entry<?> e : replayed.get(1))
+				poll |= e.after instanceof Poll;
+			assertTrue(poll);
+			try (Repository rep = new DAO(copy.read())) {
+				assertNotNull(rep.poll(output, as("ui"), IDN.idn(1)));
+			}
+			try (DB.Read tx = copy.read()) {
+				assertNull(tx.get(ID.fromBytes(Type.Page, ID.pollId(output, as("ui"), IDN.idn(1)).readonlyBytes())));
+			}
+		}
+	}
+
+	private static DB open(File path) {
+		return new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), path);
+	}
+}
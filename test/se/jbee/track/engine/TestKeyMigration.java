@@ -0,0 +1,91 @@
+package se.jbee.track.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.DB.Read;
+import se.jbee.track.db.DB.Write;
+import se.jbee.track.db.MemoryDB;
+import se.jbee.track.model.ID;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Name;
+
+public class TestKeyMigration {
+
+	private final Name vizio = as("vizio");
+
+	/**
+	 * A DB with the tasks, their histories and events in the legacy format is
+	 * derived from a current one and then migrated again.
+	 */
+	@Test
+	public void legacyTaskIdsAreMigrated() {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB current = new MemoryDB(); DB legacy = new MemoryDB(); DB migrated = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 3, as("peter")), current, server);
+			try (Read tx = current.read(); Write w = legacy.write()) {
+				for (ID.Type type : ID.Type.values())
+					tx.range(type, null, null, false, (k, v) -> { w.put(legacy(k), type == ID.Type.event ? legacy(v) : v); return true; });
+				w.commit();
+			}
+			try (Read tx = legacy.read()) {
+				assertNull(tx.get(ID.taskId(vizio, IDN.idn(3))));
+			}
+			KeyMigration.run(legacy, migrated);
+			ID task3 = ID.taskId(vizio, IDN.idn(3));
+			try (Repository rep = new DAO(migrated.read()); Repository expected = new DAO(current.read())) {
+				assertEquals(3, rep.task(vizio, IDN.idn(3)).id.num);
+				History history = rep.history(task3);
+				assertEquals(expected.history(task3).events.length, history.events.length);
+				Event created = rep.event(history.events[0]);
+				boolean found = false;
+				for (Event.Transition t : created)
+					found |= t.entity.equalTo(task3);
+				assertTrue(found);
+			}
+		}
+	}
+
+	@Test
+	public void allEntriesAreCounted() {
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB source = new MemoryDB(); DB migrated = new MemoryDB()) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 5, as("peter")), source, server);
+			int[] entries = { 0 };
+			try (Read tx = source.read()) {
+				for (ID.Type type : ID.Type.values())
+					tx.range(type, null, null, false, (k, v) -> { entries[0]++; return true; });
+			}
+			assertEquals(entries[0], KeyMigration.run(source, migrated, 2));
+		}
+	}
+
+	private ID legacy(ID id) {
+		if (id.type == ID.Type.history)
+			return ID.historyId(legacy(id.entity()));
+		IDN idn = id.taskIDN(vizio);
+		return idn == null ? id : ID.legacyTaskId(vizio, idn);
+	}
+
+	private ByteBuffer legacy(ByteBuffer value) {
+		Event e = Bincoder.bin2event.convert(null, value);
+		Event.Transition[] transitions = new Event.Transition[e.cardinality()];
+		for (int i = 0; i < transitions.length; i++)
+			transitions[i] = new Event.Transition(legacy(e.transition(i).entity), e.transition(i).ops);
+		Event res = new Event(e.timestamp, e.actor, transitions);
+		ByteBuffer buf = ByteBuffer.allocate(Bincoder.event2size.applyAsInt(res));
+		Bincoder.event2bin.convert(res, buf);
+		buf.flip();
+		return buf;
+	}
+}
@@ -1,12 +1,15 @@
 package se.jbee.track.engine;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static se.jbee.track.engine.Change.authenticate;
 import static se.jbee.track.engine.Change.compose;
+import static se.jbee.track.engine.Change.recompose;
 import static se.jbee.track.engine.Change.register;
 import static se.jbee.track.engine.Sample.sample;
 import static se.jbee.track.model.Email.email;
@@ -17,6 +20,10 @@ import static se.jbee.track.model.Template.template;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -35,6 +42,7 @@ import se.jbee.track.db.LMDB;
 import se.jbee.track.model.Email;
 import se.jbee.track.model.ID;
 import se.jbee.track.model.ID.Type;
+import se.jbee.track.model.IDN;
 import se.jbee.track.model.Name;
 import se.jbee.track.model.Names;
 import se.jbee.track.model.Page;
@@ -74,7 +82,7 @@ public class TestLMDB {
 	public void putGetAdapterAPI() throws IOException {
 		Tracker tracker = new Tracker(new Server().with(new NoLimits()));
 		final File path = tmp.newFolder();
-		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), path)) {
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), path)) {
 			User u1 = tracker.register(null, as("user1"), email("pass1@ex.de"));
 			u1 = tracker.authenticate(u1, u1.otp);
 			Page s1 = tracker.compose(u1, as("def"), template("ghi"));
@@ -115,7 +123,7 @@ public class TestLMDB {
 	@Test
 	public void putGetTranactionAPI() throws IOException {
 		final File path = tmp.newFolder();
-		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), path)) {
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), path)) {
 			Name user = as("abc");
 			Name page = as("def");
 			Server server = new Server();
@@ -169,6 +177,182 @@ public class TestLMDB {
 		}
 	}
 
+	@Test
+	public void optimisticTransactionsRetryOnConflict() throws Exception {
+		final File path = tmp.newFolder();
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), path)) {
+			Name user = as("abc");
+			Server server = new Server().with(new NoLimits()).with(Server.Switch.OPTIMISTIC);
+			Changes changed = Transaction.run(register(user, email("test@example.com")), db, server);
+			Transaction.run(authenticate(user, ((User)changed.get(0).after).otp), db, server);
+			int[] attempts = {0};
+			Change concurrent = (t, tx) -> {
+				compose(user, as("def"), template("ghi")).apply(t, tx);
+				if (attempts[0]++ == 0) {
+					Thread other = new Thread(() -> Transaction.run(compose(user, as("jkl"), template("mno")), db, server));
+					other.start();
+					try { other.join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+				}
+			};
+			Transaction.run(concurrent, db, server);
+
+			assertEquals(2, attempts[0]);
+			try (Read tx = db.read()) {
+				assertNotNull(tx.get(ID.pageId(user, as("def"))));
+				assertNotNull(tx.get(ID.pageId(user, as("jkl"))));
+			}
+		}
+	}
+
+	@Test
+	public void optimisticTransactionsRetryWhenARangeReadChanged() throws Exception {
+		final File path = tmp.newFolder();
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), path)) {
+			Name user = as("abc");
+			Name other = as("xyz");
+			Server server = new Server().with(new NoLimits()).with(Server.Switch.OPTIMISTIC);
+			for (Name u : new Name[] { user, other }) {
+				Changes changed = Transaction.run(register(u, email(u+"@example.com")), db, server);
+				Transaction.run(authenticate(u, ((User)changed.get(0).after).otp), db, server);
+			}
+			Transaction.run(compose(user, as("jkl"), template("mno")), db, server);
+			int[] attempts = {0};
+			Change concurrent = (t, tx) -> {
+				tx.pages(Name.ORIGIN, user);
+				compose(other, as("def"), template("ghi")).apply(t, tx);
+				if (attempts[0]++ == 0) {
+					Thread changer = new Thread(() -> Transaction.run(recompose(user, as("jkl"), template("pqr")), db, server));
+					changer.start();
+					try { changer.join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+				}
+			};
+			Transaction.run(concurrent, db, server);
+
+			assertEquals(2, attempts[0]);
+		}
+	}
+
+	@Test
+	public void arenaGrowsBeyondInitialCapacity() throws IOException {
+		final File path = tmp.newFolder();
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), path)) {
+			try (Write tx = db.write(); Arena arena = Arena.arena(16)) {
+				for (int i = 0; i < 100; i++) {
+					final int n = i;
+					arena.put(ID.userId(as("user"+i)), n, (v, buf) -> {
+						for (int j = 0; j < 50; j++)
+							buf.putInt(v);
+						return buf;
+					}, 4);
+				}
+				arena.writeTo(tx);
+				tx.commit();
+			}
+			try (Read tx = db.read()) {
+				for (int i = 0; i < 100; i++) {
+					ByteBuffer val = tx.get(ID.userId(as("user"+i)));
+					assertEquals(200, val.remaining());
+					assertEquals(i, val.getInt(val.position()));
+					assertEquals(i, val.getInt(val.position() + 196));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void rangeIsBoundedByPrefix() throws IOException {
+		final File path = tmp.newFolder();
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), path)) {
+			ByteBuffer val = ByteBuffer.allocateDirect(4);
+			try (Write tx = db.write()) {
+				for (String output : new String[] { "viz", "vizio", "vizz" })
+					for (int i = 1; i <= 3; i++)
+						tx.put(ID.taskId(as(output), IDN.idn(i)), val);
+				tx.commit();
+			}
+			ID prefix = ID.taskId(as("viz"), IDN.ZERO).prefix();
+			List<ID> keys = new ArrayList<>();
+			try (Read tx = db.read()) {
+				tx.range(prefix, prefix.prefixEnd(), (k, v) -> keys.add(k));
+				assertEquals(asList(ID.taskId(as("viz"), IDN.idn(1)), ID.taskId(as("viz"), IDN.idn(2)), ID.taskId(as("viz"), IDN.idn(3))), keys);
+				keys.clear();
+				tx.keys(Type.Task, prefix, prefix.prefixEnd(), true, keys::add);
+				assertEquals(asList(ID.taskId(as("viz"), IDN.idn(3)), ID.taskId(as("viz"), IDN.idn(2)), ID.taskId(as("viz"), IDN.idn(1))), keys);
+				keys.clear();
+				tx.keys(Type.Task, null, null, true, (k) -> keys.add(k) && keys.size() < 2);
+				assertEquals(asList(ID.taskId(as("vizz"), IDN.idn(3)), ID.taskId(as("vizz"), IDN.idn(2))), keys);
+			}
+		}
+	}
+
+	@Test
+	public void mapGrowsInsteadOfGettingFull() throws IOException {
+		final File path = tmp.newFolder();
+		AtomicInteger opened = new AtomicInteger();
+		try (LMDB db = new LMDB(() -> { opened.incrementAndGet(); return Env.create().setMapSize(1024*1024); }, path)) {
+			long initial = db.size();
+			ByteBuffer val = ByteBuffer.allocateDirect(64*1024);
+			for (int i = 0; i < 64; i++) {
+				try (Write tx = db.write()) {
+					val.clear();
+					val.putInt(0, i);
+					tx.put(ID.userId(as("user"+i)), val);
+					tx.commit();
+				}
+			}
+			assertTrue(db.size() > initial);
+			assertTrue(opened.get() > 1);
+			try (Read tx = db.read()) {
+				for (int i = 0; i < 64; i++)
+					assertEquals(i, tx.get(ID.userId(as("user"+i))).getInt(0));
+			}
+		}
+	}
+
+	@Test
+	public void transactionsCanBeClosedByAnotherThread() throws Exception {
+		final File path = tmp.newFolder();
+		try (LMDB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), path)) {
+			Read tx = db.read();
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			Thread t = new Thread(() -> {
+				try {
+					tx.close();
+				} catch (Throwable e) {
+					failure.set(e);
+				}
+			});
+			t.start();
+			t.join();
+			assertNull(failure.get());
+			try (Write w = db.write()) {
+				w.put(ID.userId(as("peter")), ByteBuffer.allocateDirect(8));
+				w.commit();
+			}
+		}
+	}
+
+	@Test
+	public void backupIsUsableCopy() throws IOException {
+		final File path = tmp.newFolder();
+		final File backup = new File(tmp.newFolder(), "backup");
+		ID id = ID.userId(as("peter"));
+		ByteBuffer val = ByteBuffer.allocateDirect(8);
+		val.putLong(42L).flip();
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), path)) {
+			try (Write tx = db.write()) {
+				tx.put(id, val);
+				tx.commit();
+			}
+			db.backup(backup);
+		}
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), backup)) {
+			try (Read tx = db.read()) {
+				assertEquals(42L, tx.get(id).getLong());
+			}
+		}
+	}
+
 	@Test
 	@Ignore
 	public void runSampleTransaction() throws Exception {
@@ -176,7 +360,7 @@ public class TestLMDB {
 		Name peter = as("peter");
 		Email epeter = email("peter@example.com");
 		Server server = new Server().with(epeter).with(new NoLimits());
-		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10).setMaxReaders(8), path)) {
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), path)) {
 			Changes changes = Transaction.run(Change.register(peter, epeter), db, server);
 			Transaction.run(Change.authenticate(peter, ((User)(changes.iterator().next().after)).otp), db, server);
 			for (int i = 0; i <  5; i++) {
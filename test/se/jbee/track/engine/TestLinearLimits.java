@@ -0,0 +1,102 @@
+package se.jbee.track.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import se.jbee.track.engine.Limits.ConcurrentUsage;
+import se.jbee.track.model.Name;
+
+public class TestLinearLimits {
+
+	private static final long ONE_HOUR = 1000L*60*60;
+
+	private long now = 1000L * 1000 * 1000 * 1000;
+
+	private final Clock clock = () -> now;
+
+	@Test
+	public void stressIsLimitedPerSecond() {
+		LinearLimits limits = new LinearLimits(5);
+		Limit l = Limit.limit("task", Name.as("foo"));
+		for (int i = 0; i < 4; i++)
+			assertTrue(limits.stress(l, clock));
+		assertFalse(limits.stress(l, clock));
+		assertFalse(limits.stress(l, clock));
+		now += 1000;
+		assertTrue(limits.stress(l, clock));
+	}
+
+	@Test
+	public void occupiedLimitsCannotBeOccupied() {
+		LinearLimits limits = new LinearLimits(5);
+		Limit l = Limit.limit("task", Name.as("foo"));
+		assertTrue(limits.occupy(l, clock));
+		try {
+			limits.occupy(l, clock);
+			fail("Expected concurrent usage");
+		} catch (ConcurrentUsage e) {
+			// expected
+		}
+		limits.free(l);
+		assertTrue(limits.occupy(l, clock));
+	}
+
+	@Test(expected = ConcurrentUsage.class)
+	public void freeingUnoccupiedLimitIsIllegal() {
+		new LinearLimits(5).free(Limit.limit("task", Name.as("foo")));
+	}
+
+	@Test
+	public void concurrentStressNeverExceedsLimit() throws InterruptedException {
+		LinearLimits limits = new LinearLimits(100);
+		Limit l = Limit.limit("task", Name.as("foo"));
+		AtomicInteger accepted = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int k = 0; k < 1000; k++)
+					if (limits.stress(l, clock))
+						accepted.incrementAndGet();
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(99, accepted.get());
+	}
+
+	@Test
+	public void unusedLimitsExpireAfterADay() {
+		LinearLimits limits = new LinearLimits(5);
+		Limit foo = Limit.limit("task", Name.as("foo"));
+		Limit bar = Limit.limit("task", Name.as("bar"));
+		limits.stress(foo, clock);
+		limits.stress(bar, clock);
+		assertEquals(2, limits.tracked());
+		for (int h = 0; h < 30; h++) {
+			now += ONE_HOUR;
+			limits.stress(bar, clock);
+		}
+		assertEquals(1, limits.tracked());
+	}
+
+	@Test
+	public void occupiedLimitsDoNotExpire() {
+		LinearLimits limits = new LinearLimits(5);
+		Limit foo = Limit.limit("task", Name.as("foo"));
+		Limit bar = Limit.limit("task", Name.as("bar"));
+		limits.occupy(foo, clock);
+		now += 3 * 24 * ONE_HOUR;
+		limits.stress(bar, clock);
+		now += 3 * 24 * ONE_HOUR;
+		limits.stress(bar, clock);
+		assertEquals(2, limits.tracked());
+		limits.free(foo);
+	}
+}
@@ -0,0 +1,61 @@
+package se.jbee.track.engine;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.LMDB;
+import se.jbee.track.model.Name;
+
+public class TestSharedLimits {
+
+	private static final long SYNC_MANUALLY = 1000L * 60 * 60;
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Clock clock = () -> 1000L * 1000 * 1000 * 1000;
+	private final Limit limit = Limit.limit("task", Name.as("foo"));
+
+	@Test
+	public void nodesShareTheirUsage() {
+		SharedLimits.Local backend = new SharedLimits.Local();
+		try (SharedLimits a = new SharedLimits(new LinearLimits(5), backend.node(), clock, SYNC_MANUALLY);
+			SharedLimits b = new SharedLimits(new LinearLimits(5), backend.node(), clock, SYNC_MANUALLY)) {
+			assertTrue(a.stress(limit, clock));
+			assertTrue(a.stress(limit, clock));
+			assertTrue(b.stress(limit, clock));
+			a.sync();
+			b.sync();
+			assertTrue(b.stress(limit, clock));
+			assertFalse(b.stress(limit, clock));
+			a.sync();
+			b.sync();
+			a.sync();
+			assertFalse(a.stress(limit, clock));
+		}
+	}
+
+	@Test
+	public void usageSurvivesRestart() throws IOException {
+		final File path = tmp.newFolder();
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10), path)) {
+			try (SharedLimits limits = new SharedLimits(new LinearLimits(5), new StoredLimits(db, clock), clock, SYNC_MANUALLY)) {
+				for (int i = 0; i < 4; i++)
+					assertTrue(limits.stress(limit, clock));
+			}
+			try (SharedLimits limits = new SharedLimits(new LinearLimits(5), new StoredLimits(db, clock), clock, SYNC_MANUALLY)) {
+				assertFalse(limits.stress(limit, clock));
+				assertTrue(limits.stress(Limit.limit("task", Name.as("bar")), clock));
+			}
+		}
+	}
+}
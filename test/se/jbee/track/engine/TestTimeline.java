@@ -0,0 +1,53 @@
+package se.jbee.track.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.track.db.DB;
+import se.jbee.track.db.LMDB;
+import se.jbee.track.model.ID;
+import se.jbee.track.model.IDN;
+import se.jbee.track.model.Name;
+
+public class TestTimeline {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void eventsOfEntitiesMostRecentFirst() throws Exception {
+		final File path = tmp.newFolder();
+		Name output = as("vizio");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), path)) {
+			Timeline timeline = new Timeline(db, 10);
+			Change change = sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 1, as("peter"));
+			Transaction.run(change, db, server, timeline::invalidate);
+			Event[] task1 = timeline.events(0, 10, ID.taskId(output, IDN.idn(1)));
+			assertEquals(1, task1.length);
+			Event[] before = timeline.events(0, 10, ID.outputId(output));
+			assertTrue(before.length > 0);
+
+			Transaction.run(change, db, server, timeline::invalidate);
+			Event[] after = timeline.events(0, 10, ID.outputId(output));
+			assertEquals(before.length + 1, after.length);
+			assertTrue(after[0].timestamp > after[1].timestamp);
+			assertEquals(after[1].timestamp, timeline.events(1, 10, ID.outputId(output))[0].timestamp);
+
+			Event[] both = timeline.events(0, 10, ID.taskId(output, IDN.idn(1)), ID.taskId(output, IDN.idn(2)));
+			assertEquals(2, both.length);
+			assertTrue(both[0].timestamp > both[1].timestamp);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package se.jbee.track.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.track.engine.Sample.sample;
+import static se.jbee.track.model.Email.email;
+import static se.jbee.track.model.Name.as;
+import static se.jbee.track.model.Names.names;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.track.api.ExportView;
+import se.jbee.track.api.ExportView.Format;
+import se.jbee.track.db.DB;
+import se.jbee.track.db.LMDB;
+import se.jbee.track.engine.DAO;
+import se.jbee.track.engine.Limits;
+import se.jbee.track.engine.Repository;
+import se.jbee.track.engine.Server;
+import se.jbee.track.engine.Transaction;
+import se.jbee.track.model.Name;
+
+public class TestExportWriter {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void oneLinePerTask() throws Exception {
+		Name output = as("vizio");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), tmp.newFolder())) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 5, as("peter")), db, server);
+			String ndjson = export(db, output, Format.ndjson);
+			String[] lines = ndjson.split("\n");
+			assertEquals(5, lines.length);
+			assertTrue(lines[0].startsWith("{\"output\":\"vizio\",\"id\":1,"));
+			assertTrue(lines[4].endsWith(",\"archived\":false}"));
+			String csv = export(db, output, Format.csv);
+			lines = csv.split("\r\n");
+			assertEquals(6, lines.length);
+			assertTrue(lines[0].startsWith("output,id,serial,"));
+			assertTrue(lines[1].startsWith("\"vizio\",1,0,"));
+		}
+	}
+
+	@Test
+	public void exportStopsWhenTheClientIsGone() throws Exception {
+		Name output = as("vizio");
+		Server server = new Server().with(email("peter@example.com")).with(Limits.NONE);
+		try (DB db = new LMDB(() -> Env.create().setMapSize(1014*1024*10).setMaxReaders(8), tmp.newFolder())) {
+			Transaction.run(sample(names("peter"), names("vizio"), names("0.1"), names("ui"), names("example"), 2 * ExportWriter.CHECK_INTERVAL, as("peter")), db, server);
+			int[] exported = { 0 };
+			ExportView view = new ExportView(null, 0L, output, Format.ndjson, (consumer) -> {
+				try (Repository rep = new DAO(db.read())) {
+					rep.tasks(output, (t) -> { exported[0]++; return consumer.test(t); });
+				}
+			});
+			Writer gone = new Writer() {
+				@Override
+				public void write(char[] cbuf, int off, int len) throws IOException { throw new IOException("gone"); }
+				@Override
+				public void flush() throws IOException { throw new IOException("gone"); }
+				@Override
+				public void close() { }
+			};
+			new ExportWriter(new PrintWriter(gone)).write(view);
+			assertEquals(ExportWriter.CHECK_INTERVAL, exported[0]);
+		}
+	}
+
+	private static String export(DB db, Name output, Format format) {
+		StringWriter out = new StringWriter();
+		ExportView view = new ExportView(null, 0L, output, format, (consumer) -> {
+			try (Repository rep = new DAO(db.read())) {
+				rep.tasks(output, consumer);
+			}
+		});
+		try (PrintWriter pw = new PrintWriter(out)) {
+			new ExportWriter(pw).write(view);
+		}
+		return out.toString();
+	}
+}
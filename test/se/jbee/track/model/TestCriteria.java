@@ -2,6 +2,7 @@ package se.jbee.track.model;
 
 import static java.util.Collections.singletonMap;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static se.jbee.track.model.Criteria.ValueType.text;
@@ -12,6 +13,7 @@ import java.util.EnumMap;
 import org.junit.Test;
 
 import se.jbee.track.model.Criteria.Coloration;
+import se.jbee.track.model.Criteria.Criterium;
 import se.jbee.track.model.Criteria.Operator;
 import se.jbee.track.model.Criteria.Property;
 
@@ -35,6 +37,15 @@ public class TestCriteria {
 		assertSame(Integer.class, criteria.get(2).rvalues[0].getClass());
 	}
 
+	@Test
+	public void singleTextValueIsContainsOnlyForSearchedTexts() {
+		assertSame(Operator.in, Criteria.parse("[gist~foo]").get(0).op);
+		assertSame(Operator.in, Criteria.parse("[conclusion~foo]").get(0).op);
+		Criterium url = Criteria.parse("[url~x]").get(0);
+		assertSame(Operator.eq, url.op);
+		assertFalse(url.matches(new Task(1), Date.today()));
+	}
+
 	@Test
 	public void count() {
 		Criteria criteria = Criteria.parse("[url={jira:GRP-001}][url=https://mail.google.com/mail/u/0/#inbox]");
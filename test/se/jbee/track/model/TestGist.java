@@ -49,4 +49,26 @@ public class TestGist {
 		assertEquals('€', gist("ä€").charAt(1));
 		assertEquals('X', gist("ä€X").charAt(2));
 	}
+
+	@Test
+	public void gistIsLatin1WhenPossible() {
+		Gist latin1 = gist("für");
+		assertTrue(latin1.isLatin1());
+		assertEquals(3, latin1.compactBytes().length);
+		assertEquals("für", latin1.toString());
+		assertEquals(latin1, Gist.fromBytes(latin1.readonlyBytes()));
+		assertEquals(latin1, Gist.fromCompactBytes(latin1.compactBytes(), true));
+		Gist utf16 = gist("5€");
+		assertFalse(utf16.isLatin1());
+		assertEquals('€', utf16.charAt(1));
+	}
+
+	@Test
+	public void containsWorksAcrossEncodings() {
+		Gist utf16 = gist("costs 5€ or more");
+		assertTrue(utf16.contains(gist("or m")));
+		assertTrue(utf16.contains(gist("5€")));
+		assertFalse(gist("costs 5 or more").contains(gist("5€")));
+		assertEquals(6, utf16.indexOf(gist("5€")));
+	}
 }
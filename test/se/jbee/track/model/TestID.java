@@ -2,6 +2,8 @@ package se.jbee.track.model;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -22,6 +24,40 @@ public class TestID {
 
 	}
 
+	@Test
+	public void taskIDNOfOutput() {
+		Name output = Name.as("foo");
+		assertEquals(424242, ID.taskId(output, IDN.idn(424242)).taskIDN(output).num);
+		assertEquals(1, ID.taskId(output, IDN.idn(1)).taskIDN(output).num);
+		assertNull(ID.taskId(Name.as("bar"), IDN.idn(1)).taskIDN(output));
+		assertNull(ID.taskId(Name.as("foo2"), IDN.idn(1)).taskIDN(output));
+		assertNull(ID.outputId(output).taskIDN(output));
+		ID task = ID.fromBytes(ID.taskId(output, IDN.idn(42)).readonlyBytes());
+		assertEquals(ID.Type.Task, task.type);
+		assertEquals(42, task.taskIDN(output).num);
+		assertEquals(output, task.taskOutput());
+		assertNull(ID.outputId(output).taskOutput());
+	}
+
+	@Test
+	public void taskIdsAreBinary() {
+		Name output = Name.as("foo");
+		ID task = ID.taskId(output, IDN.idn(Integer.MAX_VALUE));
+		assertEquals(Integer.MAX_VALUE, task.taskIDN(output).num);
+		assertEquals("foo:2147483647", task.toString());
+		ID colon = ID.taskId(output, IDN.idn(':'));
+		assertEquals(ID.taskId(output, IDN.ZERO).prefix(), colon.prefix());
+		assertTrue(ID.KEY_ORDER.compare(ID.taskId(output, IDN.idn(255)), ID.taskId(output, IDN.idn(256))) < 0);
+	}
+
+	@Test
+	public void legacyTaskIds() {
+		Name output = Name.as("foo");
+		ID legacy = ID.legacyTaskId(output, IDN.idn(424242));
+		assertEquals(ID.taskId(output, IDN.idn(424242)), legacy.fromLegacyTaskId());
+		assertNull(ID.outputId(output).fromLegacyTaskId());
+	}
+
 	private static void assertBase32(String expected, int actual) {
 		assertEquals(expected, new String(ID.toBase32(actual), US_ASCII));
 	}
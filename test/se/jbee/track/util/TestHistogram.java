@@ -0,0 +1,64 @@
+package se.jbee.track.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestHistogram {
+
+	@Test
+	public void smallValuesAreExact() {
+		for (int i = 0; i < 16; i++) {
+			assertEquals(i, Histogram.upperBound(Histogram.index(i)));
+		}
+	}
+
+	@Test
+	public void bucketsContainTheirValues() {
+		for (long v = 1; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+			long upper = Histogram.upperBound(Histogram.index(v));
+			assertTrue(upper >= v);
+			assertTrue(upper - v <= v / 8);
+		}
+	}
+
+	@Test
+	public void percentiles() {
+		Histogram h = new Histogram();
+		for (int i = 1; i <= 1000; i++)
+			h.record(i * 1000L);
+		assertEquals(1000, h.count());
+		assertEquals(1000000L, h.max());
+		assertEquals(500500L, h.mean());
+		assertWithin(500000L, h.percentile(50));
+		assertWithin(990000L, h.percentile(99));
+		assertEquals(1000000L, h.percentile(100));
+	}
+
+	@Test
+	public void emptyHistogram() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.count());
+		assertEquals(0, h.percentile(99));
+		assertEquals(0, h.mean());
+	}
+
+	@Test
+	public void snapshotsDoNotChangeWithLaterRecords() {
+		Histogram h = new Histogram();
+		h.record(10L);
+		Histogram snapshot = h.snapshot();
+		h.record(1000L);
+		assertEquals(1, snapshot.count());
+		assertEquals(10L, snapshot.max());
+		assertEquals(10L, snapshot.mean());
+		assertEquals(10L, snapshot.percentile(100));
+		assertEquals(2, h.count());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(actual >= expected);
+		assertTrue(actual - expected <= expected / 8);
+	}
+}